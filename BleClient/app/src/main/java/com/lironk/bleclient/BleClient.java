@@ -16,32 +16,62 @@ import android.content.Context;
 import android.os.ParcelUuid;
 import android.util.Log;
 
+import com.lironk.blelib.async.BleCompletion;
+import com.lironk.blelib.async.BleOperationException;
+import com.lironk.blelib.characteristic.BleCharcCapabilities;
+import com.lironk.blelib.characteristic.readable.BleCharcCredit;
+import com.lironk.blelib.codec.BleCodecRegistry;
+import com.lironk.blelib.compression.BleCompressors;
+import com.lironk.blelib.enums.eBleBackpressure;
 import com.lironk.blelib.enums.eBleCommand;
+import com.lironk.blelib.enums.eBleCompression;
+import com.lironk.blelib.enums.eBleFraming;
+import com.lironk.blelib.enums.eBleLane;
+import com.lironk.blelib.enums.eBleOperationError;
+import com.lironk.blelib.enums.eBleScheduling;
+import com.lironk.blelib.enums.eBleSendResult;
 import com.lironk.blelib.main.BleCharacteristic;
+import com.lironk.blelib.main.BleListenerRegistry;
 import com.lironk.blelib.main.BleOperation;
 import com.lironk.blelib.main.BleProfile;
 import com.lironk.blelib.main.IBleEvents;
+import com.lironk.blelib.metrics.BleLatencyRecorder;
+import com.lironk.blelib.queue.BleCreditGate;
+import com.lironk.blelib.queue.BleOperationQueue;
+import com.lironk.blelib.transport.BleBufferPool;
+import com.lironk.blelib.transport.BleFragmenter;
+import com.lironk.blelib.transport.BleMessageDropper;
+import com.lironk.blelib.transport.BleReassembler;
+import com.lironk.blelib.transport.BleReceiveRing;
+import com.lironk.blelib.transport.IBleFragmentSink;
+import com.lironk.blelib.watchdog.BleRetryPolicy;
+import com.lironk.blelib.watchdog.BleTimerWheel;
+import com.lironk.blelib.watchdog.BleWatchdog;
+import com.lironk.blelib.watchdog.IBleWatchdogHandler;
 
 import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static android.bluetooth.BluetoothProfile.STATE_CONNECTED;
 import static android.bluetooth.BluetoothProfile.STATE_CONNECTING;
 import static android.bluetooth.BluetoothProfile.STATE_DISCONNECTED;
 import static android.bluetooth.BluetoothProfile.STATE_DISCONNECTING;
+import static com.lironk.blelib.characteristic.BleCharcCapabilities.FEATURE_BINARY_CODEC;
+import static com.lironk.blelib.characteristic.BleCharcCapabilities.SUPPORTED_FEATURES;
+import static com.lironk.blelib.compression.BleCompressors.SUPPORTED_MASK;
 import static com.lironk.blelib.main.BleProfile.DEFAULT_MTU;
+import static com.lironk.blelib.main.BleProfile.FRAMING;
 import static com.lironk.blelib.main.BleProfile.GATT_HEADER_SIZE;
-import static com.lironk.blelib.main.BleProfile.HEADER_SIZE;
 import static com.lironk.blelib.main.BleProfile.MTU;
 import static com.lironk.blelib.main.BleProfile.SERVER_NAME;
+import static com.lironk.blelib.main.Utils.getFragmentCommand;
 
 public class BleClient {
 
@@ -49,18 +79,36 @@ public class BleClient {
 
     private Context mContext;
     private int mMaxPayloadSize = DEFAULT_MTU;
-
-    private ByteBuffer mIncomingByteBuff;
+    private volatile eBleFraming mFraming = eBleFraming.Legacy;
+    private volatile int mCompressionMask = 0;
+    private volatile int mFeatures = 0;
+    private AtomicLong mReceivedBytes;
+    private AtomicLong mBulkSentBytes;
+    private BleCreditGate mBulkCredits;
+    private volatile boolean mBulkSupported = false;
+    private volatile boolean mPingSupported = false;
+    // ATT MTU requested once connected
+    private volatile int mSetupMtu = MTU;
+    // Completed once the connection is set up, and once it is closed
+    private volatile CompletableFuture<Integer> mConnected;
+    private volatile CompletableFuture<Void> mDisconnected;
+
+    private BleFragmenter mFragmenter;
+    private BleReassembler mReassembler;
+    // Rest of a message a fragment of which failed
+    private BleMessageDropper mMessageDropper;
 
     private ExecutorService mExecutorOut;
-    private Semaphore mExecuteSem;
 
-    private LinkedList<BleOperation> mOperationList;
-    private BleOperation mPendingOperation;
-    private Semaphore mQueueSem;
+    private BleOperationQueue mOperationQueue;
+    private volatile BleOperation mPendingOperation;
+    private BleTimerWheel mTimerWheel;
+    private BleWatchdog mWatchdog;
+    private BleLatencyRecorder mLatencyRecorder;
 
-    private ArrayList<IBleEvents> mBleMessageListeners;
-    private ReentrantLock mMsgListenersLock;
+    private BleListenerRegistry mBleMessageListeners;
+    // Notified fragments, from the GATT callback to the receive thread
+    private BleReceiveRing<String> mReceiveRing;
 
     // Bluetooth API
     private BluetoothGatt mBluetoothGatt;
@@ -69,16 +117,26 @@ public class BleClient {
     public BleClient(Context context){
         mContext = context;
 
+        mFragmenter = new BleFragmenter(new BleBufferPool());
+        mReassembler = new BleReassembler(new BleBufferPool());
+        mMessageDropper = new BleMessageDropper();
+        mReceivedBytes = new AtomicLong(0);
+        mBulkSentBytes = new AtomicLong(0);
+        mBulkCredits = new BleCreditGate(BleProfile.BULK_WINDOW);
+
         mExecutorOut = Executors.newSingleThreadExecutor();
-        mExecuteSem = new Semaphore(1);
 
-        mOperationList = new LinkedList<>();
+        mOperationQueue = new BleOperationQueue(this::recycleOperation);
         mPendingOperation = null;
-        mQueueSem = new Semaphore(Integer.MAX_VALUE);
-        mQueueSem.drainPermits();
+        mOperationQueue.setWritabilityListener(this::notifyWritabilityChanged);
+        mTimerWheel = new BleTimerWheel();
+        mWatchdog = new BleWatchdog(mTimerWheel, mWatchdogHandler);
+        mLatencyRecorder = new BleLatencyRecorder(TAG, mTimerWheel);
+        mOperationQueue.setTimestamped(true);
 
-        mMsgListenersLock = new ReentrantLock();
-        mBleMessageListeners = new ArrayList<>();
+        mBleMessageListeners = new BleListenerRegistry();
+        mReceiveRing = new BleReceiveRing<>(TAG + "Rx", this::onFragment);
+        mReceiveRing.start();
 
         mBluetoothLeScanner = BluetoothAdapter.getDefaultAdapter().getBluetoothLeScanner();
 
@@ -86,94 +144,290 @@ public class BleClient {
     }
 
     public int getHeaderSize(){
-        return HEADER_SIZE;
+        return BleFragmenter.getHeaderSize(mFraming, mMaxPayloadSize);
+    }
+
+    // Largest message that fits a single write
+    public int getMtu(){
+        return BleFragmenter.getMaxSinglePartSize(mFraming, mMaxPayloadSize);
     }
 
     public void addBTMessageListener(IBleEvents listener) {
-        mMsgListenersLock.lock();
         mBleMessageListeners.add(listener);
-        mMsgListenersLock.unlock();
+    }
+
+    // Called on executor instead of the GATT callback thread, see BleListenerRegistry
+    public void addBTMessageListener(IBleEvents listener, Executor executor) {
+        mBleMessageListeners.add(listener, executor);
     }
 
     public void removeBTMessageListener(IBleEvents listener) {
-        mMsgListenersLock.lock();
         mBleMessageListeners.remove(listener);
-        mMsgListenersLock.unlock();
     }
 
     public void clearListenersList() {
-        mMsgListenersLock.lock();
         mBleMessageListeners.clear();
-        mMsgListenersLock.unlock();
     }
 
     private void notifyConnectionState(int state){
-        mMsgListenersLock.lock();
-        for (IBleEvents listener : mBleMessageListeners) {
-            listener.bleConnectionStateChanged(state);
-        }
-        mMsgListenersLock.unlock();
+        mBleMessageListeners.connectionStateChanged(state);
     }
 
-    private void notifyMessageRcv(UUID uuid, byte [] data){
-        mMsgListenersLock.lock();
-        for (IBleEvents listener : mBleMessageListeners){
-            listener.bleDataReceived(uuid, data);
-        }
-        mMsgListenersLock.unlock();
+    private void notifyMessageRcv(UUID uuid, ByteBuffer data){
+        mBleMessageListeners.messageReceived(uuid, data);
     }
 
     private void notifyMessageSent(BleOperation operation){
-        mMsgListenersLock.lock();
-        for (IBleEvents listener : mBleMessageListeners){
-            listener.bleDataSent(operation);
-        }
-        mMsgListenersLock.unlock();
+        mBleMessageListeners.messageSent(operation);
+    }
+
+    private void notifyOperationFailed(BleOperation operation, eBleOperationError error){
+        mBleMessageListeners.operationFailed(operation, error);
+    }
+
+    // ATT MTU negotiated with the agreed one
+    public int getAttMtu(){
+        return mMaxPayloadSize + GATT_HEADER_SIZE;
+    }
+
+    // ATT MTU requested by the next connections, BleProfile.MTU by default
+    public void setSetupMtu(int mtu){
+        mSetupMtu = mtu;
     }
 
     public void connect(){
+        connectAsync();
+    }
+
+    // Completes with the negotiated ATT MTU once the notifications are enabled. Fails if the connection
+    // closes first. Never times out by itself, the server may not be advertising yet
+    public CompletableFuture<Integer> connectAsync(){
+        CompletableFuture<Integer> connected = new CompletableFuture<>();
+        mConnected = connected;
         startScan();
+        return connected;
     }
 
     public void disconnect(){
+        disconnectAsync();
+    }
+
+    // Completes once the connection is closed
+    public CompletableFuture<Void> disconnectAsync(){
         Log.d(TAG, "disconnect");
+        CompletableFuture<Void> disconnected = new CompletableFuture<>();
+        mDisconnected = disconnected;
         enqueueOperation(new Disconnect());
-        mQueueSem.release();
+        return disconnected;
+    }
+
+    // Notification bytes received so far, framing headers included
+    public long getReceivedBytes(){
+        return mReceivedBytes.get();
+    }
+
+    // Bulk upload bytes handed to the stack so far, framing headers included
+    public long getBulkSentBytes(){
+        return mBulkSentBytes.get();
     }
 
-    public void sendMessage(BleCharacteristic characteristic) {
-        sendCharacteristic(characteristic.getUUID(), characteristic.serialize());
+    // GATT operation deadline and retries
+    public void setRetryPolicy(BleRetryPolicy policy){
+        mWatchdog.setRetryPolicy(policy);
     }
 
-    private void sendCharacteristic(UUID uuid, byte [] data){
+    // Stall, retry and recovery counters
+    public BleWatchdog getWatchdog(){
+        return mWatchdog;
+    }
+
+    // Binder thread residence and receive thread hand-off stats
+    public BleReceiveRing<String> getReceiveRing(){
+        return mReceiveRing;
+    }
+
+    // Queue wait and service latency per operation type
+    public BleLatencyRecorder getLatencyRecorder(){
+        return mLatencyRecorder;
+    }
+
+    // On by default. Off saves two clock reads per operation, the recorder then stays empty
+    public void setLatencyRecording(boolean enabled){
+        mOperationQueue.setTimestamped(enabled);
+    }
+
+    // True once connected to a server that has the W_BULK characteristic
+    public boolean isBulkSupported(){
+        return mBulkSupported;
+    }
+
+    // True once connected to a server that echoes W_PING on R_PONG
+    public boolean isPingSupported(){
+        return mPingSupported;
+    }
+
+    private void notifyWritabilityChanged(boolean writable){
+        mBleMessageListeners.writabilityChanged(writable);
+    }
+
+    // What happens to a data message while the queue is above its high watermark
+    public void setBackpressure(eBleBackpressure backpressure){
+        mOperationQueue.setBackpressure(backpressure);
+    }
+
+    // Queued fragments on the data lanes
+    public void setWatermarks(int low, int high){
+        mOperationQueue.setWatermarks(low, high);
+    }
+
+    public boolean isWritable(){
+        return mOperationQueue.isWritable();
+    }
+
+    // timeoutMs 0 waits for ever. False on timeout
+    public boolean awaitWritable(long timeoutMs){
+        return mOperationQueue.awaitWritable(timeoutMs);
+    }
+
+    // Batch delivery for IBleBatchEvents listeners, see BleListenerRegistry.setBatching()
+    public void setBatching(int maxMessages, int maxBytes, long maxLatencyMs){
+        mBleMessageListeners.setBatching(mTimerWheel, maxMessages, maxBytes, maxLatencyMs);
+    }
+
+    // W_BULK messages block while the server has no credit left, and with Block backpressure any data message
+    // waits for room - don't send them from a GATT callback
+    public eBleSendResult sendMessage(BleCharacteristic characteristic) {
+        return sendMessage(characteristic, null);
+    }
+
+    // Completes once every fragment of the message was written. Fails with a BleOperationException if the message
+    // is rejected or a fragment fails, cancelling drops the fragments not written yet
+    public CompletableFuture<Void> sendMessageAsync(BleCharacteristic characteristic) {
+        return sendMessageAsync(characteristic, 0);
+    }
+
+    // timeoutMs 0 or less never times out
+    public CompletableFuture<Void> sendMessageAsync(BleCharacteristic characteristic, long timeoutMs) {
+        BleCompletion<Void> completion = new BleCompletion<Void>().setTimeout(mTimerWheel, timeoutMs);
+        if(sendMessage(characteristic, completion) == eBleSendResult.Rejected){
+            completion.onFailed(new BleOperationException(eBleOperationError.Rejected));
+        }
+        else {
+            completion.seal();
+        }
+        return completion.getFuture();
+    }
+
+    // Completes with the last whole message the server sent on the characteristic, without framing or
+    // compression (empty if none). It's not decoded, see BleCodecRegistry
+    public CompletableFuture<byte []> readCharacteristicAsync(UUID uuid, long timeoutMs) {
+        BleCompletion<byte []> completion = new BleCompletion<byte []>().setTimeout(mTimerWheel, timeoutMs);
+        CharacteristicRead operation = new CharacteristicRead(uuid);
+        operation.setCompletion(completion);
+        enqueueOperation(operation, eBleLane.Interactive);
+        return completion.getFuture();
+    }
+
+    // Completes with the MTU the peer agreed to
+    public CompletableFuture<Integer> requestMtuAsync(int mtu, long timeoutMs) {
+        BleCompletion<Integer> completion = new BleCompletion<Integer>().setTimeout(mTimerWheel, timeoutMs);
+        MtuRequest operation = new MtuRequest(mtu, false);
+        operation.setCompletion(completion);
+        enqueueOperation(operation);
+        return completion.getFuture();
+    }
+
+    public CompletableFuture<Void> enableNotificationAsync(UUID uuid, long timeoutMs) {
+        BleCompletion<Void> completion = new BleCompletion<Void>().setTimeout(mTimerWheel, timeoutMs);
+        NotificationEnable operation = new NotificationEnable(uuid, BleProfile.CLIENT_CONFIG);
+        operation.setCompletion(completion);
+        enqueueOperation(operation);
+        return completion.getFuture();
+    }
+
+    // Subscribes uuid to indications, or back to notifications. Indications are confirmed by the stack one by one
+    public CompletableFuture<Void> enableIndicationAsync(UUID uuid, boolean indicate, long timeoutMs) {
+        BleCompletion<Void> completion = new BleCompletion<Void>().setTimeout(mTimerWheel, timeoutMs);
+        NotificationEnable operation = new NotificationEnable(uuid, BleProfile.CLIENT_CONFIG, indicate);
+        operation.setCompletion(completion);
+        enqueueOperation(operation);
+        return completion.getFuture();
+    }
+
+    private eBleSendResult sendMessage(BleCharacteristic characteristic, BleCompletion<Void> completion) {
+        eBleLane lane = BleProfile.getLane(characteristic.getUUID());
+        eBleFraming framing = mFraming;
+        eBleCompression compression = getCompression(characteristic, framing);
+        byte [] data = BleCodecRegistry.serialize(characteristic, (mFeatures & FEATURE_BINARY_CODEC) != 0);
+
+        byte [] compressed = BleCompressors.compress(compression, data);
+        if(compressed != null){
+            data = compressed;
+        }
+        else {
+            compression = eBleCompression.None;
+        }
+
+        if(!mOperationQueue.admit(lane, BleFragmenter.getFragmentCount(framing, data.length, mMaxPayloadSize))){
+            return eBleSendResult.Rejected;
+        }
+        if(!sendCharacteristic(characteristic.getUUID(), data, framing, compression, completion)){
+            return eBleSendResult.Rejected;
+        }
+        return mOperationQueue.getSendResult(lane);
+    }
+
+    // Codec the characteristic opted in to, if the server negotiated it
+    private eBleCompression getCompression(BleCharacteristic characteristic, eBleFraming framing){
+        eBleCompression compression = characteristic.getCompression();
+        if(framing != eBleFraming.Extended || !compression.isIn(mCompressionMask)){
+            return eBleCompression.None;
+        }
+        return compression;
+    }
+
+    // False if the message is too long for the framing
+    private boolean sendCharacteristic(UUID uuid, byte [] data, eBleFraming framing, eBleCompression compression){
+        return sendCharacteristic(uuid, data, framing, compression, null);
+    }
+
+    private boolean sendCharacteristic(UUID uuid, byte [] data, eBleFraming framing, eBleCompression compression,
+                                       BleCompletion<Void> completion){
         long tId = Thread.currentThread().getId();
-        Log.d(TAG, "Thread: " + tId + ". sendCharacteristic");
-
-        int currentPacketCount = 1;
-        int partsCount = ((data.length/(mMaxPayloadSize - HEADER_SIZE)) + 1);
-        int buffIdx = 0;
-
-        if(partsCount > 1){
-            for(currentPacketCount = 1; currentPacketCount <= partsCount; currentPacketCount++){
-                int bufSize = Math.min((mMaxPayloadSize - HEADER_SIZE), (data.length - buffIdx));
-                byte[] payload = new byte[bufSize + HEADER_SIZE];
-                payload[0] = (byte) currentPacketCount;
-                payload[1] = (byte) partsCount;
-                System.arraycopy(data, buffIdx, payload, HEADER_SIZE, bufSize);
-
-                enqueueOperation(new CharacteristicWrite(uuid, payload));
-                mQueueSem.release();
-                buffIdx += bufSize;
+        if(!isHotPath(uuid)){
+            Log.d(TAG, "Thread: " + tId + ". sendCharacteristic");
+        }
+
+        IBleFragmentSink<Void> sink = mFragmentSink;
+        if(completion != null){
+            sink = (fragmentUuid, fragment, target) -> enqueueFragment(fragmentUuid, fragment, completion);
+        }
+
+        if(mFragmenter.fragment(uuid, data, framing, compression, mMaxPayloadSize, null, sink) < 0){
+            Log.e(TAG, "Thread: " + tId + ". sendCharacteristic. Message too long for " + framing + " framing. Size = " + data.length);
+            return false;
+        }
+        return true;
+    }
+
+    private final IBleFragmentSink<Void> mFragmentSink = (uuid, fragment, target) -> enqueueFragment(uuid, fragment, null);
+
+    private void enqueueFragment(UUID uuid, byte [] fragment, BleCompletion<Void> completion){
+        // Bulk writes get no response - wait for the server to return credit instead of overrunning it
+        if(BleProfile.W_BULK.equals(uuid) && !mBulkCredits.acquire()){
+            mFragmenter.recycle(fragment);
+            if(completion != null){
+                completion.onFailed(new BleOperationException(eBleOperationError.Cancelled));
             }
+            return;
         }
-        else {
-            byte[] payload = new byte[data.length + HEADER_SIZE];
-            payload[0] = (byte) currentPacketCount;
-            payload[1] = (byte) partsCount;
-            System.arraycopy(data, buffIdx, payload, HEADER_SIZE, data.length);
-            enqueueOperation(new CharacteristicWrite(uuid, payload));
-            mQueueSem.release();
+
+        CharacteristicWrite operation = CharacteristicWrite.obtain(uuid, fragment);
+        if(completion != null){
+            completion.addOperation();
+            operation.setCompletion(completion);
         }
+        mOperationQueue.enqueue(operation, BleProfile.getLane(uuid), uuid, BleFragmenter.isWholeMessage(fragment));
     }
 
     private void startScan(){
@@ -198,7 +452,6 @@ public class BleClient {
                         Log.d(TAG, "Device found");
                         stopScan();
                         enqueueOperation(new Connect(result.getDevice()));
-                        mQueueSem.release();
                     }
                 }
 
@@ -214,82 +467,162 @@ public class BleClient {
         mBluetoothLeScanner.stopScan(mLeScanCallback);
     }
 
+    // Connection setup operations run in order on the control lane
     private void enqueueOperation(BleOperation operation) {
-        synchronized (mOperationList){
-            long tId = Thread.currentThread().getId();
-            Log.d(TAG, "Thread: " + tId + ". enqueueOperation");
-            mOperationList.addLast(operation);
-        }
+        enqueueOperation(operation, eBleLane.Control);
+    }
+
+    private void enqueueOperation(BleOperation operation, eBleLane lane) {
+        long tId = Thread.currentThread().getId();
+        Log.d(TAG, "Thread: " + tId + ". enqueueOperation. Lane = " + lane);
+        mOperationQueue.enqueue(operation, lane);
+    }
+
+    public void setScheduling(eBleScheduling scheduling){
+        mOperationQueue.setScheduling(scheduling);
+    }
+
+    // Only the newest queued value of this characteristic is written
+    public void setConflation(UUID uuid, boolean conflated){
+        mOperationQueue.setConflated(uuid, conflated);
+    }
+
+    public long getConflatedCount(){
+        return mOperationQueue.getConflatedCount();
     }
 
     private void executeOperation() {
         while (true){
             //Log.d(TAG, "executeOperation");
-            try {
-                mQueueSem.acquire();
-            } catch (InterruptedException e) {
-                continue;
+            BleOperation operation = mOperationQueue.take();
+            // term()
+            if (operation == null) {
+                return;
             }
-            //Log.d(TAG, "executeOperation 2");
 
-            try {
-                mExecuteSem.acquire();
-            } catch (InterruptedException e) {
+            //long tId = Thread.currentThread().getId();
+            //Log.d(TAG, "Thread: " + tId + ". executeOperation 2");
+
+            // Its request was given up on - the rest of the message isn't worth sending
+            if (operation.isAborted() || isDropped(operation)) {
+                releaseBulkCredit(operation);
+                endOperation();
+                recycleOperation(operation);
                 continue;
             }
 
-            //long tId = Thread.currentThread().getId();
-            //Log.d(TAG, "Thread: " + tId + ". executeOperation 3");
+            mPendingOperation = operation;
 
-            synchronized (mOperationList){
-                if(mOperationList.size() > 0){
-                    BleOperation operation = mOperationList.removeFirst();
+            // Connect and Disconnect end with a connection state change, the stack times them out itself
+            if (!(operation instanceof Connect) && !(operation instanceof Disconnect)) {
+                mWatchdog.arm(operation);
+            }
 
-                    mPendingOperation = operation;
+            boolean started = true;
+            if (operation instanceof Connect) {
+                BluetoothDevice device = ((Connect)operation).mDevice;
+                mBluetoothGatt = device.connectGatt(mContext, false, mGattCallback);
+            }
+            else if(operation instanceof Disconnect){
+                mBluetoothGatt.disconnect();
+            }
+            else if (operation instanceof MtuRequest) {
+                started = mBluetoothGatt.requestMtu(((MtuRequest)operation).mMTU);
+            }
+            else if (operation instanceof DiscoverServices) {
+                started = mBluetoothGatt.discoverServices();
+            }
+            else if (operation instanceof NotificationEnable) {
+                NotificationEnable op = (NotificationEnable)operation;
+                started = notificationEnable(op.mCharacteristicUUID, op.mDescriptorUUID, op.mIndicate);
+            }
+            else if (operation instanceof CharacteristicRead) {
+                started = readCharacteristic(((CharacteristicRead)operation).mCharacUUID);
+            }
+            else if (operation instanceof CharacteristicWrite) {
+                CharacteristicWrite op = (CharacteristicWrite)operation;
+                started = writeCharacteristic(op.mCharacUUID, op.mValue);
+            }
 
-                    if (operation instanceof Connect) {
-                        BluetoothDevice device = ((Connect)operation).mDevice;
-                        mBluetoothGatt = device.connectGatt(mContext, false, mGattCallback);
-                    }
-                    else if(operation instanceof Disconnect){
-                        mBluetoothGatt.disconnect();
-                    }
-                    else if (operation instanceof MtuRequest) {
-                        mBluetoothGatt.requestMtu(((MtuRequest)operation).mMTU);
-                    }
-                    else if (operation instanceof DiscoverServices) {
-                        mBluetoothGatt.discoverServices();
-                    }
-                    else if (operation instanceof NotificationEnable) {
-                        NotificationEnable op = (NotificationEnable)operation;
-                        notificationEnable(op.mCharacteristicUUID, op.mDescriptorUUID);
-                    }
-                    else if (operation instanceof CharacteristicRead) {
-                        mBluetoothGatt.readCharacteristic(((CharacteristicRead)operation).mCharacteristic);
-                    }
-                    else if (operation instanceof CharacteristicWrite) {
-                        CharacteristicWrite op = (CharacteristicWrite)operation;
-                        writeCharacteristic(op.mCharacUUID, op.mValue);
-                    }
-                }
+            if (!started) {
+                rejectOperation(operation);
             }
         }
     }
 
+    // The stack refused to start the operation - no callback will end it
+    private void rejectOperation(BleOperation operation){
+        if (mPendingOperation != operation) {
+            return;
+        }
+        if (mWatchdog.reject(operation)) {
+            mPendingOperation = null;
+            endOperation();
+        }
+    }
+
+    // The pending operation completed. False if the watchdog already gave up waiting for it
+    private boolean completeOperation(BleOperation operation, int status, Object result){
+        if (!mWatchdog.disarm(operation)) {
+            return false;
+        }
+        mLatencyRecorder.onCompleted(operation, System.nanoTime());
+        endOperation();
+        reportResult(operation, status, result);
+        return true;
+    }
+
+    private void reportResult(BleOperation operation, int status, Object result){
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            operation.complete(result);
+        }
+        else {
+            operation.fail(eBleOperationError.Gatt, status);
+        }
+    }
+
+    // A fragment of a message that already lost one
+    private boolean isDropped(BleOperation operation){
+        if (!(operation instanceof CharacteristicWrite)) {
+            return false;
+        }
+        CharacteristicWrite op = (CharacteristicWrite) operation;
+        return mMessageDropper.shouldDrop(op.mCharacUUID, op.mValue);
+    }
+
+    // A bulk packet that never went out must not hold a credit the server will never return
+    private void releaseBulkCredit(BleOperation operation){
+        if (operation instanceof CharacteristicWrite && BleProfile.W_BULK.equals(((CharacteristicWrite) operation).mCharacUUID)) {
+            mBulkCredits.release();
+        }
+    }
+
     private void endOperation() {
-        long tId = Thread.currentThread().getId();
-        Log.d(TAG, "Thread: " + tId + ". endOperation");
-        mExecuteSem.release();
+        mOperationQueue.endOperation();
+    }
+
+    // Bulk and ping packets are not logged - a log line per packet skews the bandwidth and latency numbers
+    private static boolean isHotPath(UUID uuid){
+        return BleProfile.W_BULK.equals(uuid) || BleProfile.W_PING.equals(uuid);
     }
 
     private void resetOperations(){
-        synchronized (mOperationList){
-            Log.d(TAG, "resetOperations");
-            mOperationList.clear();
-        }
+        Log.d(TAG, "resetOperations");
+        // A pending operation is left to its deadline, its callback may still be on the way
+        mWatchdog.reset();
+        mMessageDropper.reset();
         mPendingOperation = null;
-        endOperation();
-        mQueueSem.drainPermits();
+        mOperationQueue.reset();
+    }
+
+    private void recycleOperation(BleOperation operation){
+        // Dropped before it completed
+        operation.fail(eBleOperationError.Cancelled);
+        if (operation instanceof CharacteristicWrite) {
+            CharacteristicWrite op = (CharacteristicWrite) operation;
+            mFragmenter.recycle(op.mValue);
+            op.recycle();
+        }
     }
 
     private void clearGattCache(){
@@ -303,26 +636,35 @@ public class BleClient {
         }
     }
 
-    private void writeCharacteristic(UUID characUUID, byte[] value) {
+    // False if the write wasn't started
+    private boolean writeCharacteristic(UUID characUUID, byte[] value) {
         long tId = Thread.currentThread().getId();
 
         //check mBluetoothGatt is available
         if (mBluetoothGatt == null) {
             Log.e(TAG, "No connection");
-            return;
+            return false;
         }
         BluetoothGattService Service = mBluetoothGatt.getService(BleProfile.SERVER_UUID);
         if (Service == null) {
             Log.e(TAG, "Service not found!");
-            return;
+            return false;
         }
         BluetoothGattCharacteristic charac = Service.getCharacteristic(characUUID);
         if (charac == null) {
             Log.e(TAG, "Characteristic not found!");
-            return;
+            return false;
         }
 
-        Log.d(TAG, "Thread: " + tId + ". writeCharacteristic. UUID = " + characUUID);
+        if(BleProfile.W_BULK.equals(characUUID)){
+            charac.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        }
+        else {
+            if(!isHotPath(characUUID)){
+                Log.d(TAG, "Thread: " + tId + ". writeCharacteristic. UUID = " + characUUID);
+            }
+            charac.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+        }
 
         charac.setValue(value);
 
@@ -330,9 +672,51 @@ public class BleClient {
         if (!status) {
             Log.e(TAG, "Write failed");
         }
+        return status;
+    }
+
+    // False if the read wasn't started
+    private boolean readCharacteristic(UUID characUUID) {
+        if (mBluetoothGatt == null) {
+            Log.e(TAG, "No connection");
+            return false;
+        }
+        BluetoothGattService service = mBluetoothGatt.getService(BleProfile.SERVER_UUID);
+        if (service == null || service.getCharacteristic(characUUID) == null) {
+            Log.e(TAG, "Characteristic not found!");
+            return false;
+        }
+        return mBluetoothGatt.readCharacteristic(service.getCharacteristic(characUUID));
+    }
+
+    // Servers that predate the capabilities characteristics keep talking legacy framing
+    private void exchangeCapabilities(){
+        BluetoothGattService service = mBluetoothGatt.getService(BleProfile.SERVER_UUID);
+        if(service == null || service.getCharacteristic(BleProfile.W_CAPABILITIES) == null){
+            Log.d(TAG, "exchangeCapabilities. Not supported by server. Using " + mFraming);
+            return;
+        }
+
+        enqueueOperation(new NotificationEnable(BleProfile.R_CAPABILITIES, BleProfile.CLIENT_CONFIG));
+
+        mBulkSupported = service.getCharacteristic(BleProfile.W_BULK) != null
+                && service.getCharacteristic(BleProfile.R_BULK_CREDIT) != null;
+        if(mBulkSupported){
+            enqueueOperation(new NotificationEnable(BleProfile.R_BULK_CREDIT, BleProfile.CLIENT_CONFIG));
+        }
+
+        mPingSupported = service.getCharacteristic(BleProfile.W_PING) != null
+                && service.getCharacteristic(BleProfile.R_PONG) != null;
+        if(mPingSupported){
+            enqueueOperation(new NotificationEnable(BleProfile.R_PONG, BleProfile.CLIENT_CONFIG));
+        }
+
+        BleCharcCapabilities capabilities = new BleCharcCapabilities(BleProfile.W_CAPABILITIES, FRAMING, SUPPORTED_MASK, SUPPORTED_FEATURES);
+        sendCharacteristic(BleProfile.W_CAPABILITIES, capabilities.serialize(), eBleFraming.Legacy, eBleCompression.None);
     }
 
-    private void notificationEnable(UUID characteristicUUID, UUID descriptorUUID) {
+    // False if the descriptor write wasn't started
+    private boolean notificationEnable(UUID characteristicUUID, UUID descriptorUUID, boolean indicate) {
         BluetoothGattService service = mBluetoothGatt.getService(BleProfile.SERVER_UUID);
         // Get the counter characteristic
         BluetoothGattCharacteristic characteristic = service.getCharacteristic(characteristicUUID);
@@ -343,23 +727,93 @@ public class BleClient {
         // Write on the config descriptor to be notified when the value changes
         BluetoothGattDescriptor descriptor =
                 characteristic.getDescriptor(descriptorUUID);
-        descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-        mBluetoothGatt.writeDescriptor(descriptor);
+        descriptor.setValue(indicate ? BluetoothGattDescriptor.ENABLE_INDICATION_VALUE : BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        return mBluetoothGatt.writeDescriptor(descriptor);
+    }
+
+    // Receive ring thread. Reassembly and dispatch of a notified fragment
+    private void onFragment(String address, UUID uuid, byte [] value){
+        long tId = Thread.currentThread().getId();
+
+        if(uuid.toString().equals("9f63117d-680d-4ef5-9e64-92391cc37615") && getFragmentCommand(value) == eBleCommand.eCuBleCommand_Start){
+            Log.d(TAG, "Thread:" + tId + ". onFragment. COMMAND START");
+        }
+        else if(uuid.toString().equals("9f63117d-680d-4ef5-9e64-92391cc37615") && getFragmentCommand(value) == eBleCommand.eCuBleCommand_Stop){
+            Log.d(TAG, "Thread:" + tId + ". onFragment. COMMAND STOP");
+        }
+
+        if(value.length > mMaxPayloadSize){
+            Log.e(TAG, "Thread: " + tId + ". onFragment. PAYLOAD SIZE=" + value.length
+                    + ". WRONG PAYLOAD SIZE ON CHRC=" + uuid);
+        }
+
+        ByteBuffer message = mReassembler.onFragment(address, uuid, value);
+        if(message != null){
+            if(BleProfile.R_BULK_CREDIT.equals(uuid)){
+                mBulkCredits.onAck(new BleCharcCredit(message).getReceived());
+            }
+            else if(BleProfile.R_CAPABILITIES.equals(uuid)){
+                BleCharcCapabilities capabilities = new BleCharcCapabilities(BleProfile.R_CAPABILITIES, message);
+                mFraming = FRAMING.min(capabilities.getFraming());
+                mCompressionMask = SUPPORTED_MASK & capabilities.getCompressionMask();
+                mFeatures = SUPPORTED_FEATURES & capabilities.getFeatures();
+                Log.d(TAG, "onFragment. Server framing = " + capabilities.getFraming() + ". Using " + mFraming
+                        + ". Compression mask = " + mCompressionMask + ". Features = " + mFeatures);
+            }
+            else {
+                notifyMessageRcv(uuid, message);
+            }
+        }
     }
 
+    // The threads go whether or not a connection was ever opened
     public void term() {
+        mWatchdog.stop();
+        mLatencyRecorder.stopDump();
+        mReceiveRing.stop();
+
+        if(mExecutorOut != null){
+            // Interrupts take()
+            mExecutorOut.shutdownNow();
+            mExecutorOut = null;
+        }
+
         if (mBluetoothGatt == null) {
             return;
         }
         mBluetoothGatt.disconnect();
         mBluetoothGatt.close();
         mBluetoothGatt = null;
+    }
 
-        if(mExecutorOut != null){
-            mExecutorOut.shutdown();
-            mExecutorOut = null;
+    private final IBleWatchdogHandler mWatchdogHandler = new IBleWatchdogHandler() {
+        @Override
+        public void onExpired(BleOperation operation) {
+            Log.w(TAG, "onExpired. No callback for " + operation.getClass().getSimpleName());
+            // A reset may have dropped it already
+            if (mPendingOperation == operation) {
+                mPendingOperation = null;
+                endOperation();
+            }
         }
-    }
+
+        @Override
+        public void onRetry(BleOperation operation) {
+            mOperationQueue.retry(operation);
+        }
+
+        @Override
+        public void onFailed(BleOperation operation, eBleOperationError error) {
+            releaseBulkCredit(operation);
+            if (operation instanceof CharacteristicWrite) {
+                CharacteristicWrite op = (CharacteristicWrite) operation;
+                mMessageDropper.onFailed(op.mCharacUUID, op.mValue);
+            }
+            operation.fail(error);
+            notifyOperationFailed(operation, error);
+            recycleOperation(operation);
+        }
+    };
 
     // Various callback methods defined by the BLE API.
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
@@ -369,17 +823,32 @@ public class BleClient {
                 case STATE_DISCONNECTED:
                     Log.d(TAG, "onConnectionStateChange. State = STATE_DISCONNECTED");
                     resetOperations();
+                    mFraming = eBleFraming.Legacy;
+                    mCompressionMask = 0;
+                    mFeatures = 0;
+                    mBulkSupported = false;
+                    mPingSupported = false;
+                    mBulkCredits.reset();
+                    mReassembler.reset();
                     gatt.close();
+                    CompletableFuture<Integer> connected = mConnected;
+                    if(connected != null){
+                        connected.completeExceptionally(new BleOperationException(eBleOperationError.Cancelled));
+                    }
+                    CompletableFuture<Void> disconnected = mDisconnected;
+                    if(disconnected != null){
+                        disconnected.complete(null);
+                    }
                     break;
                 case STATE_CONNECTING:
                     Log.d(TAG, "onConnectionStateChange. State = STATE_CONNECTING");
                     break;
                 case STATE_CONNECTED:
                     Log.d(TAG, "onConnectionStateChange. State = STATE_CONNECTED");
-                    if (mPendingOperation instanceof Connect) {
-                        endOperation();
+                    BleOperation operation = mPendingOperation;
+                    if (operation instanceof Connect) {
+                        completeOperation(operation, status, null);
                         enqueueOperation(new DiscoverServices());
-                        mQueueSem.release();
                     }
                     break;
                 case STATE_DISCONNECTING:
@@ -397,18 +866,19 @@ public class BleClient {
                 // Handle the error
                 return;
             }
-            if (mPendingOperation instanceof DiscoverServices) {
-                endOperation();
-                enqueueOperation(new MtuRequest(MTU));
-                mQueueSem.release();
+            BleOperation operation = mPendingOperation;
+            if (operation instanceof DiscoverServices && completeOperation(operation, status, null)) {
+                enqueueOperation(new MtuRequest(mSetupMtu, true));
             }
         }
 
         @Override
         public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
             Log.d(TAG, "onCharacteristicRead");
-            if (mPendingOperation instanceof CharacteristicRead) {
-                endOperation();
+            BleOperation operation = mPendingOperation;
+            if (operation instanceof CharacteristicRead) {
+                byte [] value = characteristic.getValue();
+                completeOperation(operation, status, value != null ? value.clone() : new byte[0]);
             }
         }
 
@@ -416,79 +886,64 @@ public class BleClient {
         public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
             long tId = Thread.currentThread().getId();
 
-            Log.d(TAG, "Thread: " + tId + ". onCharacteristicWrite");
+            boolean hotPath = isHotPath(characteristic.getUuid());
+            if(!hotPath){
+                Log.d(TAG, "Thread: " + tId + ". onCharacteristicWrite");
+            }
 
             if(characteristic.getUuid().toString().equals("8a5dbb99-6159-4972-81de-48780ef1ea0e")){
-                if(characteristic.getValue()[2] == 0){
+                eBleCommand command = getFragmentCommand(characteristic.getValue());
+                if(command == eBleCommand.eCuBleCommand_Start){
                     Log.d(TAG, "onCharacteristicWrite. status=" + status + ". START");
                 }
-                else if(characteristic.getValue()[2] == 1){
+                else if(command == eBleCommand.eCuBleCommand_Stop){
                     Log.d(TAG, "onCharacteristicWrite. status=" + status + ". STOP");
                 }
-                else if(characteristic.getValue()[2] == 2){
+                else if(command == eBleCommand.eCuBleCommand_Get){
                     Log.d(TAG, "onCharacteristicWrite. GET. status=" + status + ". GET");
                 }
             }
 
-            if (mPendingOperation instanceof CharacteristicWrite) {
-                Log.d(TAG, "onCharacteristicWrite. END OPERATION");
+            BleOperation operation = mPendingOperation;
+            if (operation instanceof CharacteristicWrite && mWatchdog.disarm(operation)) {
+                if(!hotPath){
+                    Log.d(TAG, "onCharacteristicWrite. END OPERATION");
+                }
+                if(BleProfile.W_BULK.equals(((CharacteristicWrite) operation).mCharacUUID)){
+                    mBulkSentBytes.addAndGet(((CharacteristicWrite) operation).mValue.length);
+                }
+                mLatencyRecorder.onCompleted(operation, System.nanoTime());
+                // Cleared before the operation is recycled so a duplicate callback can't recycle it twice
+                mPendingOperation = null;
                 endOperation();
+                reportResult(operation, status, null);
+                notifyMessageSent(operation);
+                recycleOperation(operation);
             }
         }
 
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            // Notification CB
-            //Log.d(TAG, "onCharacteristicChanged");
-            long tId = Thread.currentThread().getId();
+            // Notification CB. Only hands the fragment over, see onFragment
+            long receiveTime = System.nanoTime();
 
             byte[] value = characteristic.getValue();
             if(value != null && value.length >0){
-
-                if(characteristic.getUuid().toString().equals("9f63117d-680d-4ef5-9e64-92391cc37615") && value[2] == eBleCommand.eCuBleCommand_Start.getCommand()){
-                    Log.d(TAG, "Thread:" + tId + ". onCharacteristicChanged. COMMAND START");
-                }
-                else if(characteristic.getUuid().toString().equals("9f63117d-680d-4ef5-9e64-92391cc37615") && value[2] == eBleCommand.eCuBleCommand_Stop.getCommand()){
-                    Log.d(TAG, "Thread:" + tId + ". onCharacteristicChanged. COMMAND STOP");
-                }
-
-                if(value.length > mMaxPayloadSize){
-                    Log.e(TAG, "Thread: " + tId + ". onCharacteristicChanged. PAYLOAD SIZE=" + value.length
-                            + ". WRONG PAYLOAD SIZE ON CHRC=" + characteristic.getUuid());
-                }
-
-                // Only one part - remove header & send CB
-                if(value[1] == 1){
-                    mIncomingByteBuff.clear();
-                    mIncomingByteBuff.put(value, HEADER_SIZE, value.length - HEADER_SIZE);
-                    notifyMessageRcv(characteristic.getUuid(), mIncomingByteBuff.array());
-                }
-
-                // First part - init byte array & copy data (without header)
-                else if(value[0] == 1){
-                    mIncomingByteBuff.clear();
-                    mIncomingByteBuff.put(value, HEADER_SIZE, value.length - HEADER_SIZE);
-                }
-                // Last part - copy to byte array (without header) & send CB
-                else if(value[0] == value[1]){
-                    mIncomingByteBuff.put(value, HEADER_SIZE, value.length - HEADER_SIZE);
-                    notifyMessageRcv(characteristic.getUuid(), mIncomingByteBuff.array());
-                }
-                // Accumulate parts to byte array (without header)
-                else {
-                    mIncomingByteBuff.put(value, HEADER_SIZE, value.length - HEADER_SIZE);
-                }
+                mReceivedBytes.addAndGet(value.length);
+                mReceiveRing.publish(gatt.getDevice().getAddress(), characteristic.getUuid(), value, receiveTime);
             }
             else{
                 Log.w(TAG, "onCharacteristicChanged. Recv with 0 data");
             }
+            mReceiveRing.onCallbackDone(receiveTime);
         }
 
         @Override
         public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
             Log.d(TAG, "onDescriptorWrite");
-            if (mPendingOperation instanceof NotificationEnable) {
-                endOperation();
+            BleOperation operation = mPendingOperation;
+            if (operation instanceof NotificationEnable) {
+                completeOperation(operation, status, null);
             }
         }
 
@@ -496,15 +951,27 @@ public class BleClient {
         public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
             Log.d(TAG, "onMtuChanged, mtu=" + mtu);
             mMaxPayloadSize = mtu - GATT_HEADER_SIZE;
-            mIncomingByteBuff = ByteBuffer.allocate(mMaxPayloadSize);
-            if (mPendingOperation instanceof MtuRequest){
-                endOperation();
+            BleOperation operation = mPendingOperation;
+            if (operation instanceof MtuRequest && completeOperation(operation, status, mtu) && ((MtuRequest) operation).mSetup){
                 enqueueOperation(new NotificationEnable(BleProfile.R_STATUS, BleProfile.CLIENT_CONFIG));
-                mQueueSem.release();
                 enqueueOperation(new NotificationEnable(BleProfile.R_BANDWIDTH, BleProfile.CLIENT_CONFIG));
-                mQueueSem.release();
-                enqueueOperation(new NotificationEnable(BleProfile.R_USER, BleProfile.CLIENT_CONFIG));
-                mQueueSem.release();
+                NotificationEnable user = new NotificationEnable(BleProfile.R_USER, BleProfile.CLIENT_CONFIG);
+                CompletableFuture<Integer> connected = mConnected;
+                if(connected != null){
+                    // The capabilities exchange is queued after it, on the same lane
+                    BleCompletion<Void> completion = new BleCompletion<>();
+                    completion.getFuture().whenComplete((result, throwable) -> {
+                        if(throwable != null){
+                            connected.completeExceptionally(throwable);
+                        }
+                        else {
+                            connected.complete(mtu);
+                        }
+                    });
+                    user.setCompletion(completion);
+                }
+                enqueueOperation(user);
+                exchangeCapabilities();
             }
         }
     };
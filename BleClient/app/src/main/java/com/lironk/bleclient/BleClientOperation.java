@@ -3,7 +3,10 @@ package com.lironk.bleclient;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGattCharacteristic;
 
+import com.lironk.blelib.enums.eBleOperationError;
 import com.lironk.blelib.main.BleOperation;
+import com.lironk.blelib.main.BleOperationSnapshot;
+import com.lironk.blelib.transport.BleFragmenter;
 
 import java.util.UUID;
 
@@ -24,37 +27,96 @@ class DiscoverServices extends BleOperation {
 }
 
 class CharacteristicWrite extends BleOperation {
+    private static final int MAX_POOL_SIZE = 64;
+    private static final Object sPoolSync = new Object();
+    private static CharacteristicWrite sPool;
+    private static int sPoolSize = 0;
+
     UUID mCharacUUID;
     byte[] mValue;
 
+    private CharacteristicWrite mNext;
+
     CharacteristicWrite (UUID characUUID, byte[] value) {
         mCharacUUID = characUUID;
         mValue = value;
     }
+
+    // Reuses a recycled operation when available instead of allocating a new one
+    static CharacteristicWrite obtain(UUID characUUID, byte[] value) {
+        synchronized (sPoolSync) {
+            if (sPool != null) {
+                CharacteristicWrite op = sPool;
+                sPool = op.mNext;
+                op.mNext = null;
+                sPoolSize--;
+                op.mCharacUUID = characUUID;
+                op.mValue = value;
+                return op;
+            }
+        }
+        return new CharacteristicWrite(characUUID, value);
+    }
+
+    // A lost callback doesn't mean it wasn't sent, see BleWatchdog
+    @Override
+    public boolean isResendable() {
+        return mValue == null || BleFragmenter.isWholeMessage(mValue);
+    }
+
+    @Override
+    public BleOperation snapshot(eBleOperationError error) {
+        return new BleOperationSnapshot(mCharacUUID, BleFragmenter.getMessageId(mValue), mValue != null ? mValue.length : 0, error);
+    }
+
+    // Must not be used after this call
+    void recycle() {
+        mCharacUUID = null;
+        mValue = null;
+        clearState();
+
+        synchronized (sPoolSync) {
+            if (sPoolSize < MAX_POOL_SIZE) {
+                mNext = sPool;
+                sPool = this;
+                sPoolSize++;
+            }
+        }
+    }
 }
 
 class CharacteristicRead extends BleOperation {
-    BluetoothGattCharacteristic mCharacteristic;
+    UUID mCharacUUID;
 
-    CharacteristicRead (BluetoothGattCharacteristic characteristic) {
-        mCharacteristic = characteristic;
+    CharacteristicRead (UUID characUUID) {
+        mCharacUUID = characUUID;
     }
 }
 
 class NotificationEnable extends BleOperation {
     UUID mCharacteristicUUID;
     UUID mDescriptorUUID;
+    // Indications instead of notifications
+    boolean mIndicate;
 
     NotificationEnable (UUID characteristicUUID, UUID descriptorUUID) {
+        this(characteristicUUID, descriptorUUID, false);
+    }
+
+    NotificationEnable (UUID characteristicUUID, UUID descriptorUUID, boolean indicate) {
         mCharacteristicUUID = characteristicUUID;
         mDescriptorUUID = descriptorUUID;
+        mIndicate = indicate;
     }
 }
 
 class MtuRequest extends BleOperation {
     int mMTU;
+    // Part of connection setup - the notifications and capabilities follow it
+    boolean mSetup;
 
-    MtuRequest (int mtu) {
+    MtuRequest (int mtu, boolean setup) {
         mMTU = mtu;
+        mSetup = setup;
     }
 }
\ No newline at end of file
@@ -0,0 +1,166 @@
+package com.lironk.bleclient;
+
+import android.util.Log;
+
+import com.lironk.blelib.main.BleProfile;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Runs the same bandwidth test at every ATT MTU of a list, from its own thread, and tabulates the throughput.
+// Each size is first renegotiated on the live connection. Most stacks won't go below an MTU they already agreed
+// to, and some refuse a second exchange - then the client reconnects with the size as the MTU it requests during
+// setup, so every row is measured at the MTU it claims
+public class BleMtuSweep {
+
+    private static final String TAG = "BleMtuSweep";
+
+    private static final long MTU_TIMEOUT_MS = 5000;
+    // Scan included
+    private static final long CONNECT_TIMEOUT_MS = 30_000;
+
+    private final BleClient mClient;
+    private final int [] mMtus;
+    private final IBleMtuTest mTest;
+    // Per row, -1 where it failed
+    private final int [] mNegotiated;
+    private final boolean [] mReconnected;
+    private final long [] mBytesPerSecond;
+    private Thread mThread;
+    private volatile boolean mRunning;
+    private volatile boolean mReconnecting;
+
+    public BleMtuSweep(BleClient client, int [] mtus, IBleMtuTest test) {
+        mClient = client;
+        mMtus = mtus.clone();
+        mTest = test;
+        mNegotiated = new int[mMtus.length];
+        mReconnected = new boolean[mMtus.length];
+        mBytesPerSecond = new long[mMtus.length];
+        mRunning = false;
+        mReconnecting = false;
+    }
+
+    // onFinished runs on the sweep thread once every size ran or the sweep gave up, not after a cancel.
+    // False if already running
+    public synchronized boolean start(Runnable onFinished){
+        if(mRunning){
+            return false;
+        }
+        for(int i = 0; i < mMtus.length; i++){
+            mNegotiated[i] = -1;
+            mReconnected[i] = false;
+            mBytesPerSecond[i] = -1;
+        }
+        mRunning = true;
+        mThread = new Thread(() -> run(onFinished), TAG);
+        mThread.start();
+        return true;
+    }
+
+    public synchronized void cancel(){
+        if(!mRunning){
+            return;
+        }
+        mRunning = false;
+        mThread.interrupt();
+        mThread = null;
+    }
+
+    public boolean isRunning(){
+        return mRunning;
+    }
+
+    // The sweep closed the connection itself and is opening the next one
+    public boolean isReconnecting(){
+        return mReconnecting;
+    }
+
+    // One row per size: requested and negotiated ATT MTU, whether it took a reconnection, and the throughput
+    public synchronized String dump(){
+        StringBuilder sb = new StringBuilder("mtu\tagreed\treconnect\tKB/s\n");
+        for(int i = 0; i < mMtus.length; i++){
+            sb.append(mMtus[i]).append('\t')
+                    .append(mNegotiated[i] >= 0 ? String.valueOf(mNegotiated[i]) : "-").append('\t')
+                    .append(mReconnected[i] ? "yes" : "no").append('\t')
+                    .append(mBytesPerSecond[i] >= 0 ? String.format(Locale.US, "%.2f", mBytesPerSecond[i] / 1000f) : "-")
+                    .append('\n');
+        }
+        return sb.toString();
+    }
+
+    private void run(Runnable onFinished){
+        try {
+            for(int i = 0; i < mMtus.length && mRunning; i++){
+                int mtu = mMtus[i];
+                int negotiated = requestMtu(mtu);
+                boolean reconnected = false;
+                if(negotiated < 0 || negotiated > mtu){
+                    Log.d(TAG, "run. MTU " + mtu + " not renegotiated (" + negotiated + "). Reconnecting");
+                    negotiated = reconnect(mtu);
+                    reconnected = true;
+                }
+                synchronized (this){
+                    mNegotiated[i] = negotiated;
+                    mReconnected[i] = reconnected;
+                }
+                if(negotiated < 0){
+                    // No connection left to test on
+                    Log.e(TAG, "run. No connection at MTU " + mtu + ". Giving up");
+                    break;
+                }
+
+                long bytesPerSecond = mTest.run(negotiated);
+                synchronized (this){
+                    mBytesPerSecond[i] = bytesPerSecond;
+                }
+                Log.d(TAG, "run. MTU " + mtu + " (" + negotiated + "): " + bytesPerSecond + " B/s");
+            }
+        } catch (InterruptedException e) {
+            // Cancelled
+        }
+        finally {
+            mReconnecting = false;
+            // Later connections are set up as usual. The current one keeps the last size
+            mClient.setSetupMtu(BleProfile.MTU);
+        }
+
+        Log.d(TAG, "run. Done.\n" + dump());
+        boolean finished;
+        synchronized (this){
+            finished = mRunning;
+            mRunning = false;
+        }
+        if(finished && onFinished != null){
+            onFinished.run();
+        }
+    }
+
+    // The agreed ATT MTU, -1 if the stack refused or timed out
+    private int requestMtu(int mtu) throws InterruptedException {
+        try {
+            return mClient.requestMtuAsync(mtu, MTU_TIMEOUT_MS).get();
+        } catch (ExecutionException e) {
+            Log.w(TAG, "requestMtu. " + mtu + " failed. " + e.getCause());
+            return -1;
+        }
+    }
+
+    // The ATT MTU of the new connection, -1 if it couldn't be opened in time
+    private int reconnect(int mtu) throws InterruptedException {
+        mReconnecting = true;
+        mClient.setSetupMtu(mtu);
+        try {
+            mClient.disconnectAsync().get(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            return mClient.connectAsync().get(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            Log.w(TAG, "reconnect. MTU " + mtu + " failed. " + e);
+            return -1;
+        }
+        finally {
+            mReconnecting = false;
+        }
+    }
+}
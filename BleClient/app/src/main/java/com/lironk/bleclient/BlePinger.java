@@ -0,0 +1,151 @@
+package com.lironk.bleclient;
+
+import android.util.Log;
+
+import com.lironk.blelib.characteristic.BleCharcPing;
+import com.lironk.blelib.metrics.BleLatencyHistogram;
+
+import java.nio.ByteBuffer;
+
+import static com.lironk.blelib.main.BleProfile.R_PONG;
+import static com.lironk.blelib.main.BleProfile.W_PING;
+
+// Client side of the ping test. Writes a numbered, timestamped BleCharcPing on W_PING from its own thread, the
+// server echoes it on R_PONG and the round trip goes into a BleLatencyHistogram. One ping is out at a time, the
+// next goes interval ms after the echo arrived or the ping timed out.
+// The round trip includes the client's queue and the stack on both sides - what control traffic actually sees
+public class BlePinger {
+
+    private static final String TAG = "BlePinger";
+
+    private static final long TIMEOUT_MS = 1000;
+
+    private final BleClient mClient;
+    private final BleLatencyHistogram mHistogram;
+    private final Object mLock = new Object();
+    private Thread mThread;
+    private volatile boolean mRunning;
+
+    // Sequence of the ping waiting for its echo, -1 for none
+    private long mOutstanding;
+    private long mSent;
+    private long mTimeouts;
+    // Echoes of pings that already timed out
+    private long mLate;
+
+    public BlePinger(BleClient client) {
+        mClient = client;
+        mHistogram = new BleLatencyHistogram();
+        mRunning = false;
+    }
+
+    // durationMs 0 or less pings until cancelled. onFinished runs on the ping thread once the duration passed,
+    // not after a cancel. False if already running
+    public synchronized boolean start(long durationMs, long intervalMs, Runnable onFinished){
+        if(mRunning){
+            return false;
+        }
+        synchronized (mLock){
+            mOutstanding = -1;
+            mSent = 0;
+            mTimeouts = 0;
+            mLate = 0;
+        }
+        mHistogram.reset();
+        mRunning = true;
+        mThread = new Thread(() -> run(durationMs, intervalMs, onFinished), TAG);
+        mThread.start();
+        return true;
+    }
+
+    public synchronized void cancel(){
+        if(!mRunning){
+            return;
+        }
+        mRunning = false;
+        mThread.interrupt();
+        mThread = null;
+    }
+
+    public boolean isRunning(){
+        return mRunning;
+    }
+
+    // An R_PONG message, receiveNs being the nanoTime it arrived at (not when it was delivered)
+    public void onPong(ByteBuffer data, long receiveNs){
+        if(data.remaining() < BleCharcPing.SIZE){
+            return;
+        }
+        BleCharcPing pong = new BleCharcPing(R_PONG, data);
+        synchronized (mLock){
+            if(pong.getSequence() != mOutstanding){
+                mLate++;
+                return;
+            }
+            mOutstanding = -1;
+            mLock.notifyAll();
+        }
+        mHistogram.record(receiveNs - pong.getTimeNs());
+    }
+
+    public BleLatencyHistogram getHistogram(){
+        return mHistogram;
+    }
+
+    public String dump(){
+        long sent;
+        long timeouts;
+        long late;
+        synchronized (mLock){
+            sent = mSent;
+            timeouts = mTimeouts;
+            late = mLate;
+        }
+        return "pings=" + sent + " echoed=" + mHistogram.getCount() + " timeouts=" + timeouts + " late=" + late
+                + " rtt (us) p50=" + mHistogram.getPercentileNs(50) / 1000
+                + " p90=" + mHistogram.getPercentileNs(90) / 1000
+                + " p99=" + mHistogram.getPercentileNs(99) / 1000
+                + " p99.9=" + mHistogram.getPercentileNs(99.9) / 1000
+                + " max=" + mHistogram.getMaxNs() / 1000;
+    }
+
+    private void run(long durationMs, long intervalMs, Runnable onFinished){
+        long deadline = durationMs > 0 ? System.nanoTime() + durationMs * 1_000_000 : Long.MAX_VALUE;
+        int sequence = 0;
+        try {
+            while (mRunning && System.nanoTime() < deadline){
+                synchronized (mLock){
+                    mOutstanding = sequence;
+                    mSent++;
+                }
+                mClient.sendMessage(new BleCharcPing(W_PING, sequence, System.nanoTime()));
+
+                long timeout = System.nanoTime() + TIMEOUT_MS * 1_000_000;
+                synchronized (mLock){
+                    long left;
+                    while (mOutstanding == sequence && (left = timeout - System.nanoTime()) > 0){
+                        mLock.wait(left / 1_000_000, (int) (left % 1_000_000));
+                    }
+                    if(mOutstanding == sequence){
+                        mOutstanding = -1;
+                        mTimeouts++;
+                    }
+                }
+                sequence++;
+                Thread.sleep(intervalMs);
+            }
+        } catch (InterruptedException e) {
+            // Cancelled
+        }
+
+        Log.d(TAG, "run. Done. " + dump());
+        boolean finished;
+        synchronized (this){
+            finished = mRunning;
+            mRunning = false;
+        }
+        if(finished && onFinished != null){
+            onFinished.run();
+        }
+    }
+}
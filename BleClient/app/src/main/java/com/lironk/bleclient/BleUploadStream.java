@@ -0,0 +1,141 @@
+package com.lironk.bleclient;
+
+import android.util.Log;
+
+import com.lironk.blelib.bench.BlePayloadGenerator;
+import com.lironk.blelib.bench.BleTestProfile;
+import com.lironk.blelib.characteristic.writable.BleCharcBulk;
+import com.lironk.blelib.enums.eBleSendResult;
+import com.lironk.blelib.queue.BleTokenBucket;
+
+// Client side of the upload and duplex tests. Writes BlePayloadGenerator payloads on W_BULK from its own thread
+// until the profile duration passed. The server's credits pace it (sendMessage() blocks while none are left),
+// a profile rate adds a token bucket on top
+public class BleUploadStream {
+
+    private static final String TAG = "BleUploadStream";
+
+    // Between checks for a cancel while the queue is full
+    private static final long WRITABLE_WAIT_MS = 100;
+
+    private final BleClient mClient;
+    private Thread mThread;
+    private volatile boolean mRunning;
+
+    private volatile long mSentMessages;
+    private volatile long mSentBytes;
+    private volatile long mStartTime;
+    private volatile long mStopTime;
+
+    public BleUploadStream(BleClient client) {
+        mClient = client;
+        mRunning = false;
+    }
+
+    // Payloads of size bytes. onFinished runs on the upload thread once the duration passed, not after a cancel.
+    // False if an upload is already running
+    public synchronized boolean start(BleTestProfile profile, int size, Runnable onFinished){
+        if(mRunning){
+            return false;
+        }
+        mRunning = true;
+        mSentMessages = 0;
+        mSentBytes = 0;
+        mStopTime = 0;
+        mStartTime = System.nanoTime();
+        mThread = new Thread(() -> run(profile, size, onFinished), TAG);
+        mThread.start();
+        return true;
+    }
+
+    // Ends the upload without reporting it. A message cut short by the cancel is not completed
+    public synchronized void cancel(){
+        if(!mRunning){
+            return;
+        }
+        mRunning = false;
+        // Wakes a wait for credit or tokens
+        mThread.interrupt();
+        mThread = null;
+    }
+
+    public boolean isRunning(){
+        return mRunning;
+    }
+
+    public long getSentMessages(){
+        return mSentMessages;
+    }
+
+    // Payload bytes queued, framing headers not included
+    public long getSentBytes(){
+        return mSentBytes;
+    }
+
+    public long getDurationNs(){
+        long stop = mStopTime;
+        return (stop != 0 ? stop : System.nanoTime()) - mStartTime;
+    }
+
+    private void run(BleTestProfile profile, int size, Runnable onFinished){
+        long durationMs = profile.getDurationMs();
+        long deadline = durationMs > 0 ? mStartTime + durationMs * 1_000_000 : Long.MAX_VALUE;
+        BlePayloadGenerator generator = new BlePayloadGenerator(profile.getPattern(), size);
+        BleTokenBucket bucket = profile.getRate() > 0 ? new BleTokenBucket(profile.getRate(), profile.getBurst(), mStartTime) : null;
+        Log.d(TAG, "run. Size = " + generator.getSize() + ". Profile: " + profile);
+
+        while (mRunning && System.nanoTime() < deadline){
+            byte [] payload = generator.next();
+            if(bucket != null && !awaitTokens(bucket, payload.length)){
+                break;
+            }
+
+            // Rejected when the queue is full with FailFast backpressure - the same payload goes again
+            eBleSendResult result = mClient.sendMessage(new BleCharcBulk(payload));
+            while (result == eBleSendResult.Rejected && mRunning){
+                mClient.awaitWritable(WRITABLE_WAIT_MS);
+                result = mClient.sendMessage(new BleCharcBulk(payload));
+            }
+            if(result == eBleSendResult.Rejected){
+                break;
+            }
+            mSentMessages++;
+            mSentBytes += payload.length;
+
+            while (result == eBleSendResult.Throttled && mRunning && !mClient.awaitWritable(WRITABLE_WAIT_MS)){
+                // Above the high watermark, hold off
+            }
+        }
+
+        mStopTime = System.nanoTime();
+        Log.d(TAG, "run. Done. Sent = " + mSentMessages + " messages, " + mSentBytes + " bytes in "
+                + (mStopTime - mStartTime) / 1_000_000 + " ms");
+
+        boolean finished;
+        synchronized (this){
+            finished = mRunning;
+            mRunning = false;
+        }
+        if(finished && onFinished != null){
+            onFinished.run();
+        }
+    }
+
+    // False if cancelled while waiting
+    private boolean awaitTokens(BleTokenBucket bucket, int size){
+        long now = System.nanoTime();
+        while (!bucket.tryAcquire(size, now)){
+            long waitNs = bucket.getWaitNs(size, now);
+            try {
+                Thread.sleep(waitNs / 1_000_000, (int) (waitNs % 1_000_000));
+            } catch (InterruptedException e) {
+                return false;
+            }
+            if(!mRunning){
+                return false;
+            }
+            now = System.nanoTime();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,8 @@
+package com.lironk.bleclient;
+
+public interface IBleMtuTest {
+
+    // Runs one bandwidth test on the current connection, from the sweep thread. Returns the payload bytes per
+    // second, -1 if the test failed
+    long run(int mtu) throws InterruptedException;
+}
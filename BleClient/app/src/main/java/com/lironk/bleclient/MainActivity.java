@@ -9,6 +9,8 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.util.Log;
 import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -17,34 +19,82 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
-import com.lironk.blelib.characteristic.readable.BleCharcBandwidth;
+import com.lironk.blelib.bench.BlePayloadVerifier;
+import com.lironk.blelib.bench.BleSequenceTracker;
+import com.lironk.blelib.bench.BleTestProfile;
+import com.lironk.blelib.bench.BleTestReport;
 import com.lironk.blelib.characteristic.readable.BleCharcAuthor;
 import com.lironk.blelib.characteristic.readable.BleCharcStatus;
 import com.lironk.blelib.characteristic.writable.BleCharcCommand;
 import com.lironk.blelib.enums.eBleCommand;
+import com.lironk.blelib.enums.eBleCompression;
+import com.lironk.blelib.enums.eBleDirection;
 import com.lironk.blelib.enums.eBleStatus;
 import com.lironk.blelib.main.BleCharacteristic;
 import com.lironk.blelib.main.BleOperation;
-import com.lironk.blelib.main.IBleEvents;
+import com.lironk.blelib.main.BleMessageBatch;
+import com.lironk.blelib.main.IBleBatchEvents;
 
+import java.nio.ByteBuffer;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.lironk.blelib.main.BleProfile.R_BANDWIDTH;
+import static com.lironk.blelib.main.BleProfile.R_PONG;
 import static com.lironk.blelib.main.BleProfile.R_USER;
 import static com.lironk.blelib.main.BleProfile.R_STATUS;
 import static com.lironk.blelib.main.Utils.bleStateToString;
 
 
-public class MainActivity extends AppCompatActivity implements IBleEvents {
+public class MainActivity extends AppCompatActivity implements IBleBatchEvents {
 
     private final String TAG = "BleClient";
     private final int LOCATION_PERMISSION = 66;
 
+    // Received messages are delivered in batches, the bandwidth counters are updated once per batch
+    private final int BATCH_MESSAGES = 64;
+    private final int BATCH_BYTES = 16 * 1024;
+    private final long BATCH_LATENCY_MS = 20;
+
+    // Subscription change ahead of a Start
+    private final long INDICATION_TIMEOUT_MS = 5000;
+    // Rows of the per payload size table
+    private final int MAX_STEPS = 64;
+
+    // test_profiles entries of the ping test, alone or under a download
+    private final int PING_PROFILE = 7;
+    private final int PING_LOAD_PROFILE = 8;
+    private final long PING_DURATION_MS = 10_000;
+    private final long PING_INTERVAL_MS = 20;
+
+    // test_profiles entry of the MTU sweep: a short download at each ATT MTU
+    private final int MTU_SWEEP_PROFILE = 9;
+    private final int [] MTU_SWEEP_SIZES = {23, 50, 100, 185, 247, 512};
+    private final long MTU_SWEEP_DURATION_MS = 10_000;
+    // Past the duration, for the Stop status to come back
+    private final long MTU_SWEEP_MARGIN_MS = 10_000;
+
     private BleClient mBleClient;
+    // Upload side of the upload and duplex tests
+    private BleUploadStream mUploadStream;
+    private BlePinger mPinger;
+    private BleMtuSweep mMtuSweep;
+    // Completed with the bytes per second of the sweep test being run
+    private volatile CompletableFuture<Long> mSweepResult;
+    // Ping alongside the test being run
+    private volatile boolean mPingUnderLoad;
+    // Start settings of the sweep tests, picked on the UI thread
+    private volatile eBleCompression mSweepCompression = eBleCompression.None;
+    private volatile int mSweepWindow;
+    // Profile of the test being run
+    private volatile BleTestProfile mProfile;
 
     private AtomicBoolean mBleConnected;
     private AtomicBoolean mStarted;
@@ -55,6 +105,30 @@ public class MainActivity extends AppCompatActivity implements IBleEvents {
     private long mStartTime;
     private long mEndTime;
 
+    // Notification bytes actually received (compressed), vs. mByteCount that counts application bytes
+    private long mRawStartBytes;
+    private boolean mCompressed;
+
+    // Guards mVerifier and the step counters: batches come from the receive thread or a deadline flush, the reset
+    // from initBandwidth() also comes on a disconnection (binder thread)
+    private final Object mStatsLock = new Object();
+    // Checks every bandwidth payload as it is counted
+    private final BlePayloadVerifier mVerifier = new BlePayloadVerifier();
+    // Tracker counters published once per batch for the UI
+    private volatile long mLostCount;
+    private volatile long mDuplicateCount;
+
+    // Bandwidth notifications are subscribed as indications
+    private volatile boolean mIndicating;
+
+    // Per payload size counters, a row starts whenever the size changes (a sweep step)
+    private int mStepCount;
+    private final int [] mStepSizes = new int[MAX_STEPS];
+    private final long [] mStepPackets = new long[MAX_STEPS];
+    private final long [] mStepBytes = new long[MAX_STEPS];
+    private final long [] mStepFirstNs = new long[MAX_STEPS];
+    private final long [] mStepLastNs = new long[MAX_STEPS];
+
     private ExecutorService mOutMsgExecutor;
 
     // Bluetooth API
@@ -68,7 +142,7 @@ public class MainActivity extends AppCompatActivity implements IBleEvents {
         public void run() {
             mHandler.postDelayed(this, 1000);
             TextView txtPackets = findViewById(R.id.txtPackets);
-            txtPackets.setText(mPacketCount.get() + "");
+            txtPackets.setText(getPacketsTxt());
             TextView txtBytes = findViewById(R.id.txtBytes);
             txtBytes.setText(mByteCount.get() + "");
             TextView sec = findViewById(R.id.txtDuration);
@@ -158,6 +232,10 @@ public class MainActivity extends AppCompatActivity implements IBleEvents {
 
         mBleClient = new BleClient(this);
         mBleClient.addBTMessageListener(this);
+        mBleClient.setBatching(BATCH_MESSAGES, BATCH_BYTES, BATCH_LATENCY_MS);
+        mUploadStream = new BleUploadStream(mBleClient);
+        mPinger = new BlePinger(mBleClient);
+        mMtuSweep = new BleMtuSweep(mBleClient, MTU_SWEEP_SIZES, this::runSweepTest);
 
         initBtnEvent();
     }
@@ -183,7 +261,50 @@ public class MainActivity extends AppCompatActivity implements IBleEvents {
                 }
                 else {
                     Log.d(TAG, "Thread: " + tId + ". Button Start click event");
-                    send(new BleCharcCommand(new byte[]{eBleCommand.eCuBleCommand_Start.getCommand()}));
+                    CheckBox chkCompress = findViewById(R.id.chkCompress);
+                    mCompressed = chkCompress.isChecked();
+                    eBleCompression compression = mCompressed ? eBleCompression.Lz : eBleCompression.None;
+                    Spinner spnProfile = findViewById(R.id.spnProfile);
+                    int position = spnProfile.getSelectedItemPosition();
+                    if((position == PING_PROFILE || position == PING_LOAD_PROFILE) && !mBleClient.isPingSupported()){
+                        Log.w(TAG, "Server doesn't echo pings");
+                        showToast("Server doesn't echo pings");
+                        return;
+                    }
+                    if(position == PING_PROFILE){
+                        startPing();
+                        return;
+                    }
+                    if(position == MTU_SWEEP_PROFILE){
+                        startMtuSweep(compression);
+                        return;
+                    }
+                    mPingUnderLoad = position == PING_LOAD_PROFILE;
+
+                    BleTestProfile profile = getProfile();
+                    if(profile.getDirection() != eBleDirection.Download && !mBleClient.isBulkSupported()){
+                        Log.w(TAG, "Server doesn't take uploads");
+                        showToast("Server doesn't take uploads");
+                        return;
+                    }
+                    mProfile = profile;
+                    BleCharcCommand command = new BleCharcCommand(eBleCommand.eCuBleCommand_Start, compression, getWindow(), profile);
+                    if(profile.isIndicate() != mIndicating){
+                        // The subscription is switched before the server streams
+                        mBleClient.enableIndicationAsync(R_BANDWIDTH, profile.isIndicate(), INDICATION_TIMEOUT_MS)
+                                .whenComplete((result, e) -> {
+                                    if(e != null){
+                                        Log.w(TAG, "Subscription change failed. " + e);
+                                        showToast("Subscription change failed");
+                                        return;
+                                    }
+                                    mIndicating = profile.isIndicate();
+                                    send(command);
+                                });
+                    }
+                    else {
+                        send(command);
+                    }
                 }
             }
             else {
@@ -210,6 +331,38 @@ public class MainActivity extends AppCompatActivity implements IBleEvents {
         });
     }
 
+    // 0 (first entry) lets the server tune the window
+    private int getWindow(){
+        Spinner spnWindow = findViewById(R.id.spnWindow);
+        if(spnWindow.getSelectedItemPosition() <= 0){
+            return 0;
+        }
+        return Integer.parseInt(spnWindow.getSelectedItem().toString());
+    }
+
+    // Presets of the test_profiles array
+    private BleTestProfile getProfile(){
+        Spinner spnProfile = findViewById(R.id.spnProfile);
+        switch (spnProfile.getSelectedItemPosition()){
+            case 1:
+                return new BleTestProfile().setDuration(10_000);
+            case 2:
+                return new BleTestProfile().setDuration(10_000).setPayloadSize(20).setSweep(240, 20);
+            case 3:
+                return new BleTestProfile().setDuration(30_000).setRate(8 * 1024, 0);
+            case 4:
+                return new BleTestProfile().setDuration(30_000).setIndicate(true);
+            case 5:
+                return new BleTestProfile().setDuration(30_000).setDirection(eBleDirection.Upload);
+            case 6:
+                return new BleTestProfile().setDuration(30_000).setDirection(eBleDirection.Duplex);
+            case PING_LOAD_PROFILE:
+                return new BleTestProfile().setDuration(PING_DURATION_MS);
+            default:
+                return new BleTestProfile();
+        }
+    }
+
     private void showToast(String txt){
         runOnUiThread(() -> Toast.makeText(this, txt, Toast.LENGTH_LONG).show());
     }
@@ -230,6 +383,13 @@ public class MainActivity extends AppCompatActivity implements IBleEvents {
                 break;
             case BluetoothProfile.STATE_DISCONNECTED:
                 mBleConnected.set(false);
+                mUploadStream.cancel();
+                mPinger.cancel();
+                if(!mMtuSweep.isReconnecting()){
+                    mMtuSweep.cancel();
+                }
+                // Notifications again on the next connection
+                mIndicating = false;
                 mStarted.set(false);
                 mHandler.removeCallbacks(mRunnable);
                 initBandwidth();
@@ -249,7 +409,177 @@ public class MainActivity extends AppCompatActivity implements IBleEvents {
     }
 
     @Override
-    public void bleDataReceived(UUID uuid, byte[] data) {
+    public void bleBatchReceived(BleMessageBatch batch) {
+        int packets = 0;
+        int bytes = 0;
+        // Once per batch. A status message in it reads the counters under the same lock
+        synchronized (mStatsLock){
+            for (int i = 0; i < batch.getCount(); i++){
+                UUID uuid = batch.getUuid(i);
+                if(R_PONG.equals(uuid)){
+                    mPinger.onPong(batch.getBuffer(i), batch.getReceiveTimeNs(i));
+                }
+                else if(R_BANDWIDTH.equals(uuid)){
+                    packets++;
+                    bytes += batch.getLength(i) + mBleClient.getHeaderSize();
+                    countStep(batch.getLength(i));
+                    mVerifier.verify(batch.getData(), batch.getOffset(i), batch.getLength(i), batch.getReceiveTimeNs(i));
+                }
+                else {
+                    messageReceived(uuid, batch.getBuffer(i));
+                }
+            }
+
+            if(packets > 0){
+                mPacketCount.addAndGet(packets);
+                mByteCount.addAndGet(bytes);
+                mLostCount = mVerifier.getTracker().getLost();
+                mDuplicateCount = mVerifier.getTracker().getDuplicate();
+            }
+        }
+    }
+
+    // Packet count, with the loss and duplicates so far when there are any
+    private String getPacketsTxt(){
+        long lost = mLostCount;
+        long duplicate = mDuplicateCount;
+        if(lost == 0 && duplicate == 0){
+            return mPacketCount.get() + "";
+        }
+        return mPacketCount.get() + " (lost " + lost + ", dup " + duplicate + ")";
+    }
+
+    // Server's counts against what arrived. Messages missing past the highest number received were queued but
+    // never arrived (dropped with the queue at the stop, or lost at the very end)
+    private String reconcile(BleTestReport report){
+        BleSequenceTracker tracker = mVerifier.getTracker();
+        long received = tracker.getReceived() + tracker.getLate();
+        long tail = report.getMessages() - (tracker.getHighest() + 1);
+        return "Server: " + report + ". Received " + received + " messages, "
+                + (report.getMessages() - received) + " missing (" + tracker.getLost() + " in stream, "
+                + Math.max(0, tail) + " at the end). " + tracker;
+    }
+
+    // One download per size of MTU_SWEEP_SIZES, see BleMtuSweep. The table goes to the log
+    private void startMtuSweep(eBleCompression compression){
+        mSweepCompression = compression;
+        mSweepWindow = getWindow();
+        if(!mMtuSweep.start(() -> {
+            String table = mMtuSweep.dump();
+            Log.d(TAG, "MTU sweep done.\n" + table);
+            updateStartBtnText();
+            runOnUiThread(() -> {
+                TextView txt = findViewById(R.id.txtBW);
+                txt.setText("MTU sweep done");
+            });
+        })){
+            return;
+        }
+        updateStartBtnText();
+    }
+
+    // Sweep thread. Starts a download on the current connection and waits for its Stop status
+    private long runSweepTest(int mtu) throws InterruptedException {
+        BleTestProfile profile = new BleTestProfile().setDuration(MTU_SWEEP_DURATION_MS);
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        mProfile = profile;
+        mPingUnderLoad = false;
+        mSweepResult = result;
+        Log.d(TAG, "runSweepTest. ATT MTU = " + mtu + ". Payload = " + mBleClient.getMtu());
+        mBleClient.sendMessage(new BleCharcCommand(eBleCommand.eCuBleCommand_Start, mSweepCompression, mSweepWindow, profile));
+        try {
+            return result.get(MTU_SWEEP_DURATION_MS + MTU_SWEEP_MARGIN_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            Log.w(TAG, "runSweepTest. ATT MTU " + mtu + " failed. " + e);
+            return -1;
+        }
+        finally {
+            mSweepResult = null;
+        }
+    }
+
+    private void completeSweepTest(long bytesPerSecond){
+        CompletableFuture<Long> result = mSweepResult;
+        if(result != null){
+            result.complete(bytesPerSecond);
+        }
+    }
+
+    // Ping alone, no Start. Compare with PING_LOAD_PROFILE for what a download does to the round trip
+    private void startPing(){
+        mStarted.set(true);
+        updateStartBtnText();
+        setBwTxt("");
+        mPinger.start(PING_DURATION_MS, PING_INTERVAL_MS, () -> {
+            Log.d(TAG, "Ping done. " + mPinger.dump());
+            mStarted.set(false);
+            updateStartBtnText();
+            runOnUiThread(() -> {
+                TextView txt = findViewById(R.id.txtBW);
+                txt.setText("p50 " + mPinger.getHistogram().getPercentileNs(50) / 1000 + "us p99 "
+                        + mPinger.getHistogram().getPercentileNs(99) / 1000 + "us");
+            });
+        });
+    }
+
+    // The server ends the test once the upload sent Stop
+    private void startUpload(){
+        BleTestProfile profile = mProfile;
+        if(profile == null || profile.getDirection() == eBleDirection.Download){
+            return;
+        }
+        int size = profile.getPayloadSize(0, mBleClient.getMtu());
+        mUploadStream.start(profile, size, () -> {
+            Log.d(TAG, "Upload done. Sent = " + mUploadStream.getSentMessages() + " messages");
+            mBleClient.sendMessage(new BleCharcCommand(new byte[]{eBleCommand.eCuBleCommand_Stop.getCommand()}));
+        });
+    }
+
+    // Logs what the upload sent against what the server received. Returns the upload bandwidth in KB/s
+    private String reconcileUpload(BleTestReport report){
+        long sent = mUploadStream.getSentMessages();
+        long missing = sent - report.getReceivedMessages();
+        String bandwidthStr = String.format("%.2f", report.getReceiveBytesPerSecond() / 1000f);
+        Log.d(TAG, "Upload. Sent " + sent + " messages, " + mUploadStream.getSentBytes() + " bytes in "
+                + mUploadStream.getDurationNs() / 1_000_000 + " ms. Server received " + report.getReceivedMessages()
+                + " messages, " + report.getReceivedBytes() + " bytes (" + report.getReceivedRawBytes() + " raw) in "
+                + report.getReceiveDurationMs() + " ms. Missing " + missing + " (lost in stream " + report.getReceiveLost()
+                + "), errors " + report.getReceiveErrors() + ". Upload bandwidth: " + bandwidthStr + " KB/s");
+        return "up " + bandwidthStr;
+    }
+
+    private void countStep(int size){
+        long now = System.nanoTime();
+        int step = mStepCount - 1;
+        if(step < 0 || mStepSizes[step] != size){
+            if(mStepCount == MAX_STEPS){
+                return;
+            }
+            step = mStepCount++;
+            mStepSizes[step] = size;
+            mStepPackets[step] = 0;
+            mStepBytes[step] = 0;
+            mStepFirstNs[step] = now;
+        }
+        mStepPackets[step]++;
+        mStepBytes[step] += size;
+        mStepLastNs[step] = now;
+    }
+
+    // Bandwidth of each payload size, from its first to its last notification
+    private String dumpSteps(){
+        StringBuilder sb = new StringBuilder();
+        sb.append("size\tpackets\tbytes\tms\tKB/s\n");
+        for (int i = 0; i < mStepCount; i++){
+            long durationNs = mStepLastNs[i] - mStepFirstNs[i];
+            long bandwidth = durationNs > 0 ? mStepBytes[i] * 1_000_000 / durationNs : 0;
+            sb.append(mStepSizes[i]).append('\t').append(mStepPackets[i]).append('\t').append(mStepBytes[i])
+                    .append('\t').append(durationNs / 1_000_000).append('\t').append(bandwidth).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private void messageReceived(UUID uuid, ByteBuffer data) {
         long tId = Thread.currentThread().getId();
 
         if(R_STATUS.equals(uuid)){
@@ -257,11 +587,6 @@ public class MainActivity extends AppCompatActivity implements IBleEvents {
             BleCharcStatus status = new BleCharcStatus(data);
             handleStatus(status);
         }
-        else if(R_BANDWIDTH.equals(uuid)){
-            BleCharcBandwidth bytes = new BleCharcBandwidth(data);
-            mPacketCount.set(mPacketCount.get() + 1);
-            mByteCount.set(mByteCount.get() + bytes.getData().length + mBleClient.getHeaderSize());
-        }
         else if(R_USER.equals(uuid)){
             Log.d(TAG, "characteristicReceived. Author");
             BleCharcAuthor Author = new BleCharcAuthor(data);
@@ -283,6 +608,14 @@ public class MainActivity extends AppCompatActivity implements IBleEvents {
         mByteCount.set(0);
         mStartTime = System.currentTimeMillis();
         mEndTime = 0;
+        mRawStartBytes = mBleClient.getReceivedBytes();
+        mBleClient.getReceiveRing().resetStats();
+        synchronized (mStatsLock){
+            mStepCount = 0;
+            mVerifier.reset();
+            mLostCount = 0;
+            mDuplicateCount = 0;
+        }
     }
 
     private void initAuthor(){
@@ -295,7 +628,7 @@ public class MainActivity extends AppCompatActivity implements IBleEvents {
     private void updateBandwidth(){
         runOnUiThread(() -> {
             TextView txtPackets = findViewById(R.id.txtPackets);
-            txtPackets.setText(mPacketCount.get() + "");
+            txtPackets.setText(getPacketsTxt());
             TextView txtBytes = findViewById(R.id.txtBytes);
             txtBytes.setText(mByteCount.get() + "");
             TextView sec = findViewById(R.id.txtDuration);
@@ -321,7 +654,7 @@ public class MainActivity extends AppCompatActivity implements IBleEvents {
     private void updateStartBtnText(){
         runOnUiThread(() -> {
             Button btnStart = findViewById(R.id.btnStart);
-            btnStart.setEnabled(!mStarted.get());
+            btnStart.setEnabled(!mStarted.get() && !mMtuSweep.isRunning());
 //            if(mStarted.get()){
 //                Button btnStart = findViewById(R.id.btnStart);
 //                btnStart.setEnabled(!mStarted.get());
@@ -350,14 +683,20 @@ public class MainActivity extends AppCompatActivity implements IBleEvents {
                 updateStartBtnText();
                 startHandler();
                 Log.d(TAG, "Thread: " + tId + ". Tx started");
+                startUpload();
+                if(mPingUnderLoad){
+                    mPinger.start(mProfile.getDurationMs(), PING_INTERVAL_MS, null);
+                }
             }
             else if(eBleStatus.eBleStatus_WrongState.and(status.getStatus())){
                 Log.w(TAG, "Start Error. Wrong state");
                 showToast("Start Error. Wrong state");
+                completeSweepTest(-1);
             }
             else {
                 Log.w(TAG, "Start Error");
                 showToast("Start Error");
+                completeSweepTest(-1);
             }
         }
         else if(status.getCommand() == eBleCommand.eCuBleCommand_Stop){
@@ -376,7 +715,38 @@ public class MainActivity extends AppCompatActivity implements IBleEvents {
 
                 Log.d(TAG, "Thread: " + tId + ". Tx stopped. Bandwidth: " + bandwidthStr + " KB/s");
 
+                if(mCompressed){
+                    float rawBandwidth = (((mBleClient.getReceivedBytes() - mRawStartBytes)/seconds)/1000);
+                    String rawBandwidthStr = String.format("%.2f", rawBandwidth);
+                    Log.d(TAG, "Thread: " + tId + ". Tx stopped. Raw bandwidth: " + rawBandwidthStr + " KB/s");
+                    bandwidthStr += " (raw " + rawBandwidthStr + ")";
+                }
+
+                Log.d(TAG, "Thread: " + tId + ". Tx stopped. Payloads: " + mVerifier);
+                if(status.getReport() != null && (mProfile == null || mProfile.getDirection() != eBleDirection.Upload)){
+                    Log.d(TAG, "Thread: " + tId + ". Tx stopped. " + reconcile(status.getReport()));
+                }
+                if(mVerifier.getErrors() > 0){
+                    bandwidthStr += " (" + mVerifier.getErrors() + " bad)";
+                }
+
+                if(status.getReport() != null && mProfile != null && mProfile.getDirection() != eBleDirection.Download){
+                    String uploadStr = reconcileUpload(status.getReport());
+                    bandwidthStr = mProfile.getDirection() == eBleDirection.Upload ? uploadStr : bandwidthStr + " / " + uploadStr;
+                }
+
+                if(mPingUnderLoad){
+                    // Ended with the stream, whatever its duration
+                    mPinger.cancel();
+                    Log.d(TAG, "Thread: " + tId + ". Tx stopped. Ping under load: " + mPinger.dump());
+                    bandwidthStr += " p99 " + mPinger.getHistogram().getPercentileNs(99) / 1000 + "us";
+                }
+
                 setBwTxt(bandwidthStr);
+                Log.d(TAG, "Thread: " + tId + ". Tx stopped. Latency (us):\n" + mBleClient.getLatencyRecorder().dump());
+                Log.d(TAG, "Thread: " + tId + ". Tx stopped. Receive (us):\n" + mBleClient.getReceiveRing().dump());
+                Log.d(TAG, "Thread: " + tId + ". Tx stopped. Payload sizes:\n" + dumpSteps());
+                completeSweepTest((long) (mByteCount.get() / seconds));
             }
             else if(eBleStatus.eBleStatus_WrongState.and(status.getStatus())){
                 Log.w(TAG, "Stop Error. Wrong state");
@@ -411,6 +781,11 @@ public class MainActivity extends AppCompatActivity implements IBleEvents {
 
     private void term(){
         mStarted.set(false);
+        if(mUploadStream != null){
+            mUploadStream.cancel();
+            mPinger.cancel();
+            mMtuSweep.cancel();
+        }
 
         if(mHandler != null){
             mHandler.removeCallbacks(mRunnable);
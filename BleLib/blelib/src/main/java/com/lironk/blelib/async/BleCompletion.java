@@ -0,0 +1,67 @@
+package com.lironk.blelib.async;
+
+import com.lironk.blelib.enums.eBleOperationError;
+import com.lironk.blelib.watchdog.BleTimeout;
+import com.lironk.blelib.watchdog.BleTimerWheel;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Completion of a caller's request, shared by the operations that carry it. Every operation reports once.
+// A request split into several operations (the fragments of a message) calls addOperation() before queuing
+// each one and seal() once all are queued - the future completes when the last of them does, and fails as soon
+// as one fails. Once the future is done (failed, timed out or cancelled by the caller) its queued operations
+// are dropped instead of sent.
+// Dependent stages run on the thread that completes the future - a GATT callback or the timer wheel. Use the
+// *Async stage variants for anything slow
+public class BleCompletion<T> {
+
+    private final CompletableFuture<T> mFuture;
+    private final AtomicInteger mPending;
+    private volatile T mResult;
+
+    public BleCompletion() {
+        mFuture = new CompletableFuture<>();
+        mPending = new AtomicInteger(1);
+    }
+
+    public CompletableFuture<T> getFuture(){
+        return mFuture;
+    }
+
+    // Fails the future with Timeout unless it completes within timeoutMs. 0 or less never times out
+    public BleCompletion<T> setTimeout(BleTimerWheel wheel, long timeoutMs){
+        if(timeoutMs > 0){
+            BleTimeout timeout = wheel.schedule(() -> onFailed(new BleOperationException(eBleOperationError.Timeout)), timeoutMs);
+            mFuture.whenComplete((result, throwable) -> timeout.cancel());
+        }
+        return this;
+    }
+
+    public void addOperation(){
+        mPending.incrementAndGet();
+    }
+
+    public void seal(){
+        onCompleted(null);
+    }
+
+    // Done but not completed normally - its remaining operations are not worth sending
+    public boolean isAborted(){
+        return mFuture.isCompletedExceptionally();
+    }
+
+    @SuppressWarnings("unchecked")
+    public void onCompleted(Object result){
+        if(result != null){
+            mResult = (T) result;
+        }
+        if(mPending.decrementAndGet() == 0){
+            mFuture.complete(mResult);
+        }
+    }
+
+    public void onFailed(Throwable throwable){
+        mFuture.completeExceptionally(throwable);
+    }
+}
@@ -0,0 +1,31 @@
+package com.lironk.blelib.async;
+
+import com.lironk.blelib.enums.eBleOperationError;
+
+// Completes a request's future when one of its operations failed
+public class BleOperationException extends Exception {
+
+    public static final int NO_STATUS = -1;
+
+    private final eBleOperationError mError;
+    private final int mStatus;
+
+    public BleOperationException(eBleOperationError error) {
+        this(error, NO_STATUS);
+    }
+
+    public BleOperationException(eBleOperationError error, int status) {
+        super(status == NO_STATUS ? error.toString() : error + ". GATT status = " + status);
+        mError = error;
+        mStatus = status;
+    }
+
+    public eBleOperationError getError(){
+        return mError;
+    }
+
+    // GATT status of the completion callback, NO_STATUS if there was none
+    public int getStatus(){
+        return mStatus;
+    }
+}
@@ -0,0 +1,137 @@
+package com.lironk.blelib.bench;
+
+import com.lironk.blelib.enums.eBlePattern;
+
+// Bandwidth test payloads the receiver can check (see BlePayloadVerifier):
+// [counter 4][size 4][pattern 1][time 4][body]. The counter goes up by one per message - it is the sequence number -
+// and seeds the body of a Random payload, so the receiver regenerates it instead of keeping a copy.
+// The time is in microseconds since the generator was created and wraps after about 71 minutes.
+// Payloads are written into a small pool of preallocated buffers, next() doesn't allocate. A returned buffer is
+// overwritten poolSize calls later - the caller must be done with it (or have copied it) by then
+public class BlePayloadGenerator {
+
+    public static final int HEADER_SIZE = 13;
+
+    static final int COUNTER_OFFSET = 0;
+    static final int SIZE_OFFSET = 4;
+    static final int PATTERN_OFFSET = 8;
+    static final int TIME_OFFSET = 9;
+
+    private static final int DEFAULT_POOL_SIZE = 4;
+    private static final byte FIXED_VALUE = 1;
+
+    private final eBlePattern mPattern;
+    private final byte [][] mPool;
+    private int mNext;
+    private int mSize;
+    private int mCounter;
+    private final long mStartTime;
+
+    public BlePayloadGenerator(eBlePattern pattern, int size) {
+        this(pattern, size, DEFAULT_POOL_SIZE);
+    }
+
+    public BlePayloadGenerator(eBlePattern pattern, int size, int poolSize) {
+        mPattern = pattern;
+        mPool = new byte[Math.max(1, poolSize)][];
+        mCounter = 0;
+        mStartTime = System.nanoTime();
+        mSize = -1;
+        setSize(size);
+    }
+
+    // Payloads smaller than the header are sent as a bare header.
+    // Reallocates the pool if the size changed, the counter goes on
+    public void setSize(int size){
+        size = Math.max(HEADER_SIZE, size);
+        if(size == mSize){
+            return;
+        }
+        mSize = size;
+        mNext = 0;
+        for (int i = 0; i < mPool.length; i++){
+            mPool[i] = new byte[size];
+            // Only the header changes between Fixed payloads
+            if(mPattern == eBlePattern.Fixed){
+                for (int j = HEADER_SIZE; j < size; j++){
+                    mPool[i][j] = FIXED_VALUE;
+                }
+            }
+        }
+    }
+
+    public int getSize(){
+        return mSize;
+    }
+
+    public eBlePattern getPattern(){
+        return mPattern;
+    }
+
+    // Counter of the next payload
+    public int getCounter(){
+        return mCounter;
+    }
+
+    public byte [] next(){
+        byte [] payload = mPool[mNext];
+        mNext = (mNext + 1) % mPool.length;
+
+        int counter = mCounter++;
+        writeInt(payload, COUNTER_OFFSET, counter);
+        writeInt(payload, SIZE_OFFSET, mSize);
+        payload[PATTERN_OFFSET] = mPattern.getId();
+        writeInt(payload, TIME_OFFSET, (int) ((System.nanoTime() - mStartTime) / 1000));
+        if(mPattern == eBlePattern.Random){
+            long state = seed(counter);
+            int i = HEADER_SIZE;
+            while (i < mSize){
+                state = step(state);
+                long word = scramble(state);
+                for (int k = 0; k < 8 && i < mSize; k++, i++){
+                    payload[i] = (byte) word;
+                    word >>>= 8;
+                }
+            }
+        }
+        return payload;
+    }
+
+    // Body byte of a Fixed payload
+    static byte fixedValue(){
+        return FIXED_VALUE;
+    }
+
+    // xorshift64* state of a counter. Never 0
+    static long seed(int counter){
+        long z = (counter & 0xFFFFFFFFL) + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z ^= z >>> 31;
+        return z != 0 ? z : 0x9E3779B97F4A7C15L;
+    }
+
+    static long step(long state){
+        state ^= state >>> 12;
+        state ^= state << 25;
+        state ^= state >>> 27;
+        return state;
+    }
+
+    // 8 body bytes, low byte first
+    static long scramble(long state){
+        return state * 0x2545F4914F6CDD1DL;
+    }
+
+    static void writeInt(byte [] data, int offset, int value){
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    static int readInt(byte [] data, int offset){
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+}
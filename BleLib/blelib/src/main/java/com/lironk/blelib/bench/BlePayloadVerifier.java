@@ -0,0 +1,133 @@
+package com.lironk.blelib.bench;
+
+import com.lironk.blelib.enums.eBleArrival;
+import com.lironk.blelib.enums.eBlePattern;
+
+import static com.lironk.blelib.bench.BlePayloadGenerator.COUNTER_OFFSET;
+import static com.lironk.blelib.bench.BlePayloadGenerator.HEADER_SIZE;
+import static com.lironk.blelib.bench.BlePayloadGenerator.PATTERN_OFFSET;
+import static com.lironk.blelib.bench.BlePayloadGenerator.SIZE_OFFSET;
+import static com.lironk.blelib.bench.BlePayloadGenerator.TIME_OFFSET;
+
+// Checks BlePayloadGenerator payloads as they arrive, in place: the body is regenerated word by word from the
+// counter and compared, nothing is allocated per payload.
+// A payload is counted once, as the first of: corrupt header, duplicate, short (fewer bytes than its header says),
+// corrupt body or verified. Counters with a good header go through a BleSequenceTracker, for loss and reordering.
+// Not thread safe - call it from the thread delivering the payloads
+public class BlePayloadVerifier {
+
+    private long mVerified;
+    private long mVerifiedBytes;
+    private long mCorrupt;
+    private long mShort;
+    private long mDuplicate;
+    private final BleSequenceTracker mTracker;
+
+    public BlePayloadVerifier() {
+        mTracker = new BleSequenceTracker();
+        reset();
+    }
+
+    public void reset(){
+        mVerified = 0;
+        mVerifiedBytes = 0;
+        mCorrupt = 0;
+        mShort = 0;
+        mDuplicate = 0;
+        mTracker.reset();
+    }
+
+    // False unless the payload verified. receiveNs is the nanoTime it arrived at
+    public boolean verify(byte [] data, int offset, int length, long receiveNs){
+        if(length < HEADER_SIZE){
+            mShort++;
+            return false;
+        }
+
+        long counter = BlePayloadGenerator.readInt(data, offset + COUNTER_OFFSET) & 0xFFFFFFFFL;
+        int size = BlePayloadGenerator.readInt(data, offset + SIZE_OFFSET);
+        eBlePattern pattern = eBlePattern.getPattern(data[offset + PATTERN_OFFSET]);
+        if(pattern == null || size < HEADER_SIZE || length > size){
+            mCorrupt++;
+            return false;
+        }
+        int sendUs = BlePayloadGenerator.readInt(data, offset + TIME_OFFSET);
+        if(mTracker.onReceived(counter, sendUs, receiveNs) == eBleArrival.Duplicate){
+            mDuplicate++;
+            return false;
+        }
+        if(length < size){
+            mShort++;
+            return false;
+        }
+
+        if(!verifyBody(data, offset, length, (int) counter, pattern)){
+            mCorrupt++;
+            return false;
+        }
+        mVerified++;
+        mVerifiedBytes += length;
+        return true;
+    }
+
+    private static boolean verifyBody(byte [] data, int offset, int length, int counter, eBlePattern pattern){
+        int end = offset + length;
+        int i = offset + HEADER_SIZE;
+        if(pattern == eBlePattern.Fixed){
+            byte value = BlePayloadGenerator.fixedValue();
+            for (; i < end; i++){
+                if(data[i] != value){
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        long state = BlePayloadGenerator.seed(counter);
+        while (i < end){
+            state = BlePayloadGenerator.step(state);
+            long word = BlePayloadGenerator.scramble(state);
+            for (int k = 0; k < 8 && i < end; k++, i++){
+                if(data[i] != (byte) word){
+                    return false;
+                }
+                word >>>= 8;
+            }
+        }
+        return true;
+    }
+
+    public long getVerified(){
+        return mVerified;
+    }
+
+    public long getVerifiedBytes(){
+        return mVerifiedBytes;
+    }
+
+    public long getCorrupt(){
+        return mCorrupt;
+    }
+
+    public long getShort(){
+        return mShort;
+    }
+
+    public long getDuplicate(){
+        return mDuplicate;
+    }
+
+    public BleSequenceTracker getTracker(){
+        return mTracker;
+    }
+
+    // Payloads that didn't verify
+    public long getErrors(){
+        return mCorrupt + mShort + mDuplicate;
+    }
+
+    @Override
+    public String toString() {
+        return "verified=" + mVerified + " corrupt=" + mCorrupt + " short=" + mShort + " duplicate=" + mDuplicate;
+    }
+}
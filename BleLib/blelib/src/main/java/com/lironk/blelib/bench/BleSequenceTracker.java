@@ -0,0 +1,177 @@
+package com.lironk.blelib.bench;
+
+import com.lironk.blelib.enums.eBleArrival;
+
+import java.util.Arrays;
+
+// Loss, reorder and duplicate tracking of a numbered stream, over a bitmap of the last WINDOW numbers.
+// A number skipped by a higher one is missing until it arrives (reordered) or the window moves past it (lost).
+// getLost() includes the missing ones, so it is up to date after every message.
+// Also keeps the RFC 3550 interarrival jitter from the sender timestamps. Not thread safe
+public class BleSequenceTracker {
+
+    public static final int WINDOW = 1024;
+
+    private final long [] mBits;
+    // -1 before the first message
+    private long mFirst;
+    private long mHighest;
+
+    private long mReceived;
+    private long mLost;
+    private long mMissing;
+    private long mReordered;
+    private long mDuplicate;
+    private long mLate;
+    private long mMaxReorder;
+
+    private long mJitterUs;
+    private int mLastSendUs;
+    private long mLastReceiveUs;
+
+    public BleSequenceTracker() {
+        mBits = new long[WINDOW / 64];
+        reset();
+    }
+
+    public void reset(){
+        Arrays.fill(mBits, 0);
+        mFirst = -1;
+        mHighest = -1;
+        mReceived = 0;
+        mLost = 0;
+        mMissing = 0;
+        mReordered = 0;
+        mDuplicate = 0;
+        mLate = 0;
+        mMaxReorder = 0;
+        mJitterUs = 0;
+    }
+
+    // sendUs is the sender's microsecond clock, it may wrap
+    public eBleArrival onReceived(long sequence, int sendUs, long receiveNs){
+        if(mHighest < 0){
+            mFirst = sequence;
+            mHighest = sequence;
+            set(sequence);
+            mReceived++;
+            mLastSendUs = sendUs;
+            mLastReceiveUs = receiveNs / 1000;
+            return eBleArrival.InOrder;
+        }
+
+        eBleArrival arrival;
+        if(sequence > mHighest){
+            advance(sequence);
+            arrival = eBleArrival.InOrder;
+        }
+        else if(sequence < mFirst || mHighest - sequence >= WINDOW){
+            mLate++;
+            return eBleArrival.Late;
+        }
+        else if(isSet(sequence)){
+            mDuplicate++;
+            return eBleArrival.Duplicate;
+        }
+        else {
+            mMissing--;
+            mReordered++;
+            mMaxReorder = Math.max(mMaxReorder, mHighest - sequence);
+            arrival = eBleArrival.Reordered;
+        }
+        set(sequence);
+        mReceived++;
+
+        // J += (|D| - J) / 16, D being the change in transit time between consecutive arrivals
+        long receiveUs = receiveNs / 1000;
+        long transitDelta = (receiveUs - mLastReceiveUs) - (sendUs - mLastSendUs);
+        mJitterUs += (Math.abs(transitDelta) - mJitterUs) / 16;
+        mLastSendUs = sendUs;
+        mLastReceiveUs = receiveUs;
+        return arrival;
+    }
+
+    // sequence becomes the highest number. Numbers leaving the window unset are lost
+    private void advance(long sequence){
+        long gap = sequence - mHighest - 1;
+        if(sequence - mHighest >= WINDOW){
+            // The whole window is left behind, only the last WINDOW - 1 skipped numbers are still in it
+            mLost += mMissing + gap - (WINDOW - 1);
+            mMissing = WINDOW - 1;
+            Arrays.fill(mBits, 0);
+        }
+        else {
+            for (long s = mHighest + 1; s <= sequence; s++){
+                long old = s - WINDOW;
+                if(old >= mFirst && !isSet(old)){
+                    mMissing--;
+                    mLost++;
+                }
+                clear(s);
+            }
+            mMissing += gap;
+        }
+        mHighest = sequence;
+    }
+
+    private boolean isSet(long sequence){
+        int bit = (int) (sequence % WINDOW);
+        return (mBits[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    private void set(long sequence){
+        int bit = (int) (sequence % WINDOW);
+        mBits[bit >>> 6] |= 1L << bit;
+    }
+
+    private void clear(long sequence){
+        int bit = (int) (sequence % WINDOW);
+        mBits[bit >>> 6] &= ~(1L << bit);
+    }
+
+    // Distinct numbers received in time, late ones aren't included
+    public long getReceived(){
+        return mReceived;
+    }
+
+    // Numbers from the first to the highest received, -1 before the first message
+    public long getFirst(){
+        return mFirst;
+    }
+
+    public long getHighest(){
+        return mHighest;
+    }
+
+    // Lost or still missing
+    public long getLost(){
+        return mLost + mMissing;
+    }
+
+    public long getReordered(){
+        return mReordered;
+    }
+
+    // How far below the highest number a reordered message arrived, at most
+    public long getMaxReorder(){
+        return mMaxReorder;
+    }
+
+    public long getDuplicate(){
+        return mDuplicate;
+    }
+
+    public long getLate(){
+        return mLate;
+    }
+
+    public long getJitterUs(){
+        return mJitterUs;
+    }
+
+    @Override
+    public String toString() {
+        return "received=" + mReceived + " lost=" + getLost() + " reordered=" + mReordered + " (max " + mMaxReorder
+                + ") duplicate=" + mDuplicate + " late=" + mLate + " jitter=" + mJitterUs + "us";
+    }
+}
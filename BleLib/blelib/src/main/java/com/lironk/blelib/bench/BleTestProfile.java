@@ -0,0 +1,231 @@
+package com.lironk.blelib.bench;
+
+import com.lironk.blelib.codec.BleTlvReader;
+import com.lironk.blelib.codec.BleTlvWriter;
+import com.lironk.blelib.enums.eBleDirection;
+import com.lironk.blelib.enums.eBlePattern;
+
+import java.nio.ByteBuffer;
+
+// Bandwidth test scenario carried by the Start command. Only fields that differ from the defaults are sent,
+// a Start without a profile runs the default one: a minute of MTU sized Random payloads, as fast as they go.
+// A size sweep runs one step of durationMs per payload size, from the payload size up to the sweep max size
+public class BleTestProfile {
+
+    public static final long DEFAULT_DURATION_MS = 60_000;
+
+    // Binary field tags
+    private static final int DURATION_TAG = 1;
+    private static final int PAYLOAD_SIZE_TAG = 2;
+    private static final int SWEEP_MAX_SIZE_TAG = 3;
+    private static final int SWEEP_STEP_TAG = 4;
+    private static final int RATE_TAG = 5;
+    private static final int BURST_TAG = 6;
+    private static final int DIRECTION_TAG = 7;
+    private static final int INDICATE_TAG = 8;
+    private static final int PATTERN_TAG = 9;
+
+    // Per step, 0 runs until Stop
+    private long mDurationMs;
+    // 0 is the largest single fragment payload (the MTU)
+    private int mPayloadSize;
+    // 0 for no sweep
+    private int mSweepMaxSize;
+    private int mSweepStep;
+    // Bytes per second, 0 for unlimited
+    private long mRate;
+    // Token bucket size in bytes, 0 lets the sender pick
+    private long mBurst;
+    private eBleDirection mDirection;
+    private boolean mIndicate;
+    // Body of the payloads, see BlePayloadGenerator
+    private eBlePattern mPattern;
+
+    public BleTestProfile() {
+        mDurationMs = DEFAULT_DURATION_MS;
+        mPayloadSize = 0;
+        mSweepMaxSize = 0;
+        mSweepStep = 0;
+        mRate = 0;
+        mBurst = 0;
+        mDirection = eBleDirection.Download;
+        mIndicate = false;
+        mPattern = eBlePattern.Random;
+    }
+
+    public BleTestProfile(ByteBuffer data) {
+        this();
+        read(new BleTlvReader(data));
+    }
+
+    public BleTestProfile setDuration(long durationMs){
+        mDurationMs = durationMs;
+        return this;
+    }
+
+    public BleTestProfile setPayloadSize(int payloadSize){
+        mPayloadSize = Math.max(0, payloadSize);
+        return this;
+    }
+
+    // Steps from the payload size up to maxSize, step bytes apart
+    public BleTestProfile setSweep(int maxSize, int step){
+        mSweepMaxSize = Math.max(0, maxSize);
+        mSweepStep = Math.max(0, step);
+        return this;
+    }
+
+    public BleTestProfile setRate(long bytesPerSecond, long burst){
+        mRate = Math.max(0, bytesPerSecond);
+        mBurst = Math.max(0, burst);
+        return this;
+    }
+
+    public BleTestProfile setDirection(eBleDirection direction){
+        mDirection = direction;
+        return this;
+    }
+
+    public BleTestProfile setIndicate(boolean indicate){
+        mIndicate = indicate;
+        return this;
+    }
+
+    public BleTestProfile setPattern(eBlePattern pattern){
+        mPattern = pattern;
+        return this;
+    }
+
+    public long getDurationMs(){
+        return mDurationMs;
+    }
+
+    public int getPayloadSize(){
+        return mPayloadSize;
+    }
+
+    public boolean isSweep(){
+        return mSweepMaxSize > mPayloadSize && mSweepStep > 0 && mPayloadSize > 0;
+    }
+
+    public int getStepCount(){
+        if(!isSweep()){
+            return 1;
+        }
+        return (mSweepMaxSize - mPayloadSize) / mSweepStep + 1;
+    }
+
+    // Payload size of step, mtu stands in for a size of 0
+    public int getPayloadSize(int step, int mtu){
+        if(!isSweep()){
+            return mPayloadSize > 0 ? mPayloadSize : mtu;
+        }
+        return mPayloadSize + step * mSweepStep;
+    }
+
+    // Step sending payloads of size bytes, -1 if none does
+    public int getStep(int size, int mtu){
+        if(!isSweep()){
+            return size == getPayloadSize(0, mtu) ? 0 : -1;
+        }
+        int offset = size - mPayloadSize;
+        if(offset < 0 || offset % mSweepStep != 0 || size > mSweepMaxSize){
+            return -1;
+        }
+        return offset / mSweepStep;
+    }
+
+    public long getRate(){
+        return mRate;
+    }
+
+    public long getBurst(){
+        return mBurst;
+    }
+
+    public eBleDirection getDirection(){
+        return mDirection;
+    }
+
+    public boolean isIndicate(){
+        return mIndicate;
+    }
+
+    public eBlePattern getPattern(){
+        return mPattern;
+    }
+
+    public void write(BleTlvWriter writer){
+        if(mDurationMs != DEFAULT_DURATION_MS){
+            writer.writeLong(DURATION_TAG, mDurationMs);
+        }
+        if(mPayloadSize != 0){
+            writer.writeInt(PAYLOAD_SIZE_TAG, mPayloadSize);
+        }
+        if(mSweepMaxSize != 0){
+            writer.writeInt(SWEEP_MAX_SIZE_TAG, mSweepMaxSize);
+            writer.writeInt(SWEEP_STEP_TAG, mSweepStep);
+        }
+        if(mRate != 0){
+            writer.writeLong(RATE_TAG, mRate);
+            writer.writeLong(BURST_TAG, mBurst);
+        }
+        if(mDirection != eBleDirection.Download){
+            writer.writeInt(DIRECTION_TAG, mDirection.getId());
+        }
+        if(mIndicate){
+            writer.writeInt(INDICATE_TAG, 1);
+        }
+        if(mPattern != eBlePattern.Random){
+            writer.writeInt(PATTERN_TAG, mPattern.getId());
+        }
+    }
+
+    private void read(BleTlvReader reader){
+        while (reader.next()){
+            switch (reader.getTag()){
+                case DURATION_TAG:
+                    mDurationMs = reader.readLong();
+                    break;
+                case PAYLOAD_SIZE_TAG:
+                    mPayloadSize = Math.max(0, reader.readInt());
+                    break;
+                case SWEEP_MAX_SIZE_TAG:
+                    mSweepMaxSize = Math.max(0, reader.readInt());
+                    break;
+                case SWEEP_STEP_TAG:
+                    mSweepStep = Math.max(0, reader.readInt());
+                    break;
+                case RATE_TAG:
+                    mRate = Math.max(0, reader.readLong());
+                    break;
+                case BURST_TAG:
+                    mBurst = Math.max(0, reader.readLong());
+                    break;
+                case DIRECTION_TAG:
+                    mDirection = eBleDirection.getDirection(reader.readInt());
+                    break;
+                case INDICATE_TAG:
+                    mIndicate = reader.readInt() != 0;
+                    break;
+                case PATTERN_TAG:
+                    eBlePattern pattern = eBlePattern.getPattern(reader.readInt());
+                    if(pattern != null){
+                        mPattern = pattern;
+                    }
+                    break;
+                default:
+                    reader.skip();
+                    break;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "duration=" + mDurationMs + "ms size=" + (mPayloadSize > 0 ? mPayloadSize : "mtu")
+                + (isSweep() ? "-" + mSweepMaxSize + "/" + mSweepStep : "")
+                + " pattern=" + mPattern + " rate=" + (mRate > 0 ? mRate + "B/s" : "max") + " direction=" + mDirection
+                + (mIndicate ? " indicate" : " notify");
+    }
+}
@@ -0,0 +1,193 @@
+package com.lironk.blelib.bench;
+
+import com.lironk.blelib.codec.BleTlvReader;
+import com.lironk.blelib.codec.BleTlvWriter;
+
+import java.nio.ByteBuffer;
+
+// What the server counted over a whole test, sent with the Stop status. The sent side (download) lets the client
+// reconcile it against what arrived, the received side (upload) is what the server got from the client.
+// Messages are the BlePayloadGenerator payloads, packets the fragments the stack took
+public class BleTestReport {
+
+    // Binary field tags
+    private static final int MESSAGES_TAG = 1;
+    private static final int PACKETS_TAG = 2;
+    private static final int BYTES_TAG = 3;
+    private static final int DURATION_TAG = 4;
+    private static final int RECEIVED_MESSAGES_TAG = 5;
+    private static final int RECEIVED_BYTES_TAG = 6;
+    private static final int RECEIVED_RAW_BYTES_TAG = 7;
+    private static final int RECEIVE_DURATION_TAG = 8;
+    private static final int RECEIVE_LOST_TAG = 9;
+    private static final int RECEIVE_ERRORS_TAG = 10;
+
+    private long mMessages;
+    private long mPackets;
+    private long mBytes;
+    private long mDurationMs;
+
+    private long mReceivedMessages;
+    // Payload bytes, and bytes of the fragments with their framing headers
+    private long mReceivedBytes;
+    private long mReceivedRawBytes;
+    // First to last message received
+    private long mReceiveDurationMs;
+    private long mReceiveLost;
+    // Corrupt, short or duplicate
+    private long mReceiveErrors;
+
+    public BleTestReport() {
+        mMessages = 0;
+        mPackets = 0;
+        mBytes = 0;
+        mDurationMs = 0;
+        mReceivedMessages = 0;
+        mReceivedBytes = 0;
+        mReceivedRawBytes = 0;
+        mReceiveDurationMs = 0;
+        mReceiveLost = 0;
+        mReceiveErrors = 0;
+    }
+
+    public BleTestReport(ByteBuffer data) {
+        this();
+        read(new BleTlvReader(data));
+    }
+
+    public BleTestReport setMessages(long messages){
+        mMessages = messages;
+        return this;
+    }
+
+    // Adds one stream (sweep step) to the totals
+    public BleTestReport add(long packets, long bytes, long durationMs){
+        mPackets += packets;
+        mBytes += bytes;
+        mDurationMs += durationMs;
+        return this;
+    }
+
+    public BleTestReport setReceived(long messages, long bytes, long rawBytes, long durationMs){
+        mReceivedMessages = messages;
+        mReceivedBytes = bytes;
+        mReceivedRawBytes = rawBytes;
+        mReceiveDurationMs = durationMs;
+        return this;
+    }
+
+    public BleTestReport setReceiveErrors(long lost, long errors){
+        mReceiveLost = lost;
+        mReceiveErrors = errors;
+        return this;
+    }
+
+    public long getMessages(){
+        return mMessages;
+    }
+
+    public long getPackets(){
+        return mPackets;
+    }
+
+    public long getBytes(){
+        return mBytes;
+    }
+
+    public long getDurationMs(){
+        return mDurationMs;
+    }
+
+    public long getReceivedMessages(){
+        return mReceivedMessages;
+    }
+
+    public long getReceivedBytes(){
+        return mReceivedBytes;
+    }
+
+    public long getReceivedRawBytes(){
+        return mReceivedRawBytes;
+    }
+
+    public long getReceiveDurationMs(){
+        return mReceiveDurationMs;
+    }
+
+    public long getReceiveLost(){
+        return mReceiveLost;
+    }
+
+    public long getReceiveErrors(){
+        return mReceiveErrors;
+    }
+
+    // Received payload bytes per second
+    public long getReceiveBytesPerSecond(){
+        return mReceiveDurationMs > 0 ? mReceivedBytes * 1000 / mReceiveDurationMs : 0;
+    }
+
+    // The received side is left out when nothing was received
+    public void write(BleTlvWriter writer){
+        writer.writeLong(MESSAGES_TAG, mMessages);
+        writer.writeLong(PACKETS_TAG, mPackets);
+        writer.writeLong(BYTES_TAG, mBytes);
+        writer.writeLong(DURATION_TAG, mDurationMs);
+        if(mReceivedMessages != 0){
+            writer.writeLong(RECEIVED_MESSAGES_TAG, mReceivedMessages);
+            writer.writeLong(RECEIVED_BYTES_TAG, mReceivedBytes);
+            writer.writeLong(RECEIVED_RAW_BYTES_TAG, mReceivedRawBytes);
+            writer.writeLong(RECEIVE_DURATION_TAG, mReceiveDurationMs);
+            writer.writeLong(RECEIVE_LOST_TAG, mReceiveLost);
+            writer.writeLong(RECEIVE_ERRORS_TAG, mReceiveErrors);
+        }
+    }
+
+    private void read(BleTlvReader reader){
+        while (reader.next()){
+            switch (reader.getTag()){
+                case MESSAGES_TAG:
+                    mMessages = reader.readLong();
+                    break;
+                case PACKETS_TAG:
+                    mPackets = reader.readLong();
+                    break;
+                case BYTES_TAG:
+                    mBytes = reader.readLong();
+                    break;
+                case DURATION_TAG:
+                    mDurationMs = reader.readLong();
+                    break;
+                case RECEIVED_MESSAGES_TAG:
+                    mReceivedMessages = reader.readLong();
+                    break;
+                case RECEIVED_BYTES_TAG:
+                    mReceivedBytes = reader.readLong();
+                    break;
+                case RECEIVED_RAW_BYTES_TAG:
+                    mReceivedRawBytes = reader.readLong();
+                    break;
+                case RECEIVE_DURATION_TAG:
+                    mReceiveDurationMs = reader.readLong();
+                    break;
+                case RECEIVE_LOST_TAG:
+                    mReceiveLost = reader.readLong();
+                    break;
+                case RECEIVE_ERRORS_TAG:
+                    mReceiveErrors = reader.readLong();
+                    break;
+                default:
+                    reader.skip();
+                    break;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "sent messages=" + mMessages + " packets=" + mPackets + " bytes=" + mBytes + " duration=" + mDurationMs + "ms"
+                + (mReceivedMessages != 0 ? ", received messages=" + mReceivedMessages + " bytes=" + mReceivedBytes
+                + " raw=" + mReceivedRawBytes + " duration=" + mReceiveDurationMs + "ms lost=" + mReceiveLost
+                + " errors=" + mReceiveErrors : "");
+    }
+}
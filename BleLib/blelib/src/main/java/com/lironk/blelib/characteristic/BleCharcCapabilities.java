@@ -0,0 +1,58 @@
+package com.lironk.blelib.characteristic;
+
+import com.lironk.blelib.enums.eBleFraming;
+import com.lironk.blelib.main.BleCharacteristic;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+
+// Exchanged once after connection (client writes W_CAPABILITIES, server answers on R_CAPABILITIES).
+// Always sent with legacy framing so peers that don't know the newer formats can still parse it
+public class BleCharcCapabilities extends BleCharacteristic {
+
+    // Feature bits
+    public final static int FEATURE_BINARY_CODEC = 0x01;
+    public final static int SUPPORTED_FEATURES = FEATURE_BINARY_CODEC;
+
+    private eBleFraming mFraming;
+    private int mCompressionMask;
+    private int mFeatures;
+
+    public BleCharcCapabilities(UUID uuid, eBleFraming framing, int compressionMask, int features) {
+        super(uuid);
+        mFraming = framing;
+        mCompressionMask = compressionMask;
+        mFeatures = features;
+    }
+
+    // [framing version][compression mask][features] - peers that predate a field simply don't send it
+    public BleCharcCapabilities(UUID uuid, byte [] data) {
+        this(uuid, ByteBuffer.wrap(data));
+    }
+
+    public BleCharcCapabilities(UUID uuid, ByteBuffer data) {
+        super(uuid);
+        int pos = data.position();
+        mFraming = data.remaining() > 0 ? eBleFraming.getFraming(data.get(pos)) : eBleFraming.Legacy;
+        mCompressionMask = data.remaining() > 1 ? data.get(pos + 1) & 0xFF : 0;
+        mFeatures = data.remaining() > 2 ? data.get(pos + 2) & 0xFF : 0;
+    }
+
+    public eBleFraming getFraming() {
+        return mFraming;
+    }
+
+    public int getCompressionMask() {
+        return mCompressionMask;
+    }
+
+    public int getFeatures() {
+        return mFeatures;
+    }
+
+    @Override
+    public byte[] serialize() {
+        return new byte[]{mFraming.getVersion(), (byte) mCompressionMask, (byte) mFeatures};
+    }
+}
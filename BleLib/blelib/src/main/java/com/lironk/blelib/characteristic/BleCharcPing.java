@@ -0,0 +1,45 @@
+package com.lironk.blelib.characteristic;
+
+import com.lironk.blelib.main.BleCharacteristic;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+
+// Round trip probe. The client writes it on W_PING, the server echoes the bytes unchanged on R_PONG,
+// so the time only has to make sense to the client
+public class BleCharcPing extends BleCharacteristic {
+
+    public final static int SIZE = Integer.BYTES + Long.BYTES;
+
+    private int mSequence;
+    // Sender's nanoTime
+    private long mTimeNs;
+
+    public BleCharcPing(UUID uuid, int sequence, long timeNs) {
+        super(uuid);
+        mSequence = sequence;
+        mTimeNs = timeNs;
+    }
+
+    // [sequence 4][time 8]
+    public BleCharcPing(UUID uuid, ByteBuffer data) {
+        super(uuid);
+        int pos = data.position();
+        mSequence = data.getInt(pos);
+        mTimeNs = data.getLong(pos + Integer.BYTES);
+    }
+
+    public int getSequence(){
+        return mSequence;
+    }
+
+    public long getTimeNs(){
+        return mTimeNs;
+    }
+
+    @Override
+    public byte[] serialize(){
+        return ByteBuffer.allocate(SIZE).putInt(mSequence).putLong(mTimeNs).array();
+    }
+}
@@ -2,22 +2,44 @@ package com.lironk.blelib.characteristic.readable;
 
 import android.util.Log;
 
+import com.lironk.blelib.codec.BleCodecRegistry;
+import com.lironk.blelib.codec.BleTlvReader;
+import com.lironk.blelib.codec.BleTlvWriter;
+import com.lironk.blelib.codec.IBleCodec;
+import com.lironk.blelib.enums.eBleCompression;
 import com.lironk.blelib.main.BleCharacteristic;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 import static com.lironk.blelib.main.BleProfile.R_USER;
 
 
 public class BleCharcAuthor extends BleCharacteristic {
-    private final String ID_KEY = "id";
-    private final String NAME_KEY = "name";
-    private final String ROLE_KEY = "role";
+    private static final String ID_KEY = "id";
+    private static final String NAME_KEY = "name";
+    private static final String ROLE_KEY = "role";
 
-    private JSONObject mVerJsonObj = new JSONObject();
+    // Binary field tags
+    private static final int ID_TAG = 1;
+    private static final int NAME_TAG = 2;
+    private static final int ROLE_TAG = 3;
+
+    public static final IBleCodec<BleCharcAuthor> CODEC = new IBleCodec<BleCharcAuthor>() {
+        @Override
+        public void encode(BleCharcAuthor author, BleTlvWriter writer) {
+            writer.writeInt(ID_TAG, author.mId)
+                    .writeString(NAME_TAG, author.mName)
+                    .writeString(ROLE_TAG, author.mRole);
+        }
+    };
+
+    static {
+        BleCodecRegistry.register(R_USER, CODEC);
+    }
 
     private int mId;
     private String mName;
@@ -25,18 +47,46 @@ public class BleCharcAuthor extends BleCharacteristic {
 
     public BleCharcAuthor(int id, String name, String role) {
         super(R_USER);
-        try {
-            mVerJsonObj.put(ID_KEY, id);
-            mVerJsonObj.put(NAME_KEY, name);
-            mVerJsonObj.put(ROLE_KEY, role);
-        } catch (JSONException e) {
-            Log.e("BleCharcData", e.getLocalizedMessage());
-        }
+        mId = id;
+        mName = name != null ? name : "";
+        mRole = role != null ? role : "";
     }
 
     public BleCharcAuthor(byte [] data){
-        super(R_USER);
-        String jsonStr = new String(data, StandardCharsets.UTF_8);
+        this(ByteBuffer.wrap(data));
+    }
+
+    // Accepts both the binary encoding and the JSON text sent by older peers
+    public BleCharcAuthor(ByteBuffer data){
+        this(-1, "", "");
+        if(data.hasRemaining() && data.get(data.position()) == '{'){
+            readJson(StandardCharsets.UTF_8.decode(data).toString());
+        }
+        else {
+            read(new BleTlvReader(data));
+        }
+    }
+
+    private void read(BleTlvReader reader){
+        while (reader.next()){
+            switch (reader.getTag()){
+                case ID_TAG:
+                    mId = reader.readInt();
+                    break;
+                case NAME_TAG:
+                    mName = reader.readString();
+                    break;
+                case ROLE_TAG:
+                    mRole = reader.readString();
+                    break;
+                default:
+                    reader.skip();
+                    break;
+            }
+        }
+    }
+
+    private void readJson(String jsonStr){
         try {
             JSONObject userJsonObj = new JSONObject(jsonStr);
             mId = userJsonObj.getInt(ID_KEY);
@@ -63,10 +113,20 @@ public class BleCharcAuthor extends BleCharacteristic {
         return mRole;
     }
 
+    @Override
+    public eBleCompression getCompression() {
+        return eBleCompression.Deflate;
+    }
+
+    // JSON text for peers that didn't negotiate the binary codec
     @Override
     public byte[] serialize(){
         try {
-            return mVerJsonObj.toString().getBytes(StandardCharsets.UTF_8);
+            JSONObject verJsonObj = new JSONObject();
+            verJsonObj.put(ID_KEY, mId);
+            verJsonObj.put(NAME_KEY, mName);
+            verJsonObj.put(ROLE_KEY, mRole);
+            return verJsonObj.toString().getBytes(StandardCharsets.UTF_8);
         } catch (Exception e) {
             Log.e("BleCharcData. serialize.", e.getLocalizedMessage());
         }
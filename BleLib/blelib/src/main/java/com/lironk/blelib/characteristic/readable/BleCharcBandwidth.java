@@ -1,7 +1,9 @@
 package com.lironk.blelib.characteristic.readable;
 
+import com.lironk.blelib.enums.eBleCompression;
 import com.lironk.blelib.main.BleCharacteristic;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import static com.lironk.blelib.main.BleProfile.R_BANDWIDTH;
@@ -9,22 +11,46 @@ import static com.lironk.blelib.main.BleProfile.R_BANDWIDTH;
 public class BleCharcBandwidth extends BleCharacteristic {
 
     private byte [] mData;
+    private int mLength;
+    private eBleCompression mCompression = eBleCompression.None;
 
     public BleCharcBandwidth(int mtu) {
         super(R_BANDWIDTH);
         mData = new byte[mtu];
+        mLength = mtu;
         Arrays.fill(mData, (byte) 1);
     }
 
+    public BleCharcBandwidth(int mtu, eBleCompression compression) {
+        this(mtu);
+        mCompression = compression;
+    }
+
     public BleCharcBandwidth(byte [] data){
         super(R_BANDWIDTH);
         mData = data;
+        mLength = data.length;
+    }
+
+    // Only records the payload length, the buffer is not kept (see IBleBufferEvents)
+    public BleCharcBandwidth(ByteBuffer data){
+        super(R_BANDWIDTH);
+        mLength = data.remaining();
     }
 
     public byte [] getData(){
         return mData;
     }
 
+    public int getLength(){
+        return mLength;
+    }
+
+    @Override
+    public eBleCompression getCompression() {
+        return mCompression;
+    }
+
     @Override
     public byte[] serialize(){
         return mData;
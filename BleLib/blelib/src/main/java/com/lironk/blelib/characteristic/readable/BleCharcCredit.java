@@ -0,0 +1,34 @@
+package com.lironk.blelib.characteristic.readable;
+
+
+import com.lironk.blelib.main.BleCharacteristic;
+
+import java.nio.ByteBuffer;
+
+import static com.lironk.blelib.main.BleProfile.R_BULK_CREDIT;
+
+
+// Flow control for W_BULK: total number of bulk packets the server has consumed, wrapping at 2^32
+public class BleCharcCredit extends BleCharacteristic {
+
+    private int mReceived;
+
+    public BleCharcCredit(int received) {
+        super(R_BULK_CREDIT);
+        mReceived = received;
+    }
+
+    public BleCharcCredit(ByteBuffer data) {
+        super(R_BULK_CREDIT);
+        mReceived = data.getInt(data.position());
+    }
+
+    public int getReceived(){
+        return mReceived;
+    }
+
+    @Override
+    public byte[] serialize(){
+        return ByteBuffer.allocate(Integer.BYTES).putInt(mReceived).array();
+    }
+}
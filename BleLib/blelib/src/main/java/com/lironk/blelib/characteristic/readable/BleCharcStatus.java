@@ -1,16 +1,24 @@
 package com.lironk.blelib.characteristic.readable;
 
 
+import com.lironk.blelib.bench.BleTestReport;
+import com.lironk.blelib.codec.BleTlvWriter;
 import com.lironk.blelib.enums.eBleCommand;
 import com.lironk.blelib.main.BleCharacteristic;
 
+import java.nio.ByteBuffer;
+
 import static com.lironk.blelib.main.BleProfile.R_STATUS;
 
 
 public class BleCharcStatus extends BleCharacteristic {
 
+    private static final int REPORT_OFFSET = 2;
+
     private eBleCommand mCommand;
     private byte mStatus;
+    // Stop only - the sender's counters, null if none came with it
+    private BleTestReport mReport;
 
     public BleCharcStatus(eBleCommand command, byte status) {
         super(R_STATUS);
@@ -18,10 +26,29 @@ public class BleCharcStatus extends BleCharacteristic {
         mStatus = status;
     }
 
+    public BleCharcStatus(eBleCommand command, byte status, BleTestReport report) {
+        this(command, status);
+        mReport = report;
+    }
+
     public BleCharcStatus(byte [] data) {
         super(R_STATUS);
         mCommand = eBleCommand.getCommand(data[0]);
         mStatus = data[1];
+        if(data.length > REPORT_OFFSET){
+            mReport = new BleTestReport(ByteBuffer.wrap(data, REPORT_OFFSET, data.length - REPORT_OFFSET));
+        }
+    }
+
+    public BleCharcStatus(ByteBuffer data) {
+        super(R_STATUS);
+        mCommand = eBleCommand.getCommand(data.get(data.position()));
+        mStatus = data.get(data.position() + 1);
+        if(data.remaining() > REPORT_OFFSET){
+            ByteBuffer report = data.duplicate();
+            report.position(data.position() + REPORT_OFFSET);
+            mReport = new BleTestReport(report);
+        }
     }
 
     public eBleCommand getCommand(){
@@ -32,8 +59,22 @@ public class BleCharcStatus extends BleCharacteristic {
         return mStatus;
     }
 
+    public BleTestReport getReport(){
+        return mReport;
+    }
+
+    // [command][status][report fields]
     @Override
     public byte[] serialize(){
-        return new byte[]{mCommand.getCommand(), mStatus};
+        if(mReport == null){
+            return new byte[]{mCommand.getCommand(), mStatus};
+        }
+        BleTlvWriter report = new BleTlvWriter();
+        mReport.write(report);
+        byte [] data = new byte[REPORT_OFFSET + report.size()];
+        data[0] = mCommand.getCommand();
+        data[1] = mStatus;
+        System.arraycopy(report.toByteArray(), 0, data, REPORT_OFFSET, report.size());
+        return data;
     }
 }
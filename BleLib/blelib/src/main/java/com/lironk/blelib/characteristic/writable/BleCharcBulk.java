@@ -0,0 +1,20 @@
+package com.lironk.blelib.characteristic.writable;
+
+
+import com.lironk.blelib.main.BleCharacteristic;
+
+import static com.lironk.blelib.main.BleProfile.W_BULK;
+
+
+// Opaque upload payload, written without response and paced by BleCharcCredit
+public class BleCharcBulk extends BleCharacteristic {
+
+    public BleCharcBulk(byte [] data){
+        super(W_BULK, data);
+    }
+
+    @Override
+    public byte[] serialize() {
+        return getData();
+    }
+}
@@ -1,27 +1,91 @@
 package com.lironk.blelib.characteristic.writable;
 
 
+import com.lironk.blelib.bench.BleTestProfile;
+import com.lironk.blelib.codec.BleTlvWriter;
 import com.lironk.blelib.enums.eBleCommand;
+import com.lironk.blelib.enums.eBleCompression;
 import com.lironk.blelib.main.BleCharacteristic;
 
+import java.nio.ByteBuffer;
+
 import static com.lironk.blelib.main.BleProfile.W_COMMAND;
 
 
 public class BleCharcCommand extends BleCharacteristic {
 
+    private static final int PROFILE_OFFSET = 3;
+
     private eBleCommand mCommand;
+    // Start only - codec the server should use for the bandwidth stream
+    private eBleCompression mBandwidthCompression;
+    // Start only - notifications the server may have in flight, 0 lets the server tune it
+    private int mWindow;
+    // Start only - the scenario to run
+    private BleTestProfile mProfile;
 
     public BleCharcCommand(byte [] data){
         super(W_COMMAND, data);
         mCommand = eBleCommand.getCommand(data[0]);
+        eBleCompression compression = data.length > 1 ? eBleCompression.getCompression(data[1]) : null;
+        mBandwidthCompression = compression != null ? compression : eBleCompression.None;
+        mWindow = data.length > 2 ? data[2] & 0xFF : 0;
+        mProfile = data.length > PROFILE_OFFSET
+                ? new BleTestProfile(ByteBuffer.wrap(data, PROFILE_OFFSET, data.length - PROFILE_OFFSET))
+                : new BleTestProfile();
+    }
+
+    public BleCharcCommand(eBleCommand command, eBleCompression compression){
+        this(command, compression, 0);
+    }
+
+    public BleCharcCommand(eBleCommand command, eBleCompression compression, int window){
+        this(command, compression, window, new BleTestProfile());
+    }
+
+    public BleCharcCommand(eBleCommand command, eBleCompression compression, int window, BleTestProfile profile){
+        super(W_COMMAND);
+        mCommand = command;
+        mBandwidthCompression = compression;
+        mWindow = window;
+        mProfile = profile;
     }
 
+    // [command][compression][window][profile fields] - trailing defaults are left out
     @Override
     public byte[] serialize() {
-        return new byte[]{mCommand.getCommand()};
+        BleTlvWriter profile = new BleTlvWriter();
+        mProfile.write(profile);
+        if(profile.size() > 0){
+            byte [] data = new byte[PROFILE_OFFSET + profile.size()];
+            data[0] = mCommand.getCommand();
+            data[1] = mBandwidthCompression.getId();
+            data[2] = (byte) mWindow;
+            System.arraycopy(profile.toByteArray(), 0, data, PROFILE_OFFSET, profile.size());
+            return data;
+        }
+        if(mWindow != 0){
+            return new byte[]{mCommand.getCommand(), mBandwidthCompression.getId(), (byte) mWindow};
+        }
+        if(mBandwidthCompression == eBleCompression.None){
+            return new byte[]{mCommand.getCommand()};
+        }
+        return new byte[]{mCommand.getCommand(), mBandwidthCompression.getId()};
     }
 
     public eBleCommand getCommand() {
         return mCommand;
     }
+
+    public eBleCompression getBandwidthCompression() {
+        return mBandwidthCompression;
+    }
+
+    public int getWindow() {
+        return mWindow;
+    }
+
+    public BleTestProfile getProfile() {
+        return mProfile;
+    }
 }
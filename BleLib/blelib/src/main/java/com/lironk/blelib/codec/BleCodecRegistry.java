@@ -0,0 +1,53 @@
+package com.lironk.blelib.codec;
+
+import com.lironk.blelib.main.BleCharacteristic;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Binary codecs by characteristic UUID. Characteristics without a codec keep their serialize() format.
+// A characteristic registers its codec from its own static initializer, so the codec is in place before
+// the first instance can be serialized
+public class BleCodecRegistry {
+
+    private static final ConcurrentHashMap<UUID, IBleCodec<? extends BleCharacteristic>> sCodecs = new ConcurrentHashMap<>();
+
+    private static final ThreadLocal<BleTlvWriter> sWriter = new ThreadLocal<BleTlvWriter>() {
+        @Override
+        protected BleTlvWriter initialValue() {
+            return new BleTlvWriter();
+        }
+    };
+
+    public static <T extends BleCharacteristic> void register(UUID uuid, IBleCodec<T> codec){
+        sCodecs.put(uuid, codec);
+    }
+
+    public static boolean hasCodec(UUID uuid){
+        return sCodecs.containsKey(uuid);
+    }
+
+    // Returns the binary encoding, or null if no codec is registered for this characteristic
+    @SuppressWarnings("unchecked")
+    public static byte [] encode(BleCharacteristic characteristic){
+        IBleCodec<BleCharacteristic> codec = (IBleCodec<BleCharacteristic>) sCodecs.get(characteristic.getUUID());
+        if(codec == null){
+            return null;
+        }
+
+        BleTlvWriter writer = sWriter.get().reset();
+        codec.encode(characteristic, writer);
+        return writer.toByteArray();
+    }
+
+    // Binary encoding when the peer negotiated it and a codec exists, the characteristic's own format otherwise
+    public static byte [] serialize(BleCharacteristic characteristic, boolean binary){
+        if(binary){
+            byte [] data = encode(characteristic);
+            if(data != null){
+                return data;
+            }
+        }
+        return characteristic.serialize();
+    }
+}
@@ -0,0 +1,112 @@
+package com.lironk.blelib.codec;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static com.lironk.blelib.codec.BleTlvWriter.TYPE_VARINT;
+
+// Reads the fields written by BleTlvWriter in place. Callers loop on next() and skip() tags they don't know,
+// so older readers keep working when fields are added. Fields of a type this reader doesn't know are length
+// prefixed like TYPE_BYTES, so they are skipped the same way
+public class BleTlvReader {
+
+    private ByteBuffer mBuffer;
+    private int mTag;
+    private int mType;
+    private boolean mConsumed;
+
+    public BleTlvReader(ByteBuffer buffer) {
+        mBuffer = buffer;
+        mConsumed = true;
+    }
+
+    // Moves to the next field. Returns false at the end of the buffer or on a malformed key
+    public boolean next(){
+        if(!mConsumed){
+            skip();
+        }
+        if(!mBuffer.hasRemaining()){
+            return false;
+        }
+
+        long key = readVarLong();
+        if(key < 0){
+            return false;
+        }
+        mTag = (int) (key >>> 3);
+        mType = (int) (key & 0x07);
+        mConsumed = false;
+        return true;
+    }
+
+    public int getTag(){
+        return mTag;
+    }
+
+    public int readInt(){
+        return (int) readLong();
+    }
+
+    public long readLong(){
+        mConsumed = true;
+        long zigzag = readVarLong();
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    public String readString(){
+        mConsumed = true;
+        int length = (int) readVarLong();
+        if(length < 0 || length > mBuffer.remaining()){
+            mBuffer.position(mBuffer.limit());
+            return "";
+        }
+
+        int limit = mBuffer.limit();
+        mBuffer.limit(mBuffer.position() + length);
+        String value = StandardCharsets.UTF_8.decode(mBuffer).toString();
+        mBuffer.limit(limit);
+        return value;
+    }
+
+    public byte [] readBytes(){
+        mConsumed = true;
+        int length = (int) readVarLong();
+        if(length < 0 || length > mBuffer.remaining()){
+            mBuffer.position(mBuffer.limit());
+            return new byte[0];
+        }
+
+        byte [] value = new byte[length];
+        mBuffer.get(value);
+        return value;
+    }
+
+    public void skip(){
+        mConsumed = true;
+        if(mType == TYPE_VARINT){
+            readVarLong();
+        }
+        else {
+            int length = (int) readVarLong();
+            if(length < 0 || length > mBuffer.remaining()){
+                mBuffer.position(mBuffer.limit());
+            }
+            else {
+                mBuffer.position(mBuffer.position() + length);
+            }
+        }
+    }
+
+    // -1 if truncated or longer than 10 bytes
+    private long readVarLong(){
+        long value = 0;
+        for (int shift = 0; shift < 64 && mBuffer.hasRemaining(); shift += 7){
+            int b = mBuffer.get() & 0xFF;
+            value |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0){
+                return value;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,88 @@
+package com.lironk.blelib.codec;
+
+import com.lironk.blelib.transport.BleVarInt;
+
+import java.nio.charset.StandardCharsets;
+
+// Fields are [varint tag << 3 | type][value]. Varint values are zigzag encoded,
+// bytes/strings are [varint length][bytes]. Any type added later must be length prefixed too, so older
+// readers can skip it. Meant to be reused: reset() between messages
+public class BleTlvWriter {
+
+    public final static int TYPE_VARINT = 0;
+    public final static int TYPE_BYTES = 2;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private byte [] mBuffer;
+    private int mLength;
+
+    public BleTlvWriter() {
+        mBuffer = new byte[INITIAL_CAPACITY];
+        mLength = 0;
+    }
+
+    public BleTlvWriter reset(){
+        mLength = 0;
+        return this;
+    }
+
+    public BleTlvWriter writeInt(int tag, int value){
+        writeKey(tag, TYPE_VARINT);
+        ensureCapacity(BleVarInt.MAX_SIZE);
+        mLength = BleVarInt.write(mBuffer, mLength, (value << 1) ^ (value >> 31));
+        return this;
+    }
+
+    public BleTlvWriter writeLong(int tag, long value){
+        writeKey(tag, TYPE_VARINT);
+        long zigzag = (value << 1) ^ (value >> 63);
+        ensureCapacity(10);
+        while ((zigzag & ~0x7FL) != 0){
+            mBuffer[mLength++] = (byte) ((zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+        mBuffer[mLength++] = (byte) zigzag;
+        return this;
+    }
+
+    public BleTlvWriter writeBytes(int tag, byte [] value){
+        writeKey(tag, TYPE_BYTES);
+        ensureCapacity(BleVarInt.MAX_SIZE + value.length);
+        mLength = BleVarInt.write(mBuffer, mLength, value.length);
+        System.arraycopy(value, 0, mBuffer, mLength, value.length);
+        mLength += value.length;
+        return this;
+    }
+
+    public BleTlvWriter writeString(int tag, String value){
+        return writeBytes(tag, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public int size(){
+        return mLength;
+    }
+
+    public byte [] toByteArray(){
+        byte [] out = new byte[mLength];
+        System.arraycopy(mBuffer, 0, out, 0, mLength);
+        return out;
+    }
+
+    private void writeKey(int tag, int type){
+        ensureCapacity(BleVarInt.MAX_SIZE);
+        mLength = BleVarInt.write(mBuffer, mLength, (tag << 3) | type);
+    }
+
+    private void ensureCapacity(int extra){
+        if(mLength + extra > mBuffer.length){
+            int capacity = mBuffer.length;
+            while (capacity < mLength + extra){
+                capacity <<= 1;
+            }
+            byte [] buffer = new byte[capacity];
+            System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+            mBuffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.lironk.blelib.codec;
+
+import com.lironk.blelib.main.BleCharacteristic;
+
+// Binary representation of a characteristic. Field tags are part of the wire format: never reuse or renumber them.
+// Decoding is left to the characteristic's receive constructor, which also has to accept its JSON form
+public interface IBleCodec<T extends BleCharacteristic> {
+
+    void encode(T characteristic, BleTlvWriter writer);
+}
@@ -0,0 +1,66 @@
+package com.lironk.blelib.compression;
+
+import com.lironk.blelib.enums.eBleCompression;
+import com.lironk.blelib.transport.BleVarInt;
+
+import static com.lironk.blelib.main.BleProfile.MAX_MESSAGE_SIZE;
+
+// Compressed payload: [varint original length][codec output]
+public class BleCompressors {
+
+    // Mask of the codecs this build supports, advertised in the capabilities exchange
+    public final static int SUPPORTED_MASK = eBleCompression.Lz.getMask() | eBleCompression.Deflate.getMask();
+
+    private static final IBleCompressor sLz = new BleLzCompressor();
+    private static final IBleCompressor sDeflate = new BleDeflateCompressor();
+
+    public static IBleCompressor get(eBleCompression compression){
+        switch (compression){
+            case Lz:
+                return sLz;
+            case Deflate:
+                return sDeflate;
+            case None:
+            default:
+                return null;
+        }
+    }
+
+    // Returns the compressed payload, or null if compression is off or doesn't make it smaller
+    public static byte [] compress(eBleCompression compression, byte [] data){
+        IBleCompressor compressor = get(compression);
+        if(compressor == null || data.length == 0){
+            return null;
+        }
+
+        int headerSize = BleVarInt.size(data.length);
+        byte [] out = new byte[headerSize + compressor.maxCompressedLength(data.length)];
+        BleVarInt.write(out, 0, data.length);
+        int written = compressor.compress(data, data.length, out, headerSize);
+        if(written < 0 || headerSize + written >= data.length){
+            return null;
+        }
+
+        byte [] compressed = new byte[headerSize + written];
+        System.arraycopy(out, 0, compressed, 0, compressed.length);
+        return compressed;
+    }
+
+    // Original length of a compressed payload, -1 if the prefix is bad
+    public static int getOriginalLength(byte [] src, int offset, int length){
+        int originalLength = BleVarInt.read(src, offset, offset + length);
+        return originalLength > MAX_MESSAGE_SIZE ? -1 : originalLength;
+    }
+
+    // dst must hold at least getOriginalLength() bytes
+    public static boolean decompress(eBleCompression compression, byte [] src, int offset, int length, byte [] dst){
+        IBleCompressor compressor = get(compression);
+        int originalLength = getOriginalLength(src, offset, length);
+        if(compressor == null || originalLength < 0){
+            return false;
+        }
+
+        int headerSize = BleVarInt.size(originalLength);
+        return compressor.decompress(src, offset + headerSize, length - headerSize, dst, originalLength);
+    }
+}
@@ -0,0 +1,55 @@
+package com.lironk.blelib.compression;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class BleDeflateCompressor implements IBleCompressor {
+
+    @Override
+    public int maxCompressedLength(int srcLength) {
+        // Stored blocks worst case: 5 bytes per 16K block + a final empty block
+        return srcLength + ((srcLength / 16383) + 1) * 5 + 8;
+    }
+
+    @Override
+    public int compress(byte[] src, int srcLength, byte[] dst, int dstOffset) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(src, 0, srcLength);
+            deflater.finish();
+            int written = 0;
+            while (!deflater.finished()) {
+                int count = deflater.deflate(dst, dstOffset + written, dst.length - dstOffset - written);
+                if (count == 0 && dst.length - dstOffset - written == 0) {
+                    return -1;
+                }
+                written += count;
+            }
+            return written;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public boolean decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstLength) {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(src, srcOffset, srcLength);
+            int read = 0;
+            while (read < dstLength) {
+                int count = inflater.inflate(dst, read, dstLength - read);
+                if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += count;
+            }
+            return read == dstLength;
+        } catch (DataFormatException e) {
+            return false;
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.lironk.blelib.compression;
+
+import java.util.Arrays;
+
+// LZ4 block format: [token][literal length ext][literals][offset LE16][match length ext] ...
+// Favours speed over ratio, the last sequence only carries literals
+public class BleLzCompressor implements IBleCompressor {
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_DISTANCE = 0xFFFF;
+    private static final int HASH_LOG = 12;
+
+    private static final ThreadLocal<int []> sHashTable = new ThreadLocal<int []>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1 << HASH_LOG];
+        }
+    };
+
+    @Override
+    public int maxCompressedLength(int srcLength) {
+        return srcLength + srcLength / 255 + 16;
+    }
+
+    @Override
+    public int compress(byte[] src, int srcLength, byte[] dst, int dstOffset) {
+        int [] table = sHashTable.get();
+        Arrays.fill(table, -1);
+
+        int dstPos = dstOffset;
+        int anchor = 0;
+        int srcPos = 0;
+        int matchLimit = srcLength - LAST_LITERALS;
+
+        while (srcPos < srcLength - MF_LIMIT) {
+            int sequence = readInt(src, srcPos);
+            int hash = (sequence * -1640531535) >>> (32 - HASH_LOG);
+            int ref = table[hash];
+            table[hash] = srcPos;
+
+            if (ref < 0 || srcPos - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+                srcPos++;
+                continue;
+            }
+
+            int matchLength = MIN_MATCH;
+            while (srcPos + matchLength < matchLimit && src[ref + matchLength] == src[srcPos + matchLength]) {
+                matchLength++;
+            }
+
+            int tokenPos = dstPos;
+            dstPos = writeLiterals(src, anchor, srcPos - anchor, dst, dstPos);
+            dst[dstPos++] = (byte) (srcPos - ref);
+            dst[dstPos++] = (byte) ((srcPos - ref) >>> 8);
+            dstPos = writeMatchLength(dst, tokenPos, dstPos, matchLength - MIN_MATCH);
+
+            srcPos += matchLength;
+            anchor = srcPos;
+        }
+
+        // Last literals
+        dstPos = writeLiterals(src, anchor, srcLength - anchor, dst, dstPos);
+        return dstPos - dstOffset;
+    }
+
+    @Override
+    public boolean decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstLength) {
+        int srcPos = srcOffset;
+        int srcEnd = srcOffset + srcLength;
+        int dstPos = 0;
+
+        while (srcPos < srcEnd) {
+            int token = src[srcPos++] & 0xFF;
+
+            int literalLength = token >>> 4;
+            if (literalLength == 15) {
+                int b;
+                do {
+                    if (srcPos >= srcEnd) {
+                        return false;
+                    }
+                    b = src[srcPos++] & 0xFF;
+                    literalLength += b;
+                } while (b == 255);
+            }
+            if (srcPos + literalLength > srcEnd || dstPos + literalLength > dstLength) {
+                return false;
+            }
+            System.arraycopy(src, srcPos, dst, dstPos, literalLength);
+            srcPos += literalLength;
+            dstPos += literalLength;
+
+            if (srcPos == srcEnd) {
+                break;
+            }
+
+            if (srcPos + 2 > srcEnd) {
+                return false;
+            }
+            int offset = (src[srcPos] & 0xFF) | ((src[srcPos + 1] & 0xFF) << 8);
+            srcPos += 2;
+
+            int matchLength = token & 0x0F;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    if (srcPos >= srcEnd) {
+                        return false;
+                    }
+                    b = src[srcPos++] & 0xFF;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+
+            int ref = dstPos - offset;
+            if (offset == 0 || ref < 0 || dstPos + matchLength > dstLength) {
+                return false;
+            }
+            // Byte by byte - the match may overlap the bytes it produces
+            for (int i = 0; i < matchLength; i++) {
+                dst[dstPos++] = dst[ref++];
+            }
+        }
+
+        return dstPos == dstLength;
+    }
+
+    private static int readInt(byte [] buf, int pos) {
+        return (buf[pos] & 0xFF) | ((buf[pos + 1] & 0xFF) << 8) | ((buf[pos + 2] & 0xFF) << 16) | ((buf[pos + 3] & 0xFF) << 24);
+    }
+
+    // Writes the token (match nibble left for writeMatchLength) and the literals
+    private static int writeLiterals(byte [] src, int literalStart, int literalLength, byte [] dst, int dstPos) {
+        int tokenPos = dstPos++;
+        if (literalLength >= 15) {
+            dst[tokenPos] = (byte) 0xF0;
+            int remaining = literalLength - 15;
+            while (remaining >= 255) {
+                dst[dstPos++] = (byte) 255;
+                remaining -= 255;
+            }
+            dst[dstPos++] = (byte) remaining;
+        }
+        else {
+            dst[tokenPos] = (byte) (literalLength << 4);
+        }
+        System.arraycopy(src, literalStart, dst, dstPos, literalLength);
+        return dstPos + literalLength;
+    }
+
+    private static int writeMatchLength(byte [] dst, int tokenPos, int dstPos, int matchLength) {
+        if (matchLength >= 15) {
+            dst[tokenPos] |= 0x0F;
+            int remaining = matchLength - 15;
+            while (remaining >= 255) {
+                dst[dstPos++] = (byte) 255;
+                remaining -= 255;
+            }
+            dst[dstPos++] = (byte) remaining;
+        }
+        else {
+            dst[tokenPos] |= (byte) matchLength;
+        }
+        return dstPos;
+    }
+}
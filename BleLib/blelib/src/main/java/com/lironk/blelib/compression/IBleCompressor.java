@@ -0,0 +1,13 @@
+package com.lironk.blelib.compression;
+
+public interface IBleCompressor {
+
+    // Upper bound of compress() output for srcLength input bytes
+    int maxCompressedLength(int srcLength);
+
+    // Compresses src into dst starting at dstOffset. Returns the number of bytes written
+    int compress(byte [] src, int srcLength, byte [] dst, int dstOffset);
+
+    // Decompresses exactly dstLength bytes into dst. Returns false if src is corrupted
+    boolean decompress(byte [] src, int srcOffset, int srcLength, byte [] dst, int dstLength);
+}
@@ -0,0 +1,13 @@
+package com.lironk.blelib.enums;
+
+// How a numbered message arrived, see BleSequenceTracker
+public enum eBleArrival {
+    // Highest number so far, any numbers it skipped are missing
+    InOrder,
+    // Fills a missing number still in the window
+    Reordered,
+    // Number already received
+    Duplicate,
+    // Number older than the window, already counted lost
+    Late
+}
@@ -0,0 +1,12 @@
+package com.lironk.blelib.enums;
+
+// What sendMessage does with a data message (Interactive or Bulk lane) while the queue is above its high
+// watermark. Control messages are always queued
+public enum eBleBackpressure {
+    // Wait until the queue drains to the low watermark
+    Block,
+    // Drop the message and return Rejected
+    FailFast,
+    // Queue it and return Throttled - the producer should wait for bleWritabilityChanged(true)
+    Signal
+}
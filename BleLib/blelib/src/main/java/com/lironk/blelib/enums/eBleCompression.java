@@ -0,0 +1,41 @@
+package com.lironk.blelib.enums;
+
+public enum eBleCompression {
+    None((byte) 0),
+    // Fast LZ4 style block codec
+    Lz((byte) 1),
+    Deflate((byte) 2);
+
+    private final byte mId;
+
+    eBleCompression(byte id) {
+        mId = id;
+    }
+
+    public byte getId() {
+        return mId;
+    }
+
+    // Bit of this codec in a capabilities mask
+    public int getMask() {
+        return 1 << mId;
+    }
+
+    public boolean isIn(int mask) {
+        return this == None || (mask & getMask()) != 0;
+    }
+
+    // Null for an id this side doesn't know
+    public static eBleCompression getCompression(byte id) {
+        switch (id) {
+            case 0:
+                return None;
+            case 1:
+                return Lz;
+            case 2:
+                return Deflate;
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.lironk.blelib.enums;
+
+public enum eBleDirection {
+    // Server notifies, client receives
+    Download((byte) 0),
+    // Client writes, server receives
+    Upload((byte) 1),
+    // Both at once
+    Duplex((byte) 2);
+
+    private final byte mId;
+
+    eBleDirection(byte id) {
+        mId = id;
+    }
+
+    public byte getId() {
+        return mId;
+    }
+
+    public static eBleDirection getDirection(int id) {
+        switch (id) {
+            case 1:
+                return Upload;
+            case 2:
+                return Duplex;
+            case 0:
+            default:
+                return Download;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.lironk.blelib.enums;
+
+public enum eBleFraming {
+    // [part idx][parts count] - up to 255 parts
+    Legacy((byte) 1),
+    // [0x00 marker][compression << 4 | version][msg id][varint offset][varint total length - first fragment only]
+    Extended((byte) 2);
+
+    private final byte mVersion;
+
+    eBleFraming(byte version) {
+        mVersion = version;
+    }
+
+    public byte getVersion() {
+        return mVersion;
+    }
+
+    // Highest framing both sides support
+    public eBleFraming min(eBleFraming other) {
+        return mVersion <= other.mVersion ? this : other;
+    }
+
+    public static eBleFraming getFraming(byte version) {
+        switch (version) {
+            case 2:
+                return Extended;
+            case 1:
+            default:
+                return Legacy;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.lironk.blelib.enums;
+
+// Scheduling class of a queued GATT operation, highest priority first.
+// A characteristic always uses the same lane so the fragments of a message stay in order
+public enum eBleLane {
+    // Connection setup, capabilities, commands and status
+    Control,
+    // Small request/response messages
+    Interactive,
+    // Streams - may be dropped on STOP
+    Bulk;
+
+    public static final int COUNT = values().length;
+}
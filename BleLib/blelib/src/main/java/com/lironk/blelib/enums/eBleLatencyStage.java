@@ -0,0 +1,11 @@
+package com.lironk.blelib.enums;
+
+// Where an operation spent its time between sendMessage and its completion callback
+public enum eBleLatencyStage {
+    // Queued until the executor took it - our side
+    QueueWait,
+    // Handed to the stack until its completion callback - the stack and the radio
+    Service;
+
+    public static final int COUNT = values().length;
+}
@@ -0,0 +1,13 @@
+package com.lironk.blelib.enums;
+
+// Why the watchdog gave up on a GATT operation
+public enum eBleOperationError {
+    // No completion callback within the deadline, retries included
+    Timeout,
+    // The stack refused to start it, retries included
+    Rejected,
+    // Dropped before it completed - the connection was reset, a newer value replaced it or the caller cancelled
+    Cancelled,
+    // The completion callback reported a GATT error
+    Gatt
+}
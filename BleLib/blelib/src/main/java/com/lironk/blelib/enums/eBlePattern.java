@@ -0,0 +1,31 @@
+package com.lironk.blelib.enums;
+
+// Body of the bandwidth test payloads, see BlePayloadGenerator
+public enum eBlePattern {
+    // Every byte is 1 - compresses to almost nothing
+    Fixed((byte) 0),
+    // PRNG bytes seeded from the message counter - incompressible
+    Random((byte) 1);
+
+    private final byte mId;
+
+    eBlePattern(byte id) {
+        mId = id;
+    }
+
+    public byte getId() {
+        return mId;
+    }
+
+    // Null for an unknown id
+    public static eBlePattern getPattern(int id) {
+        switch (id) {
+            case 0:
+                return Fixed;
+            case 1:
+                return Random;
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package com.lironk.blelib.enums;
+
+public enum eBleScheduling {
+    // A lane is served only when all higher priority lanes are empty
+    Strict,
+    // Control still goes first, Interactive and Bulk share the link by their weights
+    Weighted
+}
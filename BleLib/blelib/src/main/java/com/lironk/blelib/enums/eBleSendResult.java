@@ -0,0 +1,9 @@
+package com.lironk.blelib.enums;
+
+public enum eBleSendResult {
+    Queued,
+    // Queued, but the queue is above its high watermark - hold off until it is writable again
+    Throttled,
+    // Not queued
+    Rejected
+}
@@ -1,5 +1,7 @@
 package com.lironk.blelib.main;
 
+import com.lironk.blelib.enums.eBleCompression;
+
 import java.util.UUID;
 
 public abstract class BleCharacteristic {
@@ -23,5 +25,10 @@ public abstract class BleCharacteristic {
         return mData;
     }
 
+    // Characteristics opt in to payload compression. Only used when the peer negotiated the codec
+    public eBleCompression getCompression() {
+        return eBleCompression.None;
+    }
+
     public abstract byte[] serialize();
 }
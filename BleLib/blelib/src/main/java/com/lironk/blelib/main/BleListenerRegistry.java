@@ -0,0 +1,322 @@
+package com.lironk.blelib.main;
+
+import com.lironk.blelib.enums.eBleOperationError;
+import com.lironk.blelib.watchdog.BleTimeout;
+import com.lironk.blelib.watchdog.BleTimerWheel;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Copy-on-write listener array. Dispatch walks a snapshot without taking any lock, so a slow listener can't block
+// registration, and registering never blocks the GATT callback thread.
+// Each listener picks the executor it is called on: INLINE (the thread reporting the event, the default), a thread
+// of its own or the main thread (e.g. ContextCompat.getMainExecutor()). Events reach a listener in the order they
+// happened as long as its executor runs them in order - received messages are reported by the receive thread
+// (see BleReceiveRing), so they are only ordered among themselves. The BleOperation passed to bleDataSent/bleOperationFailed
+// is recycled once the inline listeners return - listeners on an executor share a snapshot of it instead.
+// IBleBatchEvents listeners share one batch, see setBatching(). A full batch is swapped for a spare one and the
+// listeners are called outside the batch lock, one batch at a time and in order. The deadline flush runs off the
+// timer wheel thread
+public class BleListenerRegistry {
+
+    public static final Executor INLINE = Runnable::run;
+
+    public static final int DEFAULT_BATCH_BYTES = 512;
+
+    private static final Entry [] EMPTY = new Entry[0];
+
+    private static final class Entry {
+        final IBleEvents mListener;
+        final Executor mExecutor;
+
+        Entry(IBleEvents listener, Executor executor) {
+            mListener = listener;
+            mExecutor = executor;
+        }
+    }
+
+    private final AtomicReference<Entry []> mEntries;
+
+    private final Object mBatchLock = new Object();
+    private BleMessageBatch mBatch;
+    // Taken under mBatchLock when a batch is, held until its listeners returned. Guards mSpareBatch
+    private final ReentrantLock mDeliveryLock = new ReentrantLock();
+    private BleMessageBatch mSpareBatch;
+    private BleTimerWheel mTimerWheel;
+    private long mBatchLatencyMs;
+    private BleTimeout mFlushTimeout;
+    private long mBatchId;
+
+    public BleListenerRegistry() {
+        mEntries = new AtomicReference<>(EMPTY);
+        mBatch = new BleMessageBatch(1, DEFAULT_BATCH_BYTES);
+        mSpareBatch = new BleMessageBatch(1, DEFAULT_BATCH_BYTES);
+        mBatchLatencyMs = 0;
+        mBatchId = 0;
+    }
+
+    // Opt-in batching for IBleBatchEvents listeners: a batch is flushed once it holds maxMessages or maxBytes,
+    // or maxLatencyMs after its first message (on a pool thread, timed by the wheel). maxLatencyMs <= 0 flushes
+    // on size only. The default batch holds a single message. Any pending batch is flushed first
+    public void setBatching(BleTimerWheel timerWheel, int maxMessages, int maxBytes, long maxLatencyMs){
+        BleMessageBatch pending;
+        synchronized (mBatchLock){
+            pending = takeBatchLocked();
+            mBatch = new BleMessageBatch(Math.max(1, maxMessages), Math.max(1, maxBytes));
+            mSpareBatch = new BleMessageBatch(Math.max(1, maxMessages), Math.max(1, maxBytes));
+            mTimerWheel = timerWheel;
+            mBatchLatencyMs = maxLatencyMs;
+        }
+        deliver(pending);
+    }
+
+    public void flushBatch(){
+        BleMessageBatch batch;
+        synchronized (mBatchLock){
+            if(mBatch.isEmpty()){
+                return;
+            }
+            batch = takeBatchLocked();
+        }
+        deliver(batch);
+    }
+
+    public void add(IBleEvents listener){
+        add(listener, INLINE);
+    }
+
+    public void add(IBleEvents listener, Executor executor){
+        Entry entry = new Entry(listener, executor != null ? executor : INLINE);
+        while (true){
+            Entry [] entries = mEntries.get();
+            Entry [] updated = new Entry[entries.length + 1];
+            System.arraycopy(entries, 0, updated, 0, entries.length);
+            updated[entries.length] = entry;
+            if(mEntries.compareAndSet(entries, updated)){
+                return;
+            }
+        }
+    }
+
+    public void remove(IBleEvents listener){
+        while (true){
+            Entry [] entries = mEntries.get();
+            int index = -1;
+            for (int i = 0; i < entries.length; i++){
+                if(entries[i].mListener == listener){
+                    index = i;
+                    break;
+                }
+            }
+            if(index < 0){
+                return;
+            }
+
+            Entry [] updated = new Entry[entries.length - 1];
+            System.arraycopy(entries, 0, updated, 0, index);
+            System.arraycopy(entries, index + 1, updated, index, updated.length - index);
+            if(mEntries.compareAndSet(entries, updated)){
+                return;
+            }
+        }
+    }
+
+    public void clear(){
+        mEntries.set(EMPTY);
+    }
+
+    public void connectionStateChanged(int state){
+        // Data received before the change is delivered before it
+        flushBatch();
+        for (Entry entry : mEntries.get()){
+            if(entry.mExecutor == INLINE){
+                entry.mListener.bleConnectionStateChanged(state);
+            }
+            else {
+                entry.mExecutor.execute(() -> entry.mListener.bleConnectionStateChanged(state));
+            }
+        }
+    }
+
+    // data is only valid during the call. Inline IBleBufferEvents listeners get it as is, all the others share
+    // one copy - buffer listeners on an executor through a read-only buffer of their own
+    public void messageReceived(UUID uuid, ByteBuffer data){
+        int position = data.position();
+        int limit = data.limit();
+        byte [] copy = null;
+        boolean batched = false;
+
+        for (Entry entry : mEntries.get()){
+            IBleEvents listener = entry.mListener;
+            if(listener instanceof IBleBatchEvents){
+                batched = true;
+                continue;
+            }
+            if(listener instanceof IBleBufferEvents && entry.mExecutor == INLINE){
+                ((IBleBufferEvents) listener).bleBufferReceived(uuid, data);
+                data.limit(limit);
+                data.position(position);
+                continue;
+            }
+
+            // Only these listeners pay for a copy
+            if(copy == null){
+                copy = new byte[limit - position];
+                data.get(copy);
+                data.position(position);
+            }
+
+            if(listener instanceof IBleBufferEvents){
+                ByteBuffer buffer = ByteBuffer.wrap(copy).asReadOnlyBuffer();
+                entry.mExecutor.execute(() -> ((IBleBufferEvents) listener).bleBufferReceived(uuid, buffer));
+            }
+            else if(entry.mExecutor == INLINE){
+                listener.bleDataReceived(uuid, copy);
+            }
+            else {
+                byte [] message = copy;
+                entry.mExecutor.execute(() -> listener.bleDataReceived(uuid, message));
+            }
+        }
+
+        if(batched){
+            addToBatch(uuid, data);
+        }
+    }
+
+    // operation is only valid during the call, see BleOperation.snapshot()
+    public void messageSent(BleOperation operation){
+        BleOperation snapshot = null;
+        for (Entry entry : mEntries.get()){
+            if(entry.mExecutor == INLINE){
+                entry.mListener.bleDataSent(operation);
+            }
+            else {
+                if(snapshot == null){
+                    snapshot = operation.snapshot(null);
+                }
+                BleOperation sent = snapshot;
+                entry.mExecutor.execute(() -> entry.mListener.bleDataSent(sent));
+            }
+        }
+    }
+
+    public void operationFailed(BleOperation operation, eBleOperationError error){
+        BleOperation snapshot = null;
+        for (Entry entry : mEntries.get()){
+            if(entry.mExecutor == INLINE){
+                entry.mListener.bleOperationFailed(operation, error);
+            }
+            else {
+                if(snapshot == null){
+                    snapshot = operation.snapshot(error);
+                }
+                BleOperation failed = snapshot;
+                entry.mExecutor.execute(() -> entry.mListener.bleOperationFailed(failed, error));
+            }
+        }
+    }
+
+    public void writabilityChanged(boolean writable){
+        for (Entry entry : mEntries.get()){
+            if(entry.mExecutor == INLINE){
+                entry.mListener.bleWritabilityChanged(writable);
+            }
+            else {
+                entry.mExecutor.execute(() -> entry.mListener.bleWritabilityChanged(writable));
+            }
+        }
+    }
+
+    private void addToBatch(UUID uuid, ByteBuffer data){
+        int length = data.remaining();
+        while (true){
+            BleMessageBatch full;
+            boolean added;
+            synchronized (mBatchLock){
+                // An empty batch always takes it
+                added = mBatch.fits(length);
+                if(added){
+                    mBatch.add(uuid, data);
+                    if(mBatch.getCount() == 1 && !mBatch.isFull() && mTimerWheel != null && mBatchLatencyMs > 0){
+                        long batchId = mBatchId;
+                        mFlushTimeout = mTimerWheel.schedule(
+                                () -> ForkJoinPool.commonPool().execute(() -> flushExpired(batchId)), mBatchLatencyMs);
+                    }
+                }
+                full = !added || mBatch.isFull() ? takeBatchLocked() : null;
+            }
+            if(full != null){
+                deliver(full);
+            }
+            if(added){
+                return;
+            }
+        }
+    }
+
+    // Pool thread. The batch may have been flushed on size meanwhile
+    private void flushExpired(long batchId){
+        BleMessageBatch batch;
+        synchronized (mBatchLock){
+            if(batchId != mBatchId || mBatch.isEmpty()){
+                return;
+            }
+            batch = takeBatchLocked();
+        }
+        deliver(batch);
+    }
+
+    // Swaps the pending batch for the spare one. Returns holding mDeliveryLock: the previous delivery is over so
+    // the spare is free, and this batch is delivered before any taken after it
+    private BleMessageBatch takeBatchLocked(){
+        mDeliveryLock.lock();
+        mBatchId++;
+        if(mFlushTimeout != null){
+            mFlushTimeout.cancel();
+            mFlushTimeout = null;
+        }
+        BleMessageBatch batch = mBatch;
+        mBatch = mSpareBatch;
+        mSpareBatch = null;
+        return batch;
+    }
+
+    // Outside mBatchLock, releases mDeliveryLock
+    private void deliver(BleMessageBatch batch){
+        try {
+            if(batch.isEmpty()){
+                return;
+            }
+            // Listeners on an executor share one copy, the batch itself is reused
+            BleMessageBatch copy = null;
+            for (Entry entry : mEntries.get()){
+                if(!(entry.mListener instanceof IBleBatchEvents)){
+                    continue;
+                }
+                IBleBatchEvents listener = (IBleBatchEvents) entry.mListener;
+                if(entry.mExecutor == INLINE){
+                    listener.bleBatchReceived(batch);
+                }
+                else {
+                    if(copy == null){
+                        copy = batch.copy();
+                    }
+                    BleMessageBatch shared = copy;
+                    entry.mExecutor.execute(() -> listener.bleBatchReceived(shared));
+                }
+            }
+        } finally {
+            batch.clear();
+            // Unless setBatching() replaced it meanwhile
+            if(mSpareBatch == null){
+                mSpareBatch = batch;
+            }
+            mDeliveryLock.unlock();
+        }
+    }
+}
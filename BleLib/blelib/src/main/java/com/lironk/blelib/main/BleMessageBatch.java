@@ -0,0 +1,130 @@
+package com.lironk.blelib.main;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+// Received messages handed to IBleBatchEvents listeners in one call. The payloads are packed back to back in one
+// array (getData()), message i being getLength(i) bytes from getOffset(i), in the order they were received.
+// The arrays are reused by the next batch - a batch is only valid until bleBatchReceived() returns
+public class BleMessageBatch {
+
+    private UUID [] mUuids;
+    private int [] mOffsets;
+    private int [] mLengths;
+    // nanoTime each message was added at
+    private long [] mTimes;
+    private byte [] mData;
+    private int mCount;
+    private int mSize;
+
+    BleMessageBatch(int maxMessages, int maxBytes) {
+        mUuids = new UUID[maxMessages];
+        mOffsets = new int[maxMessages];
+        mLengths = new int[maxMessages];
+        mTimes = new long[maxMessages];
+        mData = new byte[maxBytes];
+        mCount = 0;
+        mSize = 0;
+    }
+
+    public int getCount(){
+        return mCount;
+    }
+
+    // Total payload bytes
+    public int getSize(){
+        return mSize;
+    }
+
+    public UUID getUuid(int index){
+        return mUuids[index];
+    }
+
+    public byte [] getData(){
+        return mData;
+    }
+
+    public int getOffset(int index){
+        return mOffsets[index];
+    }
+
+    public int getLength(int index){
+        return mLengths[index];
+    }
+
+    // nanoTime message index was received (reassembled), not when the batch was delivered
+    public long getReceiveTimeNs(int index){
+        return mTimes[index];
+    }
+
+    // Read-only view of message index, same lifetime as the batch
+    public ByteBuffer getBuffer(int index){
+        return ByteBuffer.wrap(mData, mOffsets[index], mLengths[index]).slice().asReadOnlyBuffer();
+    }
+
+    // Copy of message index, safe to keep
+    public byte [] getMessage(int index){
+        byte [] message = new byte[mLengths[index]];
+        System.arraycopy(mData, mOffsets[index], message, 0, message.length);
+        return message;
+    }
+
+    boolean isEmpty(){
+        return mCount == 0;
+    }
+
+    boolean isFull(){
+        return mCount == mUuids.length || mSize == mData.length;
+    }
+
+    // False if the batch has no room left for length bytes. An empty batch grows to take a message larger than it
+    boolean fits(int length){
+        if(mCount == mUuids.length){
+            return false;
+        }
+        if(mSize + length <= mData.length){
+            return true;
+        }
+        if(mCount == 0){
+            mData = new byte[length];
+            return true;
+        }
+        return false;
+    }
+
+    // Caller checks fits() first
+    void add(UUID uuid, ByteBuffer data){
+        int position = data.position();
+        int length = data.remaining();
+        data.get(mData, mSize, length);
+        data.position(position);
+
+        mUuids[mCount] = uuid;
+        mOffsets[mCount] = mSize;
+        mLengths[mCount] = length;
+        mTimes[mCount] = System.nanoTime();
+        mCount++;
+        mSize += length;
+    }
+
+    void clear(){
+        for (int i = 0; i < mCount; i++){
+            mUuids[i] = null;
+        }
+        mCount = 0;
+        mSize = 0;
+    }
+
+    // Trimmed copy for listeners on an executor, never reused
+    BleMessageBatch copy(){
+        BleMessageBatch batch = new BleMessageBatch(Math.max(1, mCount), mSize);
+        System.arraycopy(mUuids, 0, batch.mUuids, 0, mCount);
+        System.arraycopy(mOffsets, 0, batch.mOffsets, 0, mCount);
+        System.arraycopy(mLengths, 0, batch.mLengths, 0, mCount);
+        System.arraycopy(mTimes, 0, batch.mTimes, 0, mCount);
+        System.arraycopy(mData, 0, batch.mData, 0, mSize);
+        batch.mCount = mCount;
+        batch.mSize = mSize;
+        return batch;
+    }
+}
@@ -1,4 +1,129 @@
 package com.lironk.blelib.main;
 
+import com.lironk.blelib.async.BleCompletion;
+import com.lironk.blelib.async.BleOperationException;
+import com.lironk.blelib.enums.eBleOperationError;
+import com.lironk.blelib.watchdog.BleTimeout;
+
 public abstract class BleOperation {
+
+    // System.nanoTime() stamps, see BleLatencyRecorder
+    private long mEnqueueTime;
+    private long mDispatchTime;
+
+    // Watchdog state, see BleWatchdog. The timeout is reused by every arm, recycling included
+    private volatile BleTimeout mTimeout;
+    private volatile int mEpoch;
+    private volatile int mAttempts;
+    private volatile long mStalledTime;
+
+    // Caller's request this operation is part of, null if nobody waits for it
+    private volatile BleCompletion<?> mCompletion;
+
+    // Set by the queue when the operation is queued (again, for a retry)
+    public void setEnqueueTime(long enqueueTime){
+        mEnqueueTime = enqueueTime;
+    }
+
+    public long getEnqueueTime(){
+        return mEnqueueTime;
+    }
+
+    // Set by the queue when the executor takes the operation
+    public void setDispatchTime(long dispatchTime){
+        mDispatchTime = dispatchTime;
+    }
+
+    public long getDispatchTime(){
+        return mDispatchTime;
+    }
+
+    public BleTimeout getTimeout(){
+        return mTimeout;
+    }
+
+    public void setTimeout(BleTimeout timeout){
+        mTimeout = timeout;
+    }
+
+    // Watchdog epoch it was armed in
+    public int getEpoch(){
+        return mEpoch;
+    }
+
+    public void setEpoch(int epoch){
+        mEpoch = epoch;
+    }
+
+    // False if sending it again after a missed deadline could deliver it twice where that breaks the peer,
+    // e.g. a fragment in the middle of a message
+    public boolean isResendable(){
+        return true;
+    }
+
+    // Times the operation was retried
+    public int getAttempts(){
+        return mAttempts;
+    }
+
+    public void setAttempts(int attempts){
+        mAttempts = attempts;
+    }
+
+    // System.nanoTime() of the first missed deadline or refusal, 0 while the operation never stalled
+    public long getStalledTime(){
+        return mStalledTime;
+    }
+
+    public void setStalledTime(long stalledTime){
+        mStalledTime = stalledTime;
+    }
+
+    // Set before the operation is queued
+    public void setCompletion(BleCompletion<?> completion){
+        mCompletion = completion;
+    }
+
+    // The request gave up (failed, timed out or cancelled) - don't send the operation
+    public boolean isAborted(){
+        BleCompletion<?> completion = mCompletion;
+        return completion != null && completion.isAborted();
+    }
+
+    // The completion callback came. result is what the request's future completes with, if anything
+    public void complete(Object result){
+        BleCompletion<?> completion = mCompletion;
+        if(completion != null){
+            mCompletion = null;
+            completion.onCompleted(result);
+        }
+    }
+
+    public void fail(eBleOperationError error){
+        fail(error, BleOperationException.NO_STATUS);
+    }
+
+    public void fail(eBleOperationError error, int status){
+        BleCompletion<?> completion = mCompletion;
+        if(completion != null){
+            mCompletion = null;
+            completion.onFailed(new BleOperationException(error, status));
+        }
+    }
+
+    // What listeners on an executor get instead of the operation, see BleListenerRegistry. Only pooled operations
+    // are recycled and reused once reported, they return a BleOperationSnapshot. error is null for a sent one
+    public BleOperation snapshot(eBleOperationError error){
+        return this;
+    }
+
+    // Pooled operations call it when recycled
+    protected void clearState(){
+        mEnqueueTime = 0;
+        mDispatchTime = 0;
+        mEpoch = 0;
+        mAttempts = 0;
+        mStalledTime = 0;
+        mCompletion = null;
+    }
 }
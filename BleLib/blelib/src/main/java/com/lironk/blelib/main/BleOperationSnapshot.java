@@ -0,0 +1,52 @@
+package com.lironk.blelib.main;
+
+import com.lironk.blelib.enums.eBleOperationError;
+
+import java.util.UUID;
+
+// Immutable copy of what a pooled operation carried when it was reported - the operation itself is reused
+// right after. See BleOperation.snapshot()
+public final class BleOperationSnapshot extends BleOperation {
+
+    private final UUID mUuid;
+    // Of an extended fragment, -1 otherwise
+    private final int mMessageId;
+    private final int mLength;
+    // Null if the operation was sent
+    private final eBleOperationError mError;
+
+    public BleOperationSnapshot(UUID uuid, int messageId, int length, eBleOperationError error) {
+        mUuid = uuid;
+        mMessageId = messageId;
+        mLength = length;
+        mError = error;
+    }
+
+    public UUID getUuid(){
+        return mUuid;
+    }
+
+    public int getMessageId(){
+        return mMessageId;
+    }
+
+    // Bytes of the fragment, framing header included
+    public int getLength(){
+        return mLength;
+    }
+
+    public eBleOperationError getError(){
+        return mError;
+    }
+
+    @Override
+    public BleOperation snapshot(eBleOperationError error){
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "BleOperationSnapshot{uuid=" + mUuid + ", messageId=" + mMessageId + ", length=" + mLength
+                + ", error=" + mError + "}";
+    }
+}
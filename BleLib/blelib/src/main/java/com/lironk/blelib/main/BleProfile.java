@@ -1,5 +1,8 @@
 package com.lironk.blelib.main;
 
+import com.lironk.blelib.enums.eBleFraming;
+import com.lironk.blelib.enums.eBleLane;
+
 import java.util.UUID;
 
 public class BleProfile {
@@ -8,6 +11,11 @@ public class BleProfile {
     public final static int DEFAULT_MTU = 20;
 
     public final static int HEADER_SIZE = 2;
+    public final static int EXT_HEADER_SIZE = 3;
+    public final static byte EXT_FRAME_MARKER = 0;
+    public final static int MAX_MESSAGE_SIZE = 1024 * 1024;
+    // Highest framing this build can send, the one in use is negotiated through the capabilities characteristics
+    public final static eBleFraming FRAMING = eBleFraming.Extended;
     public final static int MTU = 512;
     public final static String SERVER_NAME = "BleServer";
 
@@ -21,11 +29,35 @@ public class BleProfile {
     public final static UUID R_STATUS = UUID.fromString("9f63117d-680d-4ef5-9e64-92391cc37615");
     public final static UUID R_BANDWIDTH = UUID.fromString("58d1f439-4433-4c04-a909-eebb0c1b4a38");
     public final static UUID R_USER = UUID.fromString("4bb55b36-4918-4116-8359-4cd2e2393743");
+    public final static UUID R_CAPABILITIES = UUID.fromString("c1e6a0f2-7b3d-4f43-9d8e-2a5b6c0e91d4");
+    public final static UUID R_BULK_CREDIT = UUID.fromString("0b7e4d2c-61a9-4f85-b3d0-9c2e7a15f648");
+    // Echo of W_PING
+    public final static UUID R_PONG = UUID.fromString("7c2f94e1-3b58-4a06-9d17-e4a80c5b2f93");
 
     // Writable data characteristic UUIDs (mobile->sensor)
     public final static UUID W_COMMAND = UUID.fromString("8a5dbb99-6159-4972-81de-48780ef1ea0e");
-
-    public final static UUID[] READABLE_CHARC_ARR = {R_STATUS, R_BANDWIDTH, R_USER};
-
-    public final static UUID[] WRITABLE_CHARC_ARR = {W_COMMAND};
+    public final static UUID W_CAPABILITIES = UUID.fromString("5e0d7c3a-94b1-4c6f-a2e8-7f13d9b04a65");
+    public final static UUID W_PING = UUID.fromString("d4e81a37-0c6b-4f29-b5a2-61f3e9d07c48");
+    // Written without response
+    public final static UUID W_BULK = UUID.fromString("e3a95f16-2c8b-4d70-8a41-6f0b5d93c27e");
+
+    public final static UUID[] READABLE_CHARC_ARR = {R_STATUS, R_BANDWIDTH, R_USER, R_CAPABILITIES, R_BULK_CREDIT, R_PONG};
+
+    public final static UUID[] WRITABLE_CHARC_ARR = {W_COMMAND, W_CAPABILITIES, W_PING};
+
+    public final static UUID[] WRITABLE_NO_RESPONSE_CHARC_ARR = {W_BULK};
+
+    // W_BULK packets the client may have unacknowledged, and how often the server acknowledges
+    public final static int BULK_WINDOW = 32;
+    public final static int BULK_ACK_INTERVAL = BULK_WINDOW / 4;
+
+    public static eBleLane getLane(UUID uuid){
+        if(R_BANDWIDTH.equals(uuid) || W_BULK.equals(uuid)){
+            return eBleLane.Bulk;
+        }
+        if(R_USER.equals(uuid)){
+            return eBleLane.Interactive;
+        }
+        return eBleLane.Control;
+    }
 }
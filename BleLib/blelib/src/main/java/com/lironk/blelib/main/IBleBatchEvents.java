@@ -0,0 +1,18 @@
+package com.lironk.blelib.main;
+
+import java.util.UUID;
+
+// Batch variant of IBleEvents. Listeners implementing it get bleBatchReceived() instead of bleDataReceived():
+// received messages are packed into a BleMessageBatch, flushed once it is full or its first message waited
+// the max latency (see BleListenerRegistry.setBatching()). A pending batch is flushed before a connection state
+// change is reported. Without batching every message comes as a batch of one.
+// An inline listener gets the registry's own batch, valid only until bleBatchReceived() returns. It is called one
+// batch at a time, on the receive thread or, for a deadline flush, a pool thread - never the timer wheel's
+public interface IBleBatchEvents extends IBleEvents {
+
+    void bleBatchReceived(BleMessageBatch batch);
+
+    @Override
+    default void bleDataReceived(UUID uuid, byte [] data) {
+    }
+}
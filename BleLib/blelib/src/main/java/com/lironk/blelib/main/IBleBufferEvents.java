@@ -0,0 +1,19 @@
+package com.lironk.blelib.main;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+// Zero copy variant of IBleEvents. Listeners implementing it get bleBufferReceived() instead of bleDataReceived().
+//
+// data is a read-only view of the reassembled payload, between its position and limit. It is owned by the
+// BLE client/server and only valid until bleBufferReceived() returns - the backing array is recycled for the
+// next message on the same characteristic. Parse it in place and copy out whatever must outlive the call.
+// Listeners may move position/limit, they are restored before the next listener is called.
+public interface IBleBufferEvents extends IBleEvents {
+
+    void bleBufferReceived(UUID uuid, ByteBuffer data);
+
+    @Override
+    default void bleDataReceived(UUID uuid, byte [] data) {
+    }
+}
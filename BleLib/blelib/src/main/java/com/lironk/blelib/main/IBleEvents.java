@@ -1,5 +1,7 @@
 package com.lironk.blelib.main;
 
+import com.lironk.blelib.enums.eBleOperationError;
+
 import java.util.UUID;
 
 public interface IBleEvents {
@@ -8,5 +10,15 @@ public interface IBleEvents {
 
     void bleDataReceived(UUID uuid, byte [] data);
 
+    // Pooled operations are recycled once this returns. Listeners on an executor get a BleOperationSnapshot
     void bleDataSent(BleOperation operation);
+
+    // The operation was given up on after its retries. It is recycled once this returns, see bleDataSent
+    default void bleOperationFailed(BleOperation operation, eBleOperationError error) {
+    }
+
+    // The send queue crossed its high (false) or low (true) watermark. Called on the thread that crossed it -
+    // don't block in it
+    default void bleWritabilityChanged(boolean writable) {
+    }
 }
@@ -2,6 +2,9 @@ package com.lironk.blelib.main;
 
 import android.bluetooth.BluetoothProfile;
 
+import com.lironk.blelib.enums.eBleCommand;
+import com.lironk.blelib.transport.BleFragmenter;
+
 public class Utils {
 
     public static String bleStateToString(int state){
@@ -17,4 +20,13 @@ public class Utils {
                 return "Disconnected";
         }
     }
+
+    // Command byte of a status/command fragment. Unknown if it isn't the first fragment of a message
+    public static eBleCommand getFragmentCommand(byte [] fragment){
+        int idx = BleFragmenter.getPayloadOffset(fragment);
+        if(idx < 0 || idx >= fragment.length){
+            return eBleCommand.Unknown;
+        }
+        return eBleCommand.getCommand(fragment[idx]);
+    }
 }
@@ -0,0 +1,98 @@
+package com.lironk.blelib.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Log-linear histogram of nanosecond latencies in fixed memory. Values below 64 get a bucket each, every
+// power of 2 above is split in 32 linear buckets, so a bucket is never wider than ~3% of its values.
+// Values over MAX_VALUE_NS are counted as MAX_VALUE_NS. Recording is lock free from any thread
+public class BleLatencyHistogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int LINEAR_COUNT = SUB_COUNT << 1;
+
+    // ~18 minutes
+    public static final long MAX_VALUE_NS = (1L << 40) - 1;
+    private static final int BUCKET_COUNT = getIndex(MAX_VALUE_NS) + 1;
+
+    private final AtomicLongArray mCounts;
+    private final AtomicLong mTotalCount;
+    private final AtomicLong mSum;
+    private final AtomicLong mMax;
+
+    public BleLatencyHistogram() {
+        mCounts = new AtomicLongArray(BUCKET_COUNT);
+        mTotalCount = new AtomicLong(0);
+        mSum = new AtomicLong(0);
+        mMax = new AtomicLong(0);
+    }
+
+    public void record(long valueNs){
+        long value = Math.min(MAX_VALUE_NS, Math.max(0, valueNs));
+        mCounts.incrementAndGet(getIndex(value));
+        mTotalCount.incrementAndGet();
+        mSum.addAndGet(value);
+        mMax.accumulateAndGet(value, Math::max);
+    }
+
+    public long getCount(){
+        return mTotalCount.get();
+    }
+
+    public long getMeanNs(){
+        long count = mTotalCount.get();
+        return count == 0 ? 0 : mSum.get() / count;
+    }
+
+    public long getMaxNs(){
+        return mMax.get();
+    }
+
+    // Upper bound of the bucket holding the percentile (0 - 100), 0 if nothing was recorded.
+    // Counts recorded while it runs may or may not be seen
+    public long getPercentileNs(double percentile){
+        long count = mTotalCount.get();
+        if(count == 0){
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++){
+            seen += mCounts.get(i);
+            if(seen >= rank){
+                return Math.min(getUpperBound(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    public void reset(){
+        for (int i = 0; i < BUCKET_COUNT; i++){
+            mCounts.set(i, 0);
+        }
+        mTotalCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    private static int getIndex(long value){
+        if(value < LINEAR_COUNT){
+            return (int) value;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - SUB_BITS;
+        return LINEAR_COUNT + (msb - SUB_BITS - 1) * SUB_COUNT + (int) (value >>> shift) - SUB_COUNT;
+    }
+
+    private static long getUpperBound(int index){
+        if(index < LINEAR_COUNT){
+            return index;
+        }
+        int octave = (index - LINEAR_COUNT) / SUB_COUNT;
+        int sub = (index - LINEAR_COUNT) % SUB_COUNT;
+        int shift = octave + 1;
+        return ((long) (SUB_COUNT + sub + 1) << shift) - 1;
+    }
+}
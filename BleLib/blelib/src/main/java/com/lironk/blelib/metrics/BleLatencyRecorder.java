@@ -0,0 +1,139 @@
+package com.lironk.blelib.metrics;
+
+import android.util.Log;
+
+import com.lironk.blelib.enums.eBleLatencyStage;
+import com.lironk.blelib.main.BleOperation;
+import com.lironk.blelib.watchdog.BleTimeout;
+import com.lironk.blelib.watchdog.BleTimerWheel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Queue wait and service latency of completed operations, one histogram per operation type and stage.
+// Growing QueueWait means our queueing is the bottleneck, growing Service means the stack or the radio is
+public class BleLatencyRecorder {
+
+    private final String mTag;
+    private final ConcurrentHashMap<Class<?>, BleLatencyHistogram []> mHistograms;
+
+    private final Object mDumpLock = new Object();
+    private final BleTimeout mDumpTimeout;
+    // 0 while not dumping
+    private long mDumpPeriodMs;
+
+    // tag names the periodic dump in the log, which runs on timerWheel
+    public BleLatencyRecorder(String tag, BleTimerWheel timerWheel) {
+        mTag = tag;
+        mHistograms = new ConcurrentHashMap<>();
+        mDumpTimeout = new BleTimeout(timerWheel, this::onDump);
+    }
+
+    // Any thread. The operation's completion callback came at completeTime (System.nanoTime())
+    public void onCompleted(BleOperation operation, long completeTime){
+        long enqueueTime = operation.getEnqueueTime();
+        long dispatchTime = operation.getDispatchTime();
+        if(dispatchTime == 0){
+            return;
+        }
+
+        BleLatencyHistogram [] histograms = getHistograms(operation.getClass());
+        if(enqueueTime != 0){
+            histograms[eBleLatencyStage.QueueWait.ordinal()].record(dispatchTime - enqueueTime);
+        }
+        histograms[eBleLatencyStage.Service.ordinal()].record(completeTime - dispatchTime);
+    }
+
+    // Operation types seen so far
+    public List<String> getTypes(){
+        List<String> types = new ArrayList<>();
+        for (Class<?> type : mHistograms.keySet()){
+            types.add(type.getSimpleName());
+        }
+        return types;
+    }
+
+    // null if no operation of this type completed yet
+    public BleLatencyHistogram getHistogram(String type, eBleLatencyStage stage){
+        for (Map.Entry<Class<?>, BleLatencyHistogram []> entry : mHistograms.entrySet()){
+            if(entry.getKey().getSimpleName().equals(type)){
+                return entry.getValue()[stage.ordinal()];
+            }
+        }
+        return null;
+    }
+
+    public void reset(){
+        for (BleLatencyHistogram [] histograms : mHistograms.values()){
+            for (BleLatencyHistogram histogram : histograms){
+                histogram.reset();
+            }
+        }
+    }
+
+    // One line per operation type and stage, latencies in microseconds
+    public String dump(){
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Class<?>, BleLatencyHistogram []> entry : mHistograms.entrySet()){
+            for (eBleLatencyStage stage : eBleLatencyStage.values()){
+                BleLatencyHistogram histogram = entry.getValue()[stage.ordinal()];
+                sb.append(entry.getKey().getSimpleName()).append(' ').append(stage)
+                        .append(": count=").append(histogram.getCount())
+                        .append(" mean=").append(histogram.getMeanNs() / 1000)
+                        .append(" p50=").append(histogram.getPercentileNs(50) / 1000)
+                        .append(" p90=").append(histogram.getPercentileNs(90) / 1000)
+                        .append(" p99=").append(histogram.getPercentileNs(99) / 1000)
+                        .append(" max=").append(histogram.getMaxNs() / 1000)
+                        .append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    // Logs dump() every periodMs until stopDump()
+    public void startDump(long periodMs){
+        synchronized (mDumpLock){
+            mDumpPeriodMs = Math.max(1, periodMs);
+            mDumpTimeout.schedule(mDumpPeriodMs);
+        }
+    }
+
+    public void stopDump(){
+        synchronized (mDumpLock){
+            mDumpPeriodMs = 0;
+            mDumpTimeout.cancel();
+        }
+    }
+
+    // Wheel thread. A line per operation type and stage - short enough not to hold up the timeouts behind it
+    private void onDump(){
+        for (String line : dump().split("\n")){
+            if(!line.isEmpty()){
+                Log.d(mTag, "Latency (us). " + line);
+            }
+        }
+        synchronized (mDumpLock){
+            // Not if stopped or started again meanwhile
+            if(mDumpPeriodMs > 0 && mDumpTimeout.isExpired()){
+                mDumpTimeout.schedule(mDumpPeriodMs);
+            }
+        }
+    }
+
+    private BleLatencyHistogram [] getHistograms(Class<?> type){
+        BleLatencyHistogram [] histograms = mHistograms.get(type);
+        if(histograms == null){
+            histograms = new BleLatencyHistogram[eBleLatencyStage.COUNT];
+            for (int i = 0; i < histograms.length; i++){
+                histograms[i] = new BleLatencyHistogram();
+            }
+            BleLatencyHistogram [] existing = mHistograms.putIfAbsent(type, histograms);
+            if(existing != null){
+                histograms = existing;
+            }
+        }
+        return histograms;
+    }
+}
@@ -0,0 +1,11 @@
+package com.lironk.blelib.queue;
+
+import com.lironk.blelib.main.BleOperation;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+// Holds a lane position for the latest value of a conflated characteristic. Producers swap the value and
+// enqueue the token only if none was waiting, the executor takes the value out when the token comes up
+class BleConflatedOperation extends BleOperation {
+    final AtomicReference<BleOperation> mValue = new AtomicReference<>();
+}
@@ -0,0 +1,62 @@
+package com.lironk.blelib.queue;
+
+// Sender side of a cumulative-ack credit scheme: at most window packets may be sent and not yet
+// acknowledged. Acks carry the receiver's total count so a lost or repeated one does no harm.
+// Counters wrap - only their difference is used
+public class BleCreditGate {
+
+    private final int mWindow;
+    private int mSent;
+    private int mAcked;
+    private int mGeneration;
+
+    public BleCreditGate(int window) {
+        mWindow = window;
+        reset();
+    }
+
+    // Blocks until a credit is available. Returns false if reset() was called while waiting
+    public synchronized boolean acquire(){
+        int generation = mGeneration;
+        while (mSent - mAcked >= mWindow){
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if(generation != mGeneration){
+                return false;
+            }
+        }
+        mSent++;
+        return true;
+    }
+
+    public synchronized void onAck(int received){
+        // Ignore acks older than the one we have
+        if(received - mAcked > 0){
+            mAcked = received;
+            notifyAll();
+        }
+    }
+
+    // A packet that never reached the receiver gives its credit back
+    public synchronized void release(){
+        if(mSent - mAcked > 0){
+            mSent--;
+            notifyAll();
+        }
+    }
+
+    public synchronized void reset(){
+        mSent = 0;
+        mAcked = 0;
+        mGeneration++;
+        notifyAll();
+    }
+
+    public synchronized int getOutstanding(){
+        return mSent - mAcked;
+    }
+}
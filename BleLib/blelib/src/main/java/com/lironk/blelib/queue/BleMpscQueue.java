@@ -0,0 +1,119 @@
+package com.lironk.blelib.queue;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Bounded lock-free ring: any number of producers, a single consumer.
+// Every slot carries a sequence number - producers claim a slot with a CAS on the tail and publish it by
+// advancing the slot sequence, the consumer frees it by moving the sequence one lap ahead
+public class BleMpscQueue<E> {
+
+    private static final int SPINS_BEFORE_PARK = 64;
+    private static final long PARK_NS = 50_000;
+
+    private final AtomicReferenceArray<E> mBuffer;
+    private final AtomicLongArray mSequence;
+    private final int mMask;
+
+    private final AtomicLong mTail;
+    private volatile long mHead;
+
+    public BleMpscQueue(int capacity) {
+        int size = 1;
+        while (size < capacity){
+            size <<= 1;
+        }
+
+        mBuffer = new AtomicReferenceArray<>(size);
+        mSequence = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++){
+            mSequence.set(i, i);
+        }
+        mMask = size - 1;
+        mTail = new AtomicLong(0);
+        mHead = 0;
+    }
+
+    // Returns false if the queue is full
+    public boolean offer(E element){
+        while (true){
+            long tail = mTail.get();
+            int idx = (int) (tail & mMask);
+            long seq = mSequence.get(idx);
+
+            if(seq == tail){
+                if(mTail.compareAndSet(tail, tail + 1)){
+                    mBuffer.lazySet(idx, element);
+                    mSequence.set(idx, tail + 1);
+                    return true;
+                }
+            }
+            else if(seq < tail){
+                return false;
+            }
+        }
+    }
+
+    // Waits for the consumer to make room
+    public void put(E element){
+        int spins = 0;
+        while (!offer(element)){
+            if(spins++ < SPINS_BEFORE_PARK){
+                Thread.yield();
+            }
+            else {
+                LockSupport.parkNanos(this, PARK_NS);
+            }
+        }
+    }
+
+    // Consumer thread only
+    public E poll(){
+        long head = mHead;
+        int idx = (int) (head & mMask);
+        if(mSequence.get(idx) != head + 1){
+            return null;
+        }
+
+        E element = mBuffer.get(idx);
+        mBuffer.lazySet(idx, null);
+        mSequence.set(idx, head + mMask + 1);
+        mHead = head + 1;
+        return element;
+    }
+
+    // Consumer thread only. Removes the elements offered before the producer position mark (see getTail).
+    // A slot claimed but not yet published is waited for
+    public E pollBefore(long mark){
+        while (mHead < mark){
+            E element = poll();
+            if(element != null){
+                return element;
+            }
+            Thread.yield();
+        }
+        return null;
+    }
+
+    // Number of elements offered so far
+    public long getTail(){
+        return mTail.get();
+    }
+
+    // Exact on the consumer thread, a snapshot anywhere else
+    public boolean isEmpty(){
+        long head = mHead;
+        return mSequence.get((int) (head & mMask)) != head + 1;
+    }
+
+    public int size(){
+        long size = mTail.get() - mHead;
+        return (int) Math.max(0, Math.min(size, mMask + 1));
+    }
+
+    public int capacity(){
+        return mMask + 1;
+    }
+}
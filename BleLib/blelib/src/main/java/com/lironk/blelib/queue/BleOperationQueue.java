@@ -0,0 +1,547 @@
+package com.lironk.blelib.queue;
+
+import com.lironk.blelib.enums.eBleBackpressure;
+import com.lironk.blelib.enums.eBleLane;
+import com.lironk.blelib.enums.eBleScheduling;
+import com.lironk.blelib.enums.eBleSendResult;
+import com.lironk.blelib.main.BleOperation;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// GATT operations waiting for the executor thread, one FIFO per lane. take() hands out an operation only while
+// fewer than the window are running - every endOperation() returns a credit. The window is 1 unless set.
+// Producers never block the consumer - it spins briefly, then parks when there is nothing it can do and they unpark it.
+// The data lanes (Interactive and Bulk) have watermarks: the queue stops being writable when they hold the high
+// watermark and becomes writable again once they drain to the low one. Producers see it through admit()
+public class BleOperationQueue {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+    private static final int CONTROL_CAPACITY = 64;
+    private static final int INTERACTIVE_CAPACITY = 256;
+    private static final int RETRY_CAPACITY = 64;
+
+    public static final int DEFAULT_INTERACTIVE_WEIGHT = 4;
+    public static final int DEFAULT_BULK_WEIGHT = 1;
+
+    public static final int DEFAULT_LOW_WATERMARK = 128;
+    public static final int DEFAULT_HIGH_WATERMARK = 512;
+
+    // Yields before the executor parks. The next operation is usually a few microseconds away,
+    // a park and the producer's unpark cost more than that
+    private static final int SPINS_BEFORE_PARK = 64;
+
+    private final BleMpscQueue<BleOperation> [] mLanes;
+    private final IBleOperationRecycler mRecycler;
+
+    // Characteristics where only the newest queued value is sent
+    private final ConcurrentHashMap<UUID, BleConflatedOperation> mConflated;
+    private final AtomicLong mConflatedCount;
+
+    private volatile eBleScheduling mScheduling;
+    private final int [] mWeights;
+    // Executor thread only
+    private final int [] mCredits;
+
+    private volatile Thread mConsumer;
+    private volatile boolean mWaiting;
+    private volatile int mWindow;
+    private final AtomicInteger mInFlight;
+    // Operations to run again (refused by the stack or timed out) - they go before anything else.
+    // mRetryCount lets take() skip the ring while there are none
+    private final BleMpscQueue<BleOperation> mRetries;
+    private final AtomicInteger mRetryCount;
+    // Enqueue and dispatch times are only stamped while something reads them, see setTimestamped()
+    private volatile boolean mTimestamped;
+    private final AtomicBoolean mResetRequested;
+    private final long [] mResetMarks;
+    private long mRetryResetMark;
+
+    private volatile eBleBackpressure mBackpressure;
+    private volatile int mLowWatermark;
+    private volatile int mHighWatermark;
+    private final AtomicBoolean mWritable;
+    private final Object mWritableLock = new Object();
+    private volatile IBleWritabilityListener mWritabilityListener;
+
+    public BleOperationQueue(IBleOperationRecycler recycler) {
+        this(DEFAULT_CAPACITY, recycler);
+    }
+
+    // capacity is the bulk lane size
+    @SuppressWarnings("unchecked")
+    public BleOperationQueue(int capacity, IBleOperationRecycler recycler) {
+        mLanes = new BleMpscQueue[eBleLane.COUNT];
+        mLanes[eBleLane.Control.ordinal()] = new BleMpscQueue<>(CONTROL_CAPACITY);
+        mLanes[eBleLane.Interactive.ordinal()] = new BleMpscQueue<>(INTERACTIVE_CAPACITY);
+        mLanes[eBleLane.Bulk.ordinal()] = new BleMpscQueue<>(capacity);
+        mRecycler = recycler;
+
+        mConflated = new ConcurrentHashMap<>();
+        mConflatedCount = new AtomicLong(0);
+
+        mScheduling = eBleScheduling.Strict;
+        mWeights = new int[eBleLane.COUNT];
+        mCredits = new int[eBleLane.COUNT];
+        setWeights(DEFAULT_INTERACTIVE_WEIGHT, DEFAULT_BULK_WEIGHT);
+
+        mWaiting = false;
+        mWindow = 1;
+        mInFlight = new AtomicInteger(0);
+        mRetries = new BleMpscQueue<>(RETRY_CAPACITY);
+        mRetryCount = new AtomicInteger(0);
+        mTimestamped = false;
+        mResetRequested = new AtomicBoolean(false);
+        mResetMarks = new long[eBleLane.COUNT];
+
+        mBackpressure = eBleBackpressure.Block;
+        mWritable = new AtomicBoolean(true);
+        setWatermarks(DEFAULT_LOW_WATERMARK, DEFAULT_HIGH_WATERMARK);
+    }
+
+    public void setScheduling(eBleScheduling scheduling){
+        mScheduling = scheduling;
+    }
+
+    // Operations taken from each lane per round in Weighted mode
+    public synchronized void setWeights(int interactive, int bulk){
+        mWeights[eBleLane.Interactive.ordinal()] = Math.max(1, interactive);
+        mWeights[eBleLane.Bulk.ordinal()] = Math.max(1, bulk);
+    }
+
+    public void setWindow(int window){
+        mWindow = Math.max(1, window);
+        signal();
+    }
+
+    public int getWindow(){
+        return mWindow;
+    }
+
+    public int getInFlight(){
+        return mInFlight.get();
+    }
+
+    // Stamps every operation with System.nanoTime() when it is queued and taken, for BleLatencyRecorder and
+    // window tuning. Off by default: the two clock reads are a large share of an enqueue/take round trip
+    public void setTimestamped(boolean timestamped){
+        mTimestamped = timestamped;
+    }
+
+    public boolean isTimestamped(){
+        return mTimestamped;
+    }
+
+    public void setBackpressure(eBleBackpressure backpressure){
+        mBackpressure = backpressure;
+    }
+
+    public eBleBackpressure getBackpressure(){
+        return mBackpressure;
+    }
+
+    // Operations queued on the data lanes. high is kept within the bulk lane and above low
+    public void setWatermarks(int low, int high){
+        mHighWatermark = Math.max(1, Math.min(high, mLanes[eBleLane.Bulk.ordinal()].capacity()));
+        mLowWatermark = Math.max(0, Math.min(low, mHighWatermark - 1));
+        checkHighWatermark();
+        checkLowWatermark();
+    }
+
+    public int getLowWatermark(){
+        return mLowWatermark;
+    }
+
+    public int getHighWatermark(){
+        return mHighWatermark;
+    }
+
+    public void setWritabilityListener(IBleWritabilityListener listener){
+        mWritabilityListener = listener;
+    }
+
+    public boolean isWritable(){
+        return mWritable.get();
+    }
+
+    // Blocks until the queue is writable. timeoutMs 0 waits for ever. False on timeout or interrupt
+    public boolean awaitWritable(long timeoutMs){
+        if(mWritable.get()){
+            return true;
+        }
+
+        long deadline = System.nanoTime() + timeoutMs * 1_000_000;
+        synchronized (mWritableLock){
+            while (!mWritable.get()){
+                long waitMs = 0;
+                if(timeoutMs > 0){
+                    waitMs = (deadline - System.nanoTime() + 999_999) / 1_000_000;
+                    if(waitMs <= 0){
+                        return false;
+                    }
+                }
+                try {
+                    mWritableLock.wait(waitMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // Producer side, before a message of fragments operations is queued on lane. Applies the backpressure policy -
+    // false if the message must not be queued. One that would take the data lanes past the high watermark makes
+    // the queue unwritable, as queuing it would have, unless they are at the low one or below.
+    // Never call it with Block from the executor thread
+    public boolean admit(eBleLane lane, int fragments){
+        if(lane == eBleLane.Control){
+            return true;
+        }
+        if(mWritable.get()){
+            int size = getDataSize();
+            if(size + fragments <= mHighWatermark || size <= mLowWatermark){
+                return true;
+            }
+            if(mWritable.compareAndSet(true, false)){
+                onWritabilityChanged(false);
+                checkLowWatermark();
+            }
+        }
+        switch (mBackpressure){
+            case FailFast:
+                return false;
+            case Block:
+                return awaitWritable(0);
+            default:
+                return true;
+        }
+    }
+
+    // Producer side, after a message was queued on lane
+    public eBleSendResult getSendResult(eBleLane lane){
+        return lane == eBleLane.Control || mWritable.get() ? eBleSendResult.Queued : eBleSendResult.Throttled;
+    }
+
+    public void setConflated(UUID key, boolean conflated){
+        if(conflated){
+            mConflated.putIfAbsent(key, new BleConflatedOperation());
+        }
+        else {
+            mConflated.remove(key);
+        }
+    }
+
+    public boolean isConflated(UUID key){
+        return mConflated.containsKey(key);
+    }
+
+    // Values replaced by a newer one before they were sent
+    public long getConflatedCount(){
+        return mConflatedCount.get();
+    }
+
+    public void enqueue(BleOperation operation){
+        enqueue(operation, eBleLane.Control);
+    }
+
+    // A full lane makes the calling thread yield, then park 50us at a time until the executor frees a slot
+    // (see BleMpscQueue.put()). Data producers stay below the lane capacity by going through admit() first,
+    // so only a flood of control operations or Backpressure.None can get there - keep those off the main thread
+    public void enqueue(BleOperation operation, eBleLane lane){
+        if(mTimestamped){
+            operation.setEnqueueTime(System.nanoTime());
+        }
+        mLanes[lane.ordinal()].put(operation);
+        signal();
+        if(lane != eBleLane.Control){
+            checkHighWatermark();
+        }
+    }
+
+    // If key is conflated, an operation that carries a whole message takes the place of the value still waiting
+    // for it instead of queuing behind it. A fragment of a longer message is queued as is, after that value
+    public void enqueue(BleOperation operation, eBleLane lane, UUID key, boolean whole){
+        BleConflatedOperation token = mConflated.get(key);
+        if(token == null){
+            enqueue(operation, lane);
+            return;
+        }
+        if(!whole){
+            // The next value must not jump ahead of the message through the waiting token - it gets a new one
+            if(token.mValue.get() != null){
+                mConflated.replace(key, token, new BleConflatedOperation());
+            }
+            enqueue(operation, lane);
+            return;
+        }
+
+        if(mTimestamped){
+            operation.setEnqueueTime(System.nanoTime());
+        }
+
+        BleOperation stale = token.mValue.getAndSet(operation);
+        if(stale != null){
+            mConflatedCount.incrementAndGet();
+            mRecycler.recycle(stale);
+            return;
+        }
+        enqueue(token, lane);
+    }
+
+    // Executor thread only. Blocks until the previous operation ended and another one is queued.
+    // Null once the executor thread is interrupted
+    public BleOperation take(){
+        Thread consumer = Thread.currentThread();
+        if(mConsumer != consumer){
+            mConsumer = consumer;
+        }
+        int spins = 0;
+        while (true){
+            if(mResetRequested.get() && mResetRequested.getAndSet(false)){
+                drainToResetMarks();
+            }
+
+            if(mInFlight.get() < mWindow){
+                BleOperation operation = pollRetry();
+                if(operation == null){
+                    operation = resolve(mScheduling == eBleScheduling.Weighted ? pollWeighted() : pollStrict());
+                    // The data lanes only need a look while they are above the low watermark
+                    if(operation != null && !mWritable.get()){
+                        checkLowWatermark();
+                    }
+                }
+                if(operation != null){
+                    mInFlight.incrementAndGet();
+                    if(mTimestamped){
+                        operation.setDispatchTime(System.nanoTime());
+                    }
+                    return operation;
+                }
+            }
+
+            if(spins++ < SPINS_BEFORE_PARK){
+                Thread.yield();
+                continue;
+            }
+            spins = 0;
+            mWaiting = true;
+            if(!canProceed()){
+                LockSupport.park(this);
+            }
+            mWaiting = false;
+            if(Thread.currentThread().isInterrupted()){
+                return null;
+            }
+        }
+    }
+
+    // A running operation completed (or failed) - its credit goes back
+    public void endOperation(){
+        if(mInFlight.getAndUpdate(inFlight -> inFlight > 0 ? inFlight - 1 : 0) > 0){
+            signal();
+        }
+    }
+
+    // Any thread. Hands the operation out again ahead of every lane. Its credit is not returned here -
+    // call endOperation() for the failed attempt
+    public void retry(BleOperation operation){
+        if(mTimestamped){
+            operation.setEnqueueTime(System.nanoTime());
+        }
+        mRetries.put(operation);
+        mRetryCount.incrementAndGet();
+        signal();
+    }
+
+    // Any thread. Operations queued so far are dropped by the executor thread on its next wake-up,
+    // the ones enqueued after this call are kept
+    public void reset(){
+        synchronized (mResetMarks){
+            for (int i = 0; i < mLanes.length; i++){
+                mResetMarks[i] = mLanes[i].getTail();
+            }
+            mRetryResetMark = mRetries.getTail();
+        }
+        // A token queued before the marks is dropped with the value in it - values swapped in from now on
+        // go to new tokens, queued after the marks
+        mConflated.replaceAll((key, token) -> new BleConflatedOperation());
+        mInFlight.set(0);
+        mResetRequested.set(true);
+        signal();
+    }
+
+    // Executor thread only
+    public void clear(){
+        for (eBleLane lane : eBleLane.values()){
+            clear(lane);
+        }
+    }
+
+    // Executor thread only
+    public void clear(eBleLane lane){
+        BleOperation operation;
+        while ((operation = mLanes[lane.ordinal()].poll()) != null){
+            recycle(operation);
+        }
+        checkLowWatermark();
+    }
+
+    public int size(){
+        int size = 0;
+        for (BleMpscQueue<BleOperation> lane : mLanes){
+            size += lane.size();
+        }
+        return size;
+    }
+
+    public int size(eBleLane lane){
+        return mLanes[lane.ordinal()].size();
+    }
+
+    private BleOperation pollRetry(){
+        if(mRetryCount.get() == 0){
+            return null;
+        }
+        BleOperation operation = mRetries.poll();
+        if(operation != null){
+            mRetryCount.decrementAndGet();
+        }
+        return operation;
+    }
+
+    private BleOperation pollStrict(){
+        for (BleMpscQueue<BleOperation> lane : mLanes){
+            BleOperation operation = lane.poll();
+            if(operation != null){
+                return operation;
+            }
+        }
+        return null;
+    }
+
+    // Control first, then weighted round robin over the other lanes. Credits are refilled once every
+    // non-empty lane used its share, so an idle lane doesn't keep its credits for a later burst
+    private BleOperation pollWeighted(){
+        BleOperation operation = mLanes[eBleLane.Control.ordinal()].poll();
+        if(operation != null){
+            return operation;
+        }
+
+        for (int round = 0; round < 2; round++){
+            for (int i = eBleLane.Interactive.ordinal(); i < mLanes.length; i++){
+                if(mCredits[i] > 0){
+                    operation = mLanes[i].poll();
+                    if(operation != null){
+                        mCredits[i]--;
+                        return operation;
+                    }
+                }
+            }
+
+            synchronized (this){
+                for (int i = eBleLane.Interactive.ordinal(); i < mLanes.length; i++){
+                    mCredits[i] = mWeights[i];
+                }
+            }
+        }
+        return null;
+    }
+
+    private void drainToResetMarks(){
+        long [] marks;
+        long retryMark;
+        synchronized (mResetMarks){
+            marks = mResetMarks.clone();
+            retryMark = mRetryResetMark;
+        }
+
+        BleOperation retry;
+        while ((retry = mRetries.pollBefore(retryMark)) != null){
+            mRetryCount.decrementAndGet();
+            mRecycler.recycle(retry);
+        }
+
+        for (int i = 0; i < mLanes.length; i++){
+            BleOperation operation;
+            while ((operation = mLanes[i].pollBefore(marks[i])) != null){
+                recycle(operation);
+            }
+        }
+        checkLowWatermark();
+    }
+
+    private int getDataSize(){
+        return mLanes[eBleLane.Interactive.ordinal()].size() + mLanes[eBleLane.Bulk.ordinal()].size();
+    }
+
+    // Each side checks the other one after flipping - a producer and the consumer crossing at the same
+    // time must not leave an empty queue unwritable
+    private void checkHighWatermark(){
+        if(mWritable.get() && getDataSize() >= mHighWatermark && mWritable.compareAndSet(true, false)){
+            onWritabilityChanged(false);
+            checkLowWatermark();
+        }
+    }
+
+    private void checkLowWatermark(){
+        if(!mWritable.get() && getDataSize() <= mLowWatermark && mWritable.compareAndSet(false, true)){
+            synchronized (mWritableLock){
+                mWritableLock.notifyAll();
+            }
+            onWritabilityChanged(true);
+            checkHighWatermark();
+        }
+    }
+
+    private void onWritabilityChanged(boolean writable){
+        IBleWritabilityListener listener = mWritabilityListener;
+        if(listener != null){
+            listener.onWritabilityChanged(writable);
+        }
+    }
+
+    // Value behind a conflation token
+    private BleOperation resolve(BleOperation operation){
+        if(operation instanceof BleConflatedOperation){
+            return ((BleConflatedOperation) operation).mValue.getAndSet(null);
+        }
+        return operation;
+    }
+
+    private void recycle(BleOperation operation){
+        operation = resolve(operation);
+        if(operation != null){
+            mRecycler.recycle(operation);
+        }
+    }
+
+    private boolean canProceed(){
+        if(mResetRequested.get()){
+            return true;
+        }
+        if(mInFlight.get() >= mWindow){
+            return false;
+        }
+        if(mRetryCount.get() > 0){
+            return true;
+        }
+        for (BleMpscQueue<BleOperation> lane : mLanes){
+            if(!lane.isEmpty()){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void signal(){
+        if(mWaiting){
+            LockSupport.unpark(mConsumer);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.lironk.blelib.queue;
+
+// Rate limiter: tokens (bytes) accrue at rate per second up to burst. A send may take the bucket below zero,
+// the debt is paid back before the next one is allowed, so the long run rate holds for any message size.
+// Not thread safe - the caller serializes access
+public class BleTokenBucket {
+
+    private static final long NS_PER_SECOND = 1_000_000_000L;
+
+    private final long mRate;
+    private final long mBurst;
+    private long mTokens;
+    private long mLastTime;
+
+    // burst 0 or less allows a tenth of a second worth of tokens
+    public BleTokenBucket(long rate, long burst, long now) {
+        mRate = Math.max(1, rate);
+        mBurst = burst > 0 ? burst : Math.max(1, mRate / 10);
+        mTokens = mBurst;
+        mLastTime = now;
+    }
+
+    public long getRate(){
+        return mRate;
+    }
+
+    public long getBurst(){
+        return mBurst;
+    }
+
+    // Takes size tokens if the bucket holds them. A size larger than the burst only needs a full bucket
+    public boolean tryAcquire(int size, long now){
+        refill(now);
+        if(mTokens < Math.min(size, mBurst)){
+            return false;
+        }
+        mTokens -= size;
+        return true;
+    }
+
+    // Nanoseconds until tryAcquire(size) can succeed
+    public long getWaitNs(int size, long now){
+        refill(now);
+        long missing = Math.min(size, mBurst) - mTokens;
+        if(missing <= 0){
+            return 0;
+        }
+        return (missing * NS_PER_SECOND + mRate - 1) / mRate;
+    }
+
+    private void refill(long now){
+        long elapsed = now - mLastTime;
+        if(elapsed <= 0){
+            return;
+        }
+        // Whole tokens only - the time of the fraction left over is kept for the next refill
+        long added = elapsed / NS_PER_SECOND * mRate + (elapsed % NS_PER_SECOND) * mRate / NS_PER_SECOND;
+        if(added <= 0){
+            return;
+        }
+        if(mTokens + added >= mBurst){
+            mTokens = mBurst;
+            mLastTime = now;
+        }
+        else {
+            mTokens += added;
+            mLastTime += added * NS_PER_SECOND / mRate;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.lironk.blelib.queue;
+
+// Additive-increase/multiplicative-decrease of the in-flight window, driven by completion latency.
+// While the smoothed latency stays near the lowest one seen the link still has room: grow by one every
+// window's worth of completions. When it climbs well above it, packets are queuing in the stack: halve.
+// The baseline is the lowest latency since reset() - re-learning it while the link is saturated would
+// take the queuing delay for the floor
+public class BleWindowTuner {
+
+    public static final int MIN_WINDOW = 1;
+    public static final int DEFAULT_MAX_WINDOW = 16;
+
+    // Thresholds over the baseline, in eighths
+    private static final int GROW_BELOW = 12;
+    private static final int SHRINK_ABOVE = 24;
+
+    private final int mMaxWindow;
+    private int mWindow;
+
+    private long mSmoothedNs;
+    private long mBaselineNs;
+
+    private int mCompletions;
+
+    public BleWindowTuner() {
+        this(DEFAULT_MAX_WINDOW);
+    }
+
+    public BleWindowTuner(int maxWindow) {
+        mMaxWindow = Math.max(MIN_WINDOW, maxWindow);
+        reset();
+    }
+
+    public synchronized void reset(){
+        mWindow = MIN_WINDOW;
+        mSmoothedNs = 0;
+        mBaselineNs = Long.MAX_VALUE;
+        mCompletions = 0;
+    }
+
+    // Returns the window to use from now on
+    public synchronized int onCompletion(long latencyNs){
+        if(latencyNs <= 0){
+            return mWindow;
+        }
+
+        mSmoothedNs = mSmoothedNs == 0 ? latencyNs : mSmoothedNs + ((latencyNs - mSmoothedNs) >> 3);
+        mBaselineNs = Math.min(mBaselineNs, latencyNs);
+
+        // One adjustment per window's worth of completions, so a decision sees the effect of the previous one
+        if(++mCompletions < mWindow){
+            return mWindow;
+        }
+        mCompletions = 0;
+
+        if(mSmoothedNs * 8 > mBaselineNs * SHRINK_ABOVE){
+            mWindow = Math.max(MIN_WINDOW, mWindow / 2);
+        }
+        else if(mSmoothedNs * 8 < mBaselineNs * GROW_BELOW){
+            mWindow = Math.min(mMaxWindow, mWindow + 1);
+        }
+        return mWindow;
+    }
+
+    // The stack refused a packet - back off right away
+    public synchronized int onBusy(){
+        mWindow = Math.max(MIN_WINDOW, mWindow / 2);
+        mCompletions = 0;
+        return mWindow;
+    }
+
+    public synchronized int getWindow(){
+        return mWindow;
+    }
+
+    public int getMaxWindow(){
+        return mMaxWindow;
+    }
+
+    public synchronized long getSmoothedLatencyNs(){
+        return mSmoothedNs;
+    }
+}
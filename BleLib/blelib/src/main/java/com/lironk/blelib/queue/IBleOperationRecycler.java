@@ -0,0 +1,8 @@
+package com.lironk.blelib.queue;
+
+import com.lironk.blelib.main.BleOperation;
+
+public interface IBleOperationRecycler {
+    // Called for operations dropped from the queue without being executed
+    void recycle(BleOperation operation);
+}
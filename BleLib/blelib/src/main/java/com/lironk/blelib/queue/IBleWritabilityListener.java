@@ -0,0 +1,6 @@
+package com.lironk.blelib.queue;
+
+public interface IBleWritabilityListener {
+    // Called on the thread that crossed a watermark - the executor thread when the queue drains. Keep it short
+    void onWritabilityChanged(boolean writable);
+}
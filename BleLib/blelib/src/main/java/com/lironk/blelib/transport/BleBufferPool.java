@@ -0,0 +1,90 @@
+package com.lironk.blelib.transport;
+
+import java.util.ArrayDeque;
+
+public class BleBufferPool {
+
+    private static final int MAX_BUCKETS = 8;
+    private static final int DEFAULT_BUCKET_CAPACITY = 64;
+
+    // Buffers are kept per exact length, GATT takes the whole array as the attribute value
+    private final int [] mBucketSizes;
+    private final ArrayDeque<byte []> [] mBuckets;
+    private final int mBucketCapacity;
+    private int mNextEvictedBucket;
+
+    private long mAllocationCount;
+
+    public BleBufferPool(){
+        this(DEFAULT_BUCKET_CAPACITY);
+    }
+
+    @SuppressWarnings("unchecked")
+    public BleBufferPool(int bucketCapacity){
+        mBucketCapacity = bucketCapacity;
+        mBucketSizes = new int[MAX_BUCKETS];
+        mBuckets = new ArrayDeque[MAX_BUCKETS];
+        for (int i = 0; i < MAX_BUCKETS; i++){
+            mBucketSizes[i] = -1;
+            mBuckets[i] = new ArrayDeque<>(bucketCapacity);
+        }
+        mNextEvictedBucket = 0;
+        mAllocationCount = 0;
+    }
+
+    public synchronized byte [] acquire(int size){
+        int idx = findBucket(size);
+        if(idx >= 0 && !mBuckets[idx].isEmpty()){
+            return mBuckets[idx].pollLast();
+        }
+        mAllocationCount++;
+        return new byte[size];
+    }
+
+    public synchronized void release(byte [] buffer){
+        if(buffer == null){
+            return;
+        }
+
+        int idx = findBucket(buffer.length);
+        if(idx < 0){
+            // All buckets are taken by other sizes - recycle the oldest one
+            idx = mNextEvictedBucket;
+            mNextEvictedBucket = (mNextEvictedBucket + 1) % MAX_BUCKETS;
+            mBucketSizes[idx] = buffer.length;
+            mBuckets[idx].clear();
+        }
+
+        if(mBuckets[idx].size() < mBucketCapacity){
+            mBuckets[idx].addLast(buffer);
+        }
+    }
+
+    public synchronized void clear(){
+        for (int i = 0; i < MAX_BUCKETS; i++){
+            mBucketSizes[i] = -1;
+            mBuckets[i].clear();
+        }
+    }
+
+    // Number of buffers allocated since the pool was created (pool misses)
+    public synchronized long getAllocationCount(){
+        return mAllocationCount;
+    }
+
+    private int findBucket(int size){
+        for (int i = 0; i < MAX_BUCKETS; i++){
+            if(mBucketSizes[i] == size){
+                return i;
+            }
+        }
+
+        for (int i = 0; i < MAX_BUCKETS; i++){
+            if(mBucketSizes[i] == -1){
+                mBucketSizes[i] = size;
+                return i;
+            }
+        }
+        return -1;
+    }
+}
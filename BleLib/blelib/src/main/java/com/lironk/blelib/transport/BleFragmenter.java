@@ -0,0 +1,185 @@
+package com.lironk.blelib.transport;
+
+import com.lironk.blelib.enums.eBleCompression;
+import com.lironk.blelib.enums.eBleFraming;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.lironk.blelib.main.BleProfile.EXT_FRAME_MARKER;
+import static com.lironk.blelib.main.BleProfile.EXT_HEADER_SIZE;
+import static com.lironk.blelib.main.BleProfile.HEADER_SIZE;
+import static com.lironk.blelib.main.BleProfile.MAX_MESSAGE_SIZE;
+
+public class BleFragmenter {
+
+    public final static int MAX_PARTS_COUNT = 0xFF;
+
+    private final BleBufferPool mBufferPool;
+    private final AtomicInteger mNextMsgId;
+
+    public BleFragmenter(BleBufferPool bufferPool) {
+        mBufferPool = bufferPool;
+        mNextMsgId = new AtomicInteger(0);
+    }
+
+    // Number of legacy fragments needed to send dataLength bytes. An empty payload still takes one (header only) fragment
+    public static int getPartsCount(int dataLength, int maxPayloadSize){
+        int partSize = maxPayloadSize - HEADER_SIZE;
+        if(dataLength == 0){
+            return 1;
+        }
+        return (dataLength + partSize - 1) / partSize;
+    }
+
+    // Fragments a dataLength bytes message takes. Exact for Legacy. For Extended it assumes every fragment
+    // carries as much as a single part message - only the first one has the total length, so it may be one more
+    public static int getFragmentCount(eBleFraming framing, int dataLength, int maxPayloadSize){
+        if(framing == eBleFraming.Legacy){
+            return getPartsCount(dataLength, maxPayloadSize);
+        }
+        int partSize = getMaxSinglePartSize(framing, maxPayloadSize);
+        return Math.max(1, (dataLength + partSize - 1) / partSize);
+    }
+
+    // Largest payload that still goes out as a single fragment
+    public static int getMaxSinglePartSize(eBleFraming framing, int maxPayloadSize){
+        if(framing == eBleFraming.Legacy){
+            return maxPayloadSize - HEADER_SIZE;
+        }
+        // Offset 0 takes one byte, the total length takes at most size(room) bytes
+        int room = maxPayloadSize - EXT_HEADER_SIZE - 1;
+        return room - BleVarInt.size(room);
+    }
+
+    public static int getHeaderSize(eBleFraming framing, int maxPayloadSize){
+        return maxPayloadSize - getMaxSinglePartSize(framing, maxPayloadSize);
+    }
+
+    // Index of the first payload byte of a message's first fragment, -1 if the header is malformed
+    public static int getPayloadOffset(byte [] fragment){
+        if(fragment.length < HEADER_SIZE){
+            return -1;
+        }
+        if(fragment[0] != EXT_FRAME_MARKER){
+            return HEADER_SIZE;
+        }
+
+        int pos = EXT_HEADER_SIZE;
+        int offset = BleVarInt.read(fragment, pos, fragment.length);
+        if(offset != 0){
+            return -1;
+        }
+        pos += 1;
+        int totalLength = BleVarInt.read(fragment, pos, fragment.length);
+        if(totalLength < 0){
+            return -1;
+        }
+        return pos + BleVarInt.size(totalLength);
+    }
+
+    // True if the fragment carries a whole message by itself
+    public static boolean isWholeMessage(byte [] fragment){
+        if(fragment.length < HEADER_SIZE){
+            return false;
+        }
+        if(fragment[0] != EXT_FRAME_MARKER){
+            return fragment[0] == 1 && fragment[1] == 1;
+        }
+
+        int payloadOffset = getPayloadOffset(fragment);
+        if(payloadOffset < 0){
+            return false;
+        }
+        // Offset 0 takes a single byte, the total length follows it
+        return BleVarInt.read(fragment, EXT_HEADER_SIZE + 1, fragment.length) == fragment.length - payloadOffset;
+    }
+
+    // True for the fragment a message starts with, whole ones included
+    public static boolean isFirstFragment(byte [] fragment){
+        if(fragment == null || fragment.length < HEADER_SIZE){
+            return false;
+        }
+        if(fragment[0] != EXT_FRAME_MARKER){
+            return fragment[0] == 1;
+        }
+        return fragment.length > EXT_HEADER_SIZE && BleVarInt.read(fragment, EXT_HEADER_SIZE, fragment.length) == 0;
+    }
+
+    // Message id of an extended fragment, -1 for legacy fragments which don't carry one
+    public static int getMessageId(byte [] fragment){
+        if(fragment == null || fragment.length < EXT_HEADER_SIZE || fragment[0] != EXT_FRAME_MARKER){
+            return -1;
+        }
+        return fragment[2] & 0xFF;
+    }
+
+    // Splits data into framed fragments (pooled buffers) and hands them to sink in order.
+    // compression tells how data is already encoded, only extended framing can carry it.
+    // Returns the number of fragments, -1 if data can't be sent with this framing
+    public <T> int fragment(UUID uuid, byte [] data, eBleFraming framing, eBleCompression compression,
+                            int maxPayloadSize, T target, IBleFragmentSink<T> sink){
+        if(framing == eBleFraming.Legacy){
+            if(compression != eBleCompression.None){
+                return -1;
+            }
+            int partsCount = getPartsCount(data.length, maxPayloadSize);
+            if(partsCount > MAX_PARTS_COUNT){
+                return -1;
+            }
+            for(int partIdx = 1; partIdx <= partsCount; partIdx++){
+                sink.onFragment(uuid, getLegacyFragment(data, partIdx, partsCount, maxPayloadSize), target);
+            }
+            return partsCount;
+        }
+
+        if(data.length > MAX_MESSAGE_SIZE){
+            return -1;
+        }
+
+        byte msgId = (byte) mNextMsgId.getAndIncrement();
+        byte versionAndCompression = (byte) ((compression.getId() << 4) | framing.getVersion());
+        int offset = 0;
+        int partsCount = 0;
+        do {
+            int headerSize = EXT_HEADER_SIZE + BleVarInt.size(offset) + (offset == 0 ? BleVarInt.size(data.length) : 0);
+            int bufSize = Math.min(maxPayloadSize - headerSize, data.length - offset);
+
+            byte [] fragment = mBufferPool.acquire(headerSize + bufSize);
+            fragment[0] = EXT_FRAME_MARKER;
+            fragment[1] = versionAndCompression;
+            fragment[2] = msgId;
+            int pos = BleVarInt.write(fragment, EXT_HEADER_SIZE, offset);
+            if(offset == 0){
+                pos = BleVarInt.write(fragment, pos, data.length);
+            }
+            System.arraycopy(data, offset, fragment, pos, bufSize);
+
+            offset += bufSize;
+            partsCount++;
+            sink.onFragment(uuid, fragment, target);
+        } while (offset < data.length);
+
+        return partsCount;
+    }
+
+    public void recycle(byte [] fragment){
+        mBufferPool.release(fragment);
+    }
+
+    public BleBufferPool getBufferPool(){
+        return mBufferPool;
+    }
+
+    private byte [] getLegacyFragment(byte [] data, int partIdx, int partsCount, int maxPayloadSize){
+        int partSize = maxPayloadSize - HEADER_SIZE;
+        int buffIdx = (partIdx - 1) * partSize;
+        int bufSize = Math.min(partSize, data.length - buffIdx);
+
+        byte [] fragment = mBufferPool.acquire(bufSize + HEADER_SIZE);
+        fragment[0] = (byte) partIdx;
+        fragment[1] = (byte) partsCount;
+        System.arraycopy(data, buffIdx, fragment, HEADER_SIZE, bufSize);
+        return fragment;
+    }
+}
@@ -0,0 +1,50 @@
+package com.lironk.blelib.transport;
+
+import java.util.UUID;
+
+// Remembers the message a fragment of which failed, so the sender drops the rest of it instead of sending it -
+// the peer can't complete it anyway (see BleReassembler). Senders check each fragment before handing it to the
+// stack. Only the last failed message is remembered, the next first fragment on its characteristic ends it
+public class BleMessageDropper {
+
+    private volatile UUID mUuid;
+    private int mMessageId;
+    private long mDroppedCount;
+
+    // fragment failed - drop what is left of its message. Nothing is left after a last or whole fragment,
+    // but the next message starts with a first fragment anyway
+    public synchronized void onFailed(UUID uuid, byte [] fragment){
+        if(uuid == null || fragment == null){
+            return;
+        }
+        mMessageId = BleFragmenter.getMessageId(fragment);
+        mUuid = uuid;
+    }
+
+    // True if fragment belongs to the failed message
+    public boolean shouldDrop(UUID uuid, byte [] fragment){
+        // No lock on the usual path
+        if(mUuid == null || uuid == null){
+            return false;
+        }
+        synchronized (this){
+            if(!uuid.equals(mUuid)){
+                return false;
+            }
+            if(!BleFragmenter.isFirstFragment(fragment) && BleFragmenter.getMessageId(fragment) == mMessageId){
+                mDroppedCount++;
+                return true;
+            }
+            mUuid = null;
+            return false;
+        }
+    }
+
+    public synchronized void reset(){
+        mUuid = null;
+    }
+
+    public synchronized long getDroppedCount(){
+        return mDroppedCount;
+    }
+}
@@ -0,0 +1,276 @@
+package com.lironk.blelib.transport;
+
+import android.util.Log;
+
+import com.lironk.blelib.compression.BleCompressors;
+import com.lironk.blelib.enums.eBleCompression;
+import com.lironk.blelib.enums.eBleFraming;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.UUID;
+
+import static com.lironk.blelib.main.BleProfile.EXT_FRAME_MARKER;
+import static com.lironk.blelib.main.BleProfile.EXT_HEADER_SIZE;
+import static com.lironk.blelib.main.BleProfile.HEADER_SIZE;
+import static com.lironk.blelib.main.BleProfile.MAX_MESSAGE_SIZE;
+
+public class BleReassembler {
+
+    private static final String TAG = "BleReassembler";
+
+    private static final int MIN_CAPACITY = 512;
+    // The announced total length is the peer's word - reserve at most this up front, the rest grows as fragments arrive
+    private static final int MAX_PREALLOCATION = 16 * 1024;
+
+    private final BleBufferPool mBufferPool;
+
+    // Device address -> characteristic UUID -> in progress message
+    private final HashMap<String, HashMap<UUID, ReassemblyState>> mStates;
+
+    private static class ReassemblyState {
+        byte [] mBuffer;
+        // Read-only view handed to listeners, rebuilt only when mBuffer grows
+        ByteBuffer mView;
+        // Decompressed payload, only used by compressed messages
+        byte [] mPlainBuffer;
+        ByteBuffer mPlainView;
+        eBleCompression mCompression;
+        int mLength;
+        boolean mActive;
+        // Legacy framing
+        int mNextPart;
+        int mPartsCount;
+        // Extended framing. mMsgId is -1 while a legacy message is in progress
+        int mMsgId;
+        int mTotalLength;
+    }
+
+    public BleReassembler(BleBufferPool bufferPool) {
+        mBufferPool = bufferPool;
+        mStates = new HashMap<>();
+    }
+
+    // Feeds one received fragment. Returns a read-only view of the payload once its last fragment arrived, null otherwise.
+    // The view is only valid until the next fragment of the same device and characteristic is fed
+    public synchronized ByteBuffer onFragment(String address, UUID uuid, byte [] fragment){
+        if(fragment == null || fragment.length < HEADER_SIZE){
+            Log.w(TAG, "onFragment. Fragment without header on " + uuid);
+            return null;
+        }
+
+        if(fragment[0] == EXT_FRAME_MARKER){
+            return onExtendedFragment(address, uuid, fragment);
+        }
+
+        int partIdx = fragment[0] & 0xFF;
+        int partsCount = fragment[1] & 0xFF;
+        if(partsCount == 0 || partIdx == 0 || partIdx > partsCount){
+            Log.w(TAG, "onFragment. Bad header " + partIdx + "/" + partsCount + " on " + uuid);
+            return null;
+        }
+
+        // Only one part - no need to keep any state, point straight into the fragment
+        if(partsCount == 1){
+            return ByteBuffer.wrap(fragment, HEADER_SIZE, fragment.length - HEADER_SIZE).asReadOnlyBuffer();
+        }
+
+        ReassemblyState state = getState(address, uuid);
+
+        if(partIdx == 1){
+            if(state.mActive){
+                Log.w(TAG, "onFragment. New message before previous one completed on " + uuid);
+            }
+            state.mActive = true;
+            state.mLength = 0;
+            state.mPartsCount = partsCount;
+            state.mMsgId = -1;
+        }
+        else if(!state.mActive || state.mMsgId != -1 || partIdx != state.mNextPart || partsCount != state.mPartsCount){
+            Log.w(TAG, "onFragment. Unexpected part " + partIdx + "/" + partsCount + " on " + uuid
+                    + ". Expected " + state.mNextPart + "/" + state.mPartsCount + ". Dropping message");
+            state.mActive = false;
+            return null;
+        }
+
+        append(state, fragment, HEADER_SIZE, fragment.length - HEADER_SIZE);
+
+        if(partIdx == partsCount){
+            state.mActive = false;
+            return getView(state);
+        }
+
+        state.mNextPart = partIdx + 1;
+        return null;
+    }
+
+    private ByteBuffer onExtendedFragment(String address, UUID uuid, byte [] fragment){
+        if(fragment.length < EXT_HEADER_SIZE + 1){
+            Log.w(TAG, "onExtendedFragment. Fragment too short on " + uuid);
+            return null;
+        }
+        if(eBleFraming.getFraming((byte) (fragment[1] & 0x0F)) != eBleFraming.Extended){
+            Log.w(TAG, "onExtendedFragment. Unsupported framing version " + fragment[1] + " on " + uuid);
+            return null;
+        }
+
+        int msgId = fragment[2] & 0xFF;
+        int pos = EXT_HEADER_SIZE;
+        int offset = BleVarInt.read(fragment, pos, fragment.length);
+        if(offset < 0){
+            Log.w(TAG, "onExtendedFragment. Bad offset on " + uuid);
+            return null;
+        }
+        pos += BleVarInt.size(offset);
+
+        ReassemblyState state = getState(address, uuid);
+
+        if(offset == 0){
+            int totalLength = BleVarInt.read(fragment, pos, fragment.length);
+            if(totalLength < 0 || totalLength > MAX_MESSAGE_SIZE){
+                Log.w(TAG, "onExtendedFragment. Bad total length " + totalLength + " on " + uuid);
+                state.mActive = false;
+                return null;
+            }
+            pos += BleVarInt.size(totalLength);
+
+            eBleCompression compression = eBleCompression.getCompression((byte) ((fragment[1] >> 4) & 0x0F));
+            if(compression == null){
+                Log.w(TAG, "onExtendedFragment. Unknown compression " + ((fragment[1] >> 4) & 0x0F) + " on " + uuid
+                        + ". Dropping message");
+                state.mActive = false;
+                return null;
+            }
+
+            if(state.mActive){
+                Log.w(TAG, "onExtendedFragment. New message before previous one completed on " + uuid);
+            }
+            state.mActive = true;
+            state.mLength = 0;
+            state.mMsgId = msgId;
+            state.mTotalLength = totalLength;
+            state.mCompression = compression;
+            ensureCapacity(state, Math.min(totalLength, MAX_PREALLOCATION));
+        }
+        else if(!state.mActive || msgId != state.mMsgId || offset != state.mLength){
+            Log.w(TAG, "onExtendedFragment. Unexpected fragment. Msg " + msgId + " offset " + offset + " on " + uuid
+                    + ". Expected msg " + state.mMsgId + " offset " + state.mLength + ". Dropping message");
+            state.mActive = false;
+            return null;
+        }
+
+        int length = fragment.length - pos;
+        if(state.mLength + length > state.mTotalLength){
+            Log.w(TAG, "onExtendedFragment. Message longer than announced on " + uuid + ". Dropping message");
+            state.mActive = false;
+            return null;
+        }
+
+        append(state, fragment, pos, length);
+
+        if(state.mLength == state.mTotalLength){
+            state.mActive = false;
+            if(state.mCompression != eBleCompression.None){
+                return decompress(state, uuid);
+            }
+            return getView(state);
+        }
+        return null;
+    }
+
+    // Drops all in progress messages of a device
+    public synchronized void reset(String address){
+        HashMap<UUID, ReassemblyState> deviceStates = mStates.remove(address);
+        if(deviceStates != null){
+            for (ReassemblyState state : deviceStates.values()){
+                mBufferPool.release(state.mBuffer);
+                mBufferPool.release(state.mPlainBuffer);
+            }
+        }
+    }
+
+    public synchronized void reset(){
+        for (HashMap<UUID, ReassemblyState> deviceStates : mStates.values()){
+            for (ReassemblyState state : deviceStates.values()){
+                mBufferPool.release(state.mBuffer);
+                mBufferPool.release(state.mPlainBuffer);
+            }
+        }
+        mStates.clear();
+    }
+
+    private ReassemblyState getState(String address, UUID uuid){
+        HashMap<UUID, ReassemblyState> deviceStates = mStates.get(address);
+        if(deviceStates == null){
+            deviceStates = new HashMap<>();
+            mStates.put(address, deviceStates);
+        }
+
+        ReassemblyState state = deviceStates.get(uuid);
+        if(state == null){
+            state = new ReassemblyState();
+            state.mBuffer = mBufferPool.acquire(MIN_CAPACITY);
+            deviceStates.put(uuid, state);
+        }
+        return state;
+    }
+
+    private ByteBuffer decompress(ReassemblyState state, UUID uuid){
+        int plainLength = BleCompressors.getOriginalLength(state.mBuffer, 0, state.mLength);
+        if(plainLength < 0){
+            Log.w(TAG, "decompress. Bad " + state.mCompression + " payload on " + uuid);
+            return null;
+        }
+
+        if(state.mPlainBuffer == null || state.mPlainBuffer.length < plainLength){
+            int capacity = state.mPlainBuffer == null ? MIN_CAPACITY : state.mPlainBuffer.length;
+            while (capacity < plainLength){
+                capacity <<= 1;
+            }
+            mBufferPool.release(state.mPlainBuffer);
+            state.mPlainBuffer = mBufferPool.acquire(capacity);
+            state.mPlainView = ByteBuffer.wrap(state.mPlainBuffer).asReadOnlyBuffer();
+        }
+
+        if(!BleCompressors.decompress(state.mCompression, state.mBuffer, 0, state.mLength, state.mPlainBuffer)){
+            Log.w(TAG, "decompress. Corrupted " + state.mCompression + " payload on " + uuid);
+            return null;
+        }
+
+        state.mPlainView.clear();
+        state.mPlainView.limit(plainLength);
+        return state.mPlainView;
+    }
+
+    private ByteBuffer getView(ReassemblyState state){
+        if(state.mView == null){
+            state.mView = ByteBuffer.wrap(state.mBuffer).asReadOnlyBuffer();
+        }
+        state.mView.clear();
+        state.mView.limit(state.mLength);
+        return state.mView;
+    }
+
+    private void append(ReassemblyState state, byte [] src, int offset, int length){
+        int required = state.mLength + length;
+        ensureCapacity(state, required);
+
+        System.arraycopy(src, offset, state.mBuffer, state.mLength, length);
+        state.mLength = required;
+    }
+
+    private void ensureCapacity(ReassemblyState state, int required){
+        if(required > state.mBuffer.length){
+            // Grow to the next power of two so the pool only sees a few distinct sizes
+            int capacity = state.mBuffer.length;
+            while (capacity < required){
+                capacity <<= 1;
+            }
+            byte [] buffer = mBufferPool.acquire(capacity);
+            System.arraycopy(state.mBuffer, 0, buffer, 0, state.mLength);
+            mBufferPool.release(state.mBuffer);
+            state.mBuffer = buffer;
+            state.mView = null;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.lironk.blelib.transport;
+
+import android.util.Log;
+
+import com.lironk.blelib.metrics.BleLatencyHistogram;
+
+import java.util.UUID;
+import java.util.concurrent.locks.LockSupport;
+
+// Hands received fragments from the GATT callback (Binder) thread to a processing thread of its own.
+// Single producer, single consumer over preallocated slots: the callback copies the fragment into the next slot
+// and returns, reassembly and listener dispatch run on the ring thread in receive order.
+// The stack delivers one callback at a time, so the producer side needs no lock even if the Binder thread changes.
+// A slot keeps its buffer while fragments keep the same size, so a steady stream doesn't allocate.
+// Records how long each callback held the Binder thread (residence) and how long a fragment waited in the ring
+public class BleReceiveRing<D> {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static final int SPINS_BEFORE_PARK = 64;
+    private static final long PARK_NS = 50_000;
+
+    private static final class Slot<D> {
+        D mDevice;
+        UUID mUuid;
+        byte [] mData;
+        long mReceiveTime;
+    }
+
+    private final String mName;
+    private final IBleFragmentHandler<D> mHandler;
+    private final Slot<D> [] mSlots;
+    private final int mMask;
+
+    // Written by the producer only
+    private volatile long mTail;
+    // Written by the consumer only
+    private volatile long mHead;
+
+    private volatile Thread mThread;
+    private volatile boolean mWaiting;
+    private volatile boolean mStopped;
+
+    private final BleLatencyHistogram mResidence;
+    private final BleLatencyHistogram mWait;
+    private volatile long mFullCount;
+
+    public BleReceiveRing(String name, IBleFragmentHandler<D> handler) {
+        this(name, DEFAULT_CAPACITY, handler);
+    }
+
+    // capacity is rounded up to a power of 2
+    @SuppressWarnings("unchecked")
+    public BleReceiveRing(String name, int capacity, IBleFragmentHandler<D> handler) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mName = name;
+        mHandler = handler;
+        mSlots = new Slot[size];
+        for (int i = 0; i < size; i++){
+            mSlots[i] = new Slot<>();
+        }
+        mMask = size - 1;
+        mTail = 0;
+        mHead = 0;
+
+        mResidence = new BleLatencyHistogram();
+        mWait = new BleLatencyHistogram();
+        mFullCount = 0;
+    }
+
+    public void start(){
+        if(mThread != null || mStopped){
+            return;
+        }
+        Thread thread = new Thread(this::run, mName);
+        thread.setDaemon(true);
+        mThread = thread;
+        thread.start();
+    }
+
+    // Fragments still in the ring are dropped. A stopped ring can't be started again
+    public void stop(){
+        mStopped = true;
+        Thread thread = mThread;
+        if(thread != null){
+            LockSupport.unpark(thread);
+        }
+    }
+
+    // GATT callback thread. Copies fragment, receiveTime is the nanoTime the callback was entered.
+    // Waits for the ring thread while the ring is full - losing a fragment would drop its whole message
+    public void publish(D device, UUID uuid, byte [] fragment, long receiveTime){
+        long tail = mTail;
+        if(tail - mHead > mMask){
+            mFullCount++;
+            int spins = 0;
+            while (tail - mHead > mMask && !mStopped){
+                if(spins++ < SPINS_BEFORE_PARK){
+                    Thread.yield();
+                }
+                else {
+                    LockSupport.parkNanos(this, PARK_NS);
+                }
+            }
+        }
+
+        Slot<D> slot = mSlots[(int) (tail & mMask)];
+        if(slot.mData == null || slot.mData.length != fragment.length){
+            slot.mData = new byte[fragment.length];
+        }
+        System.arraycopy(fragment, 0, slot.mData, 0, fragment.length);
+        slot.mDevice = device;
+        slot.mUuid = uuid;
+        slot.mReceiveTime = receiveTime;
+        mTail = tail + 1;
+
+        if(mWaiting){
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    // GATT callback thread, right before it returns
+    public void onCallbackDone(long receiveTime){
+        mResidence.record(System.nanoTime() - receiveTime);
+    }
+
+    // Time the callbacks held the Binder thread
+    public BleLatencyHistogram getResidenceHistogram(){
+        return mResidence;
+    }
+
+    // Time a fragment waited in the ring before the ring thread picked it up
+    public BleLatencyHistogram getWaitHistogram(){
+        return mWait;
+    }
+
+    // Times a callback had to wait for room
+    public long getFullCount(){
+        return mFullCount;
+    }
+
+    public int size(){
+        return (int) (mTail - mHead);
+    }
+
+    public void resetStats(){
+        mResidence.reset();
+        mWait.reset();
+        mFullCount = 0;
+    }
+
+    // Latencies in microseconds
+    public String dump(){
+        return mName + " residence: " + dump(mResidence) + '\n'
+                + mName + " wait: " + dump(mWait) + '\n'
+                + mName + " full: " + mFullCount + '\n';
+    }
+
+    private static String dump(BleLatencyHistogram histogram){
+        return "count=" + histogram.getCount()
+                + " mean=" + histogram.getMeanNs() / 1000
+                + " p50=" + histogram.getPercentileNs(50) / 1000
+                + " p99=" + histogram.getPercentileNs(99) / 1000
+                + " max=" + histogram.getMaxNs() / 1000;
+    }
+
+    private void run(){
+        int spins = 0;
+        while (!mStopped){
+            long head = mHead;
+            if(head == mTail){
+                if(spins++ < SPINS_BEFORE_PARK){
+                    Thread.yield();
+                    continue;
+                }
+                // Publish the flag before the last look, publish() checks it after moving the tail
+                mWaiting = true;
+                if(head == mTail && !mStopped){
+                    LockSupport.park(this);
+                }
+                mWaiting = false;
+                continue;
+            }
+            spins = 0;
+
+            Slot<D> slot = mSlots[(int) (head & mMask)];
+            mWait.record(System.nanoTime() - slot.mReceiveTime);
+            try {
+                mHandler.onFragment(slot.mDevice, slot.mUuid, slot.mData);
+            }
+            catch (RuntimeException e){
+                Log.e(mName, "onFragment failed on " + slot.mUuid, e);
+            }
+            slot.mDevice = null;
+            slot.mUuid = null;
+            mHead = head + 1;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.lironk.blelib.transport;
+
+// Unsigned LEB128 encoding of non negative ints
+public class BleVarInt {
+
+    public final static int MAX_SIZE = 5;
+
+    public static int size(int value){
+        int size = 1;
+        while ((value & ~0x7F) != 0){
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    // Returns the position right after the written value
+    public static int write(byte [] buf, int pos, int value){
+        while ((value & ~0x7F) != 0){
+            buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+        return pos;
+    }
+
+    // Returns the value at pos, or -1 if it is truncated, too long or not minimally encoded.
+    // The number of bytes consumed is size(value)
+    public static int read(byte [] buf, int pos, int limit){
+        int value = 0;
+        for (int i = 0; i < MAX_SIZE && pos + i < limit; i++){
+            int b = buf[pos + i] & 0xFF;
+            value |= (b & 0x7F) << (7 * i);
+            if((b & 0x80) == 0){
+                if((b == 0 && i > 0) || value < 0){
+                    return -1;
+                }
+                return value;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,9 @@
+package com.lironk.blelib.transport;
+
+import java.util.UUID;
+
+public interface IBleFragmentHandler<D> {
+
+    // Called on the BleReceiveRing thread. fragment belongs to the ring and is reused once this returns
+    void onFragment(D device, UUID uuid, byte [] fragment);
+}
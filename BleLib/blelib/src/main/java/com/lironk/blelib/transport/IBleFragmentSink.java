@@ -0,0 +1,9 @@
+package com.lironk.blelib.transport;
+
+import java.util.UUID;
+
+public interface IBleFragmentSink<T> {
+
+    // fragment is a pooled buffer, hand it back with BleFragmenter.recycle() once sent
+    void onFragment(UUID uuid, byte [] fragment, T target);
+}
@@ -0,0 +1,42 @@
+package com.lironk.blelib.watchdog;
+
+// How long a GATT operation may run and how it is retried when it doesn't complete.
+// Retry n (from 0) waits backoff * 2^n, capped at maxBackoff
+public class BleRetryPolicy {
+
+    public static final long DEFAULT_TIMEOUT_MS = 2000;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final long DEFAULT_BACKOFF_MS = 20;
+    public static final long DEFAULT_MAX_BACKOFF_MS = 1000;
+
+    private final long mTimeoutMs;
+    private final int mMaxRetries;
+    private final long mBackoffMs;
+    private final long mMaxBackoffMs;
+
+    public BleRetryPolicy() {
+        this(DEFAULT_TIMEOUT_MS, DEFAULT_MAX_RETRIES, DEFAULT_BACKOFF_MS, DEFAULT_MAX_BACKOFF_MS);
+    }
+
+    public BleRetryPolicy(long timeoutMs, int maxRetries, long backoffMs, long maxBackoffMs) {
+        mTimeoutMs = Math.max(1, timeoutMs);
+        mMaxRetries = Math.max(0, maxRetries);
+        mBackoffMs = Math.max(0, backoffMs);
+        mMaxBackoffMs = Math.max(mBackoffMs, maxBackoffMs);
+    }
+
+    public long getTimeoutMs(){
+        return mTimeoutMs;
+    }
+
+    public int getMaxRetries(){
+        return mMaxRetries;
+    }
+
+    public long getBackoffMs(int retry){
+        if(retry >= Long.numberOfLeadingZeros(Math.max(1, mBackoffMs)) - 1){
+            return mMaxBackoffMs;
+        }
+        return Math.min(mMaxBackoffMs, mBackoffMs << retry);
+    }
+}
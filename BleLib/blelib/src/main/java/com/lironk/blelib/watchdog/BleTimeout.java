@@ -0,0 +1,100 @@
+package com.lironk.blelib.watchdog;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A task scheduled on a BleTimerWheel. Each time it is scheduled it either runs or is cancelled, never both -
+// whoever moves it out of PENDING first owns what it guards.
+// Once it ran or was cancelled it can be scheduled again without allocating (see BleWatchdog, one per operation).
+// The state carries a generation bumped by every schedule() so the wheel never runs it for an older one
+public final class BleTimeout {
+
+    private static final int IDLE = 0;
+    private static final int PENDING = 1;
+    private static final int CANCELLED = 2;
+    private static final int EXPIRED = 3;
+    private static final int STATUS_MASK = 3;
+    private static final int GENERATION_ONE = 4;
+
+    private final BleTimerWheel mWheel;
+    private final Runnable mTask;
+    private volatile long mDeadlineNs;
+    // Generation in the high bits, status in the low two
+    private final AtomicInteger mState;
+
+    // Wheel thread only
+    int mBucket;
+    long mRemainingRounds;
+    BleTimeout mPrev;
+    BleTimeout mNext;
+    // State it was linked with
+    int mLinkedState;
+
+    // Hand-off to the wheel thread, guarded by its lock
+    BleTimeout mChangeNext;
+    boolean mChanged;
+
+    // Idle until scheduled
+    public BleTimeout(BleTimerWheel wheel, Runnable task) {
+        mWheel = wheel;
+        mTask = task;
+        mState = new AtomicInteger(IDLE);
+        mBucket = -1;
+    }
+
+    // Any thread. Runs the task on the wheel thread once delayMs passed, unless cancelled first.
+    // Scheduling it while pending drops the earlier deadline
+    public BleTimeout schedule(long delayMs){
+        mDeadlineNs = System.nanoTime() + Math.max(0, delayMs) * 1_000_000;
+        int state;
+        do {
+            state = mState.get();
+        } while (!mState.compareAndSet(state, ((state & ~STATUS_MASK) + GENERATION_ONE) | PENDING));
+        mWheel.onChanged(this, true);
+        return this;
+    }
+
+    // False if the task already ran (or is running), or it isn't scheduled
+    public boolean cancel(){
+        while (true){
+            int state = mState.get();
+            if((state & STATUS_MASK) != PENDING){
+                return false;
+            }
+            if(mState.compareAndSet(state, (state & ~STATUS_MASK) | CANCELLED)){
+                mWheel.onChanged(this, false);
+                return true;
+            }
+        }
+    }
+
+    public boolean isCancelled(){
+        return (mState.get() & STATUS_MASK) == CANCELLED;
+    }
+
+    public boolean isExpired(){
+        return (mState.get() & STATUS_MASK) == EXPIRED;
+    }
+
+    public BleTimerWheel getWheel(){
+        return mWheel;
+    }
+
+    long getDeadlineNs(){
+        return mDeadlineNs;
+    }
+
+    int getState(){
+        return mState.get();
+    }
+
+    static boolean isPending(int state){
+        return (state & STATUS_MASK) == PENDING;
+    }
+
+    // Wheel thread only. Runs the task unless it was cancelled or scheduled again since state
+    void expire(int state){
+        if(isPending(state) && mState.compareAndSet(state, (state & ~STATUS_MASK) | EXPIRED)){
+            mTask.run();
+        }
+    }
+}
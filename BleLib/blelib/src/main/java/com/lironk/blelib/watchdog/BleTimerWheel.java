@@ -0,0 +1,196 @@
+package com.lironk.blelib.watchdog;
+
+import android.util.Log;
+
+import java.util.concurrent.locks.LockSupport;
+
+// Hashed timer wheel: a timeout goes to bucket (deadline tick % size) with the number of full turns left,
+// so scheduling and cancelling are O(1) no matter how many are pending. Deadlines are rounded up to the tick.
+// Other threads only touch the hand-off list - an intrusive one, so scheduling and cancelling don't allocate -
+// the buckets belong to the wheel thread.
+// Tasks run on the wheel thread - keep them short. It starts with the first timeout and parks while none is pending
+public class BleTimerWheel {
+
+    private static final String TAG = "BleTimerWheel";
+
+    public static final long DEFAULT_TICK_MS = 10;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private final long mTickNs;
+    private final int mMask;
+    private final BleTimeout [] mBuckets;
+
+    // Timeouts scheduled or cancelled since the last tick, each listed once
+    private final Object mChangeLock = new Object();
+    private BleTimeout mChanges;
+    private volatile boolean mHasChanges;
+
+    private final Object mStartLock = new Object();
+    private volatile Thread mThread;
+    private volatile boolean mStopped;
+    private long mStartTime;
+
+    // Wheel thread only
+    private long mTick;
+    private int mPendingCount;
+
+    public BleTimerWheel() {
+        this(DEFAULT_TICK_MS, DEFAULT_WHEEL_SIZE);
+    }
+
+    // wheelSize is rounded up to a power of 2
+    public BleTimerWheel(long tickMs, int wheelSize) {
+        mTickNs = Math.max(1, tickMs) * 1_000_000;
+        int size = Integer.highestOneBit(Math.max(2, wheelSize) - 1) << 1;
+        mMask = size - 1;
+        mBuckets = new BleTimeout[size];
+
+        mChanges = null;
+        mHasChanges = false;
+        mStopped = false;
+    }
+
+    // Any thread. Runs task on the wheel thread once delayMs passed, unless cancelled first.
+    // Allocates a timeout, see BleTimeout for a reusable one
+    public BleTimeout schedule(Runnable task, long delayMs){
+        return new BleTimeout(this, task).schedule(delayMs);
+    }
+
+    // Pending timeouts never run
+    public void stop(){
+        mStopped = true;
+        Thread thread = mThread;
+        if(thread != null){
+            LockSupport.unpark(thread);
+        }
+    }
+
+    // The timeout was scheduled (wake the wheel) or cancelled (its bucket is cleaned up on the next tick)
+    void onChanged(BleTimeout timeout, boolean wake){
+        if(wake){
+            start();
+        }
+        synchronized (mChangeLock){
+            if(!timeout.mChanged){
+                timeout.mChanged = true;
+                timeout.mChangeNext = mChanges;
+                mChanges = timeout;
+                mHasChanges = true;
+            }
+        }
+        if(wake){
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    private void start(){
+        if(mThread != null){
+            return;
+        }
+        synchronized (mStartLock){
+            if(mThread == null && !mStopped){
+                mStartTime = System.nanoTime();
+                Thread thread = new Thread(this::run, TAG);
+                thread.setDaemon(true);
+                mThread = thread;
+                thread.start();
+            }
+        }
+    }
+
+    private void run(){
+        mTick = 0;
+        while (!mStopped){
+            long deadline = mStartTime + (mTick + 1) * mTickNs;
+            long now = System.nanoTime();
+            if(now < deadline){
+                if(mPendingCount == 0 && !mHasChanges){
+                    LockSupport.park(this);
+                    // Nothing was pending, so the buckets passed while idle are empty
+                    mTick = Math.max(mTick, (System.nanoTime() - mStartTime) / mTickNs);
+                }
+                else {
+                    LockSupport.parkNanos(this, deadline - now);
+                }
+                continue;
+            }
+
+            transferChanges();
+            expireBucket(mBuckets[(int) (mTick & mMask)]);
+            mTick++;
+        }
+        Log.d(TAG, "stopped");
+    }
+
+    // Links what was scheduled, unlinks what was cancelled or scheduled again. Holds the lock throughout so
+    // a timeout changed meanwhile goes back on the list for the next tick
+    private void transferChanges(){
+        if(!mHasChanges){
+            return;
+        }
+        synchronized (mChangeLock){
+            BleTimeout timeout = mChanges;
+            mChanges = null;
+            mHasChanges = false;
+            while (timeout != null){
+                BleTimeout next = timeout.mChangeNext;
+                timeout.mChangeNext = null;
+                timeout.mChanged = false;
+
+                int state = timeout.getState();
+                if(timeout.mBucket >= 0 && timeout.mLinkedState != state){
+                    unlink(timeout);
+                }
+                if(timeout.mBucket < 0 && BleTimeout.isPending(state)){
+                    // Never in a bucket already passed
+                    long ticks = Math.max(mTick, (timeout.getDeadlineNs() - mStartTime + mTickNs - 1) / mTickNs - 1);
+                    timeout.mRemainingRounds = (ticks - mTick) / mBuckets.length;
+                    timeout.mLinkedState = state;
+                    link((int) (ticks & mMask), timeout);
+                }
+                timeout = next;
+            }
+        }
+    }
+
+    private void expireBucket(BleTimeout timeout){
+        while (timeout != null){
+            BleTimeout next = timeout.mNext;
+            if(timeout.mRemainingRounds > 0){
+                timeout.mRemainingRounds--;
+            }
+            else {
+                unlink(timeout);
+                timeout.expire(timeout.mLinkedState);
+            }
+            timeout = next;
+        }
+    }
+
+    private void link(int bucket, BleTimeout timeout){
+        timeout.mBucket = bucket;
+        timeout.mPrev = null;
+        timeout.mNext = mBuckets[bucket];
+        if(timeout.mNext != null){
+            timeout.mNext.mPrev = timeout;
+        }
+        mBuckets[bucket] = timeout;
+        mPendingCount++;
+    }
+
+    private void unlink(BleTimeout timeout){
+        if(timeout.mPrev != null){
+            timeout.mPrev.mNext = timeout.mNext;
+        }
+        else {
+            mBuckets[timeout.mBucket] = timeout.mNext;
+        }
+        if(timeout.mNext != null){
+            timeout.mNext.mPrev = timeout.mPrev;
+        }
+        timeout.mBucket = -1;
+        timeout.mPrev = null;
+        timeout.mNext = null;
+        mPendingCount--;
+    }
+}
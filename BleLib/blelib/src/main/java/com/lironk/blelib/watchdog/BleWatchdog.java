@@ -0,0 +1,191 @@
+package com.lironk.blelib.watchdog;
+
+import android.util.Log;
+
+import com.lironk.blelib.enums.eBleOperationError;
+import com.lironk.blelib.main.BleOperation;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Deadline for every GATT operation handed to the stack. arm() when it starts, disarm() from its completion
+// callback. If the callback doesn't come in time the operation is retried with backoff, then failed, so a lost
+// callback costs one timeout instead of stalling the queue until disconnect.
+// An operation the stack refused to start goes through reject() the same way.
+// A fragment in the middle of a message is not resent after a missed deadline - its callback may just have been
+// lost, and a second copy breaks the peer's reassembly. It fails instead and the sender drops the rest of the
+// message (see BleOperation.isResendable()).
+// Each operation keeps one BleTimeout across its arms, retries and (for pooled ones) recycling, so arming
+// doesn't allocate
+public class BleWatchdog {
+
+    private static final String TAG = "BleWatchdog";
+
+    private final BleTimerWheel mWheel;
+    private final IBleWatchdogHandler mHandler;
+    private volatile BleRetryPolicy mPolicy;
+    // Bumped by reset(), retries of an older connection are dropped
+    private final AtomicInteger mEpoch;
+
+    private final AtomicLong mStalls;
+    private final AtomicLong mRejections;
+    private final AtomicLong mRetries;
+    private final AtomicLong mFailures;
+    private final AtomicLong mRecoveries;
+    private final AtomicLong mRecoveryTotalNs;
+    private final AtomicLong mRecoveryMaxNs;
+
+    public BleWatchdog(BleTimerWheel wheel, IBleWatchdogHandler handler) {
+        mWheel = wheel;
+        mHandler = handler;
+        mPolicy = new BleRetryPolicy();
+        mEpoch = new AtomicInteger(0);
+
+        mStalls = new AtomicLong(0);
+        mRejections = new AtomicLong(0);
+        mRetries = new AtomicLong(0);
+        mFailures = new AtomicLong(0);
+        mRecoveries = new AtomicLong(0);
+        mRecoveryTotalNs = new AtomicLong(0);
+        mRecoveryMaxNs = new AtomicLong(0);
+    }
+
+    public void setRetryPolicy(BleRetryPolicy policy){
+        mPolicy = policy;
+    }
+
+    public BleRetryPolicy getRetryPolicy(){
+        return mPolicy;
+    }
+
+    // Call right before handing the operation to the stack - its callback may come before the call returns
+    public void arm(BleOperation operation){
+        operation.setEpoch(mEpoch.get());
+        BleTimeout timeout = operation.getTimeout();
+        // Pooled operations may outlive the watchdog that first armed them
+        if(timeout == null || timeout.getWheel() != mWheel){
+            timeout = new BleTimeout(mWheel, () -> onExpired(operation));
+            operation.setTimeout(timeout);
+        }
+        timeout.schedule(mPolicy.getTimeoutMs());
+    }
+
+    // The operation completed. False if its deadline passed first - the watchdog owns it, ignore the completion
+    public boolean disarm(BleOperation operation){
+        BleTimeout timeout = operation.getTimeout();
+        if(timeout == null){
+            return true;
+        }
+        if(!timeout.cancel()){
+            return false;
+        }
+
+        long stalledTime = operation.getStalledTime();
+        if(stalledTime != 0){
+            onRecovered(System.nanoTime() - stalledTime);
+            operation.setStalledTime(0);
+        }
+        return true;
+    }
+
+    // The stack refused to start an armed operation, the caller gives its in-flight credit back.
+    // False if its deadline passed first - the watchdog owns it and onExpired() took care of the credit
+    public boolean reject(BleOperation operation){
+        BleTimeout timeout = operation.getTimeout();
+        if(timeout != null && !timeout.cancel()){
+            return false;
+        }
+
+        mRejections.incrementAndGet();
+        // Never handed to the stack, it can go again whatever it carries
+        onStalled(operation, mEpoch.get(), eBleOperationError.Rejected);
+        return true;
+    }
+
+    // The connection is gone. Operations waiting for a retry are failed with Cancelled
+    public void reset(){
+        mEpoch.incrementAndGet();
+    }
+
+    public void stop(){
+        mWheel.stop();
+    }
+
+    // Operations that missed their deadline
+    public long getStallCount(){
+        return mStalls.get();
+    }
+
+    // Operations the stack refused to start
+    public long getRejectionCount(){
+        return mRejections.get();
+    }
+
+    public long getRetryCount(){
+        return mRetries.get();
+    }
+
+    public long getFailureCount(){
+        return mFailures.get();
+    }
+
+    // Stalled operations that completed on a retry
+    public long getRecoveryCount(){
+        return mRecoveries.get();
+    }
+
+    // From the first stall of an operation until it completed
+    public long getAverageRecoveryNs(){
+        long recoveries = mRecoveries.get();
+        return recoveries == 0 ? 0 : mRecoveryTotalNs.get() / recoveries;
+    }
+
+    public long getMaxRecoveryNs(){
+        return mRecoveryMaxNs.get();
+    }
+
+    private void onExpired(BleOperation operation){
+        mStalls.incrementAndGet();
+        mHandler.onExpired(operation);
+        if(!operation.isResendable()){
+            fail(operation, eBleOperationError.Timeout);
+            return;
+        }
+        onStalled(operation, operation.getEpoch(), eBleOperationError.Timeout);
+    }
+
+    private void onStalled(BleOperation operation, int epoch, eBleOperationError error){
+        if(operation.getStalledTime() == 0){
+            operation.setStalledTime(System.nanoTime());
+        }
+
+        BleRetryPolicy policy = mPolicy;
+        int attempts = operation.getAttempts();
+        if(attempts >= policy.getMaxRetries()){
+            fail(operation, error);
+            return;
+        }
+        operation.setAttempts(attempts + 1);
+
+        mWheel.schedule(() -> {
+            if(epoch != mEpoch.get()){
+                fail(operation, eBleOperationError.Cancelled);
+                return;
+            }
+            mRetries.incrementAndGet();
+            mHandler.onRetry(operation);
+        }, policy.getBackoffMs(attempts));
+    }
+
+    private void fail(BleOperation operation, eBleOperationError error){
+        Log.e(TAG, "Operation failed. Error = " + error + ". Retries = " + operation.getAttempts());
+        mFailures.incrementAndGet();
+        mHandler.onFailed(operation, error);
+    }
+
+    private void onRecovered(long latencyNs){
+        mRecoveries.incrementAndGet();
+        mRecoveryTotalNs.addAndGet(latencyNs);
+        mRecoveryMaxNs.accumulateAndGet(latencyNs, Math::max);
+    }
+}
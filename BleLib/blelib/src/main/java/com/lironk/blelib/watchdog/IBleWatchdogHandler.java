@@ -0,0 +1,18 @@
+package com.lironk.blelib.watchdog;
+
+import com.lironk.blelib.enums.eBleOperationError;
+import com.lironk.blelib.main.BleOperation;
+
+// Called on the timer wheel thread
+public interface IBleWatchdogHandler {
+
+    // The deadline passed and the operation is the watchdog's now - a late completion is ignored.
+    // Give its in-flight credit back
+    void onExpired(BleOperation operation);
+
+    // Run the operation again
+    void onRetry(BleOperation operation);
+
+    // No retry left. The operation must be released
+    void onFailed(BleOperation operation, eBleOperationError error);
+}
@@ -0,0 +1,60 @@
+package com.lironk.blelib;
+
+import org.junit.Assume;
+
+// Minimal timing loop for the benchmark tests - JMH isn't available to Android unit tests.
+// Each measurement warms up first, then keeps the best of a few rounds to shed GC and JIT noise.
+// The numbers are printed, the tests only assert what doesn't depend on the machine.
+// Timing tests are skipped unless ble.bench is set (gradlew test -Pbench), so the default run stays quick and quiet
+public final class BleBench {
+
+    public static final String PROPERTY = "ble.bench";
+
+    public interface IOperation {
+        // Returns something derived from the work so the JIT can't drop it
+        long run(int i);
+    }
+
+    private static final int ROUNDS = 5;
+
+    private static volatile long sSink;
+
+    private BleBench() {
+    }
+
+    public static boolean isEnabled(){
+        return Boolean.getBoolean(PROPERTY);
+    }
+
+    // First thing in a timing test
+    public static void assumeEnabled(){
+        Assume.assumeTrue("Benchmarks run with -D" + PROPERTY + "=true", isEnabled());
+    }
+
+    public static double nsPerOp(int ops, IOperation operation){
+        run(ops, operation);
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++){
+            best = Math.min(best, run(ops, operation));
+        }
+        return (double) best / ops;
+    }
+
+    public static void report(String name, String result){
+        if(!isEnabled()){
+            return;
+        }
+        System.out.println(String.format("%-40s %s", name, result));
+    }
+
+    private static long run(int ops, IOperation operation){
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < ops; i++){
+            sink += operation.run(i);
+        }
+        long elapsed = System.nanoTime() - start;
+        sSink += sink;
+        return elapsed;
+    }
+}
@@ -0,0 +1,57 @@
+package com.lironk.blelib.codec;
+
+import com.lironk.blelib.BleBench;
+import com.lironk.blelib.characteristic.readable.BleCharcAuthor;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Wire size and ns/op of the binary codec against the JSON text BleCharcAuthor sent before it
+public class BleCodecBenchmark {
+
+    private static final int OPS = 200_000;
+
+    private final BleCharcAuthor mAuthor = new BleCharcAuthor(1234, "Liron Komfort", "Developer");
+
+    @Test
+    public void binaryIsSmallerOnTheWire() {
+        byte [] binary = BleCodecRegistry.encode(mAuthor);
+        byte [] json = mAuthor.serialize();
+        BleBench.report("author wire size", "binary=" + binary.length + "B json=" + json.length + "B");
+        assertTrue(binary.length < json.length);
+    }
+
+    @Test
+    public void bothFormsDecodeTheSameAuthor() {
+        assertSameAuthor(new BleCharcAuthor(BleCodecRegistry.encode(mAuthor)));
+        assertSameAuthor(new BleCharcAuthor(mAuthor.serialize()));
+    }
+
+    @Test
+    public void encode() {
+        BleBench.assumeEnabled();
+        double binary = BleBench.nsPerOp(OPS, i -> BleCodecRegistry.encode(mAuthor).length);
+        double json = BleBench.nsPerOp(OPS, i -> mAuthor.serialize().length);
+        BleBench.report("author encode (ns/op)", String.format("binary=%.0f json=%.0f", binary, json));
+    }
+
+    @Test
+    public void decode() {
+        BleBench.assumeEnabled();
+        byte [] binaryData = BleCodecRegistry.encode(mAuthor);
+        byte [] jsonData = mAuthor.serialize();
+        double binary = BleBench.nsPerOp(OPS, i -> new BleCharcAuthor(ByteBuffer.wrap(binaryData)).getId());
+        double json = BleBench.nsPerOp(OPS, i -> new BleCharcAuthor(ByteBuffer.wrap(jsonData)).getId());
+        BleBench.report("author decode (ns/op)", String.format("binary=%.0f json=%.0f", binary, json));
+    }
+
+    private void assertSameAuthor(BleCharcAuthor author) {
+        assertEquals(mAuthor.getId(), author.getId());
+        assertEquals(mAuthor.getName(), author.getName());
+        assertEquals(mAuthor.getRole(), author.getRole());
+    }
+}
@@ -0,0 +1,45 @@
+package com.lironk.blelib.codec;
+
+import com.lironk.blelib.characteristic.readable.BleCharcAuthor;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+// Fields added by a newer peer, of a type this side doesn't know, must not hide the ones after them
+public class BleTlvReaderTest {
+
+    private static final int UNKNOWN_TYPE = 6;
+
+    @Test
+    public void unknownTypeIsSkipped() {
+        byte [] id = new BleTlvWriter().writeInt(1, 7).toByteArray();
+        byte [] rest = new BleTlvWriter().writeString(2, "name").writeString(3, "role").toByteArray();
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        data.write(id, 0, id.length);
+        // Tag 9, unknown type, 3 bytes long
+        data.write((9 << 3) | UNKNOWN_TYPE);
+        data.write(3);
+        data.write(new byte[3], 0, 3);
+        data.write(rest, 0, rest.length);
+
+        BleCharcAuthor author = new BleCharcAuthor(data.toByteArray());
+
+        assertEquals(7, author.getId());
+        assertEquals("name", author.getName());
+        assertEquals("role", author.getRole());
+    }
+
+    @Test
+    public void registeredCodecIsUsed() {
+        BleCharcAuthor author = new BleCharcAuthor(7, "name", "role");
+
+        byte [] binary = BleCodecRegistry.serialize(author, true);
+
+        assertEquals(new BleTlvWriter().writeInt(1, 7).writeString(2, "name").writeString(3, "role").size(),
+                binary.length);
+    }
+}
@@ -0,0 +1,103 @@
+package com.lironk.blelib.main;
+
+import com.lironk.blelib.BleBench;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+
+// Receive dispatch capacity of BleListenerRegistry for MTU sized messages. Each listener counts packets and
+// bytes the way the client app counts bandwidth - per message, or once per batch
+public class BleListenerRegistryBenchmark {
+
+    private static final UUID UUID_RX = UUID.fromString("9f63117d-680d-4ef5-9e64-92391cc37615");
+    private static final int MESSAGE_SIZE = 244;
+    private static final int OPS = 1_000_000;
+    private static final int BATCH_MESSAGES = 64;
+
+    private abstract static class Counter implements IBleEvents {
+        final AtomicInteger mPackets = new AtomicInteger();
+        final AtomicLong mBytes = new AtomicLong();
+
+        @Override
+        public void bleConnectionStateChanged(int state) {
+        }
+
+        @Override
+        public void bleDataReceived(UUID uuid, byte[] data) {
+            mPackets.incrementAndGet();
+            mBytes.addAndGet(data.length);
+        }
+
+        @Override
+        public void bleDataSent(BleOperation operation) {
+        }
+    }
+
+    private static final class MessageCounter extends Counter {
+    }
+
+    private static final class BufferCounter extends Counter implements IBleBufferEvents {
+        @Override
+        public void bleBufferReceived(UUID uuid, ByteBuffer data) {
+            mPackets.incrementAndGet();
+            mBytes.addAndGet(data.remaining());
+        }
+
+        @Override
+        public void bleDataReceived(UUID uuid, byte[] data) {
+        }
+    }
+
+    private static final class BatchCounter extends Counter implements IBleBatchEvents {
+        @Override
+        public void bleBatchReceived(BleMessageBatch batch) {
+            mPackets.addAndGet(batch.getCount());
+            mBytes.addAndGet(batch.getSize());
+        }
+
+        @Override
+        public void bleDataReceived(UUID uuid, byte[] data) {
+        }
+    }
+
+    private final ByteBuffer mMessage = ByteBuffer.wrap(new byte[MESSAGE_SIZE]);
+
+    @Test
+    public void perMessage() {
+        measure("per message (copy)", new BleListenerRegistry(), new MessageCounter());
+    }
+
+    @Test
+    public void perMessageZeroCopy() {
+        measure("per message (zero copy)", new BleListenerRegistry(), new BufferCounter());
+    }
+
+    @Test
+    public void batched() {
+        BleListenerRegistry registry = new BleListenerRegistry();
+        registry.setBatching(null, BATCH_MESSAGES, BATCH_MESSAGES * MESSAGE_SIZE, 0);
+        measure("batched x" + BATCH_MESSAGES, registry, new BatchCounter());
+    }
+
+    private void measure(String name, BleListenerRegistry registry, Counter counter) {
+        BleBench.assumeEnabled();
+        registry.add(counter);
+        double ns = BleBench.nsPerOp(OPS, i -> {
+            registry.messageReceived(UUID_RX, mMessage);
+            return mMessage.position();
+        });
+        registry.flushBatch();
+
+        BleBench.report("receive " + name, String.format("%.0f ns/msg, %.1fM msgs/s", ns, 1000 / ns));
+        // Warm-up and every round delivered every message
+        long delivered = counter.mPackets.get();
+        assertEquals(0, delivered % OPS);
+        assertEquals(delivered * MESSAGE_SIZE, counter.mBytes.get());
+    }
+}
@@ -0,0 +1,96 @@
+package com.lironk.blelib.main;
+
+import com.lironk.blelib.watchdog.BleTimerWheel;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.lironk.blelib.main.BleProfile.R_BANDWIDTH;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BleListenerRegistryTest {
+
+    private static final int BATCH_MESSAGES = 4;
+    private static final int MESSAGES = 1000;
+
+    private abstract static class BatchListener implements IBleBatchEvents {
+        @Override
+        public void bleConnectionStateChanged(int state) {
+        }
+
+        @Override
+        public void bleDataSent(BleOperation operation) {
+        }
+    }
+
+    private final BleTimerWheel mWheel = new BleTimerWheel(1, 8);
+    private final BleListenerRegistry mRegistry = new BleListenerRegistry();
+
+    @After
+    public void tearDown() {
+        mWheel.stop();
+    }
+
+    // The wheel thread only times the flush, a slow listener must not hold up the timeouts behind it
+    @Test
+    public void deadlineFlushRunsOffTheWheelThread() throws Exception {
+        String [] thread = new String[1];
+        CountDownLatch delivered = new CountDownLatch(1);
+        mRegistry.setBatching(mWheel, BATCH_MESSAGES, 512, 5);
+        mRegistry.add(new BatchListener() {
+            @Override
+            public void bleBatchReceived(BleMessageBatch batch) {
+                thread[0] = Thread.currentThread().getName();
+                delivered.countDown();
+            }
+        });
+
+        mRegistry.messageReceived(R_BANDWIDTH, message(0));
+
+        assertTrue(delivered.await(1, TimeUnit.SECONDS));
+        assertNotEquals("BleTimerWheel", thread[0]);
+    }
+
+    // Size flushes from the receiving thread and deadline flushes race, every message still comes once and in order
+    @Test
+    public void batchesArriveInOrder() throws Exception {
+        List<Integer> received = new ArrayList<>();
+        mRegistry.setBatching(mWheel, BATCH_MESSAGES, 512, 1);
+        mRegistry.add(new BatchListener() {
+            @Override
+            public void bleBatchReceived(BleMessageBatch batch) {
+                // One batch at a time, the registry's delivery lock publishes the list
+                for (int i = 0; i < batch.getCount(); i++){
+                    received.add(batch.getBuffer(i).getInt());
+                }
+            }
+        });
+
+        for (int i = 0; i < MESSAGES; i++){
+            mRegistry.messageReceived(R_BANDWIDTH, message(i));
+            if(i % 7 == 0){
+                Thread.sleep(1);
+            }
+        }
+        mRegistry.flushBatch();
+
+        assertEquals(MESSAGES, received.size());
+        for (int i = 0; i < MESSAGES; i++){
+            assertEquals(i, (int) received.get(i));
+        }
+    }
+
+    private static ByteBuffer message(int value) {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer.putInt(0, value);
+        return buffer;
+    }
+}
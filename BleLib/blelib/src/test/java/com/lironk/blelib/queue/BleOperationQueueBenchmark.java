@@ -0,0 +1,229 @@
+package com.lironk.blelib.queue;
+
+import com.lironk.blelib.BleBench;
+import com.lironk.blelib.enums.eBleLane;
+import com.lironk.blelib.main.BleOperation;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+
+import static org.junit.Assert.assertEquals;
+
+// Producers enqueue as fast as they can while the executor thread takes and ends every operation at once -
+// the queue alone, without the stack. Compares the LinkedList, monitor and semaphores the executors used before
+// with BleMpscQueue and BleOperationQueue built on it
+@RunWith(Parameterized.class)
+public class BleOperationQueueBenchmark {
+
+    private static final int OPS = 400_000;
+    private static final int ROUNDS = 3;
+
+    private interface IQueue {
+        void enqueue(BleOperation operation);
+
+        // Executor thread
+        BleOperation take() throws InterruptedException;
+
+        void endOperation();
+    }
+
+    private static final class Operation extends BleOperation {
+    }
+
+    // The executors before BleOperationQueue: a monitor per enqueue and dequeue, a semaphore counting
+    // the queued operations and one for the operation in flight
+    private static final class LegacyQueue implements IQueue {
+        private final LinkedList<BleOperation> mOperationList = new LinkedList<>();
+        private final Semaphore mQueueSem = new Semaphore(0);
+        private final Semaphore mExecuteSem = new Semaphore(1);
+
+        @Override
+        public void enqueue(BleOperation operation) {
+            synchronized (mOperationList){
+                mOperationList.addLast(operation);
+            }
+            mQueueSem.release();
+        }
+
+        @Override
+        public BleOperation take() throws InterruptedException {
+            mQueueSem.acquire();
+            mExecuteSem.acquire();
+            synchronized (mOperationList){
+                return mOperationList.removeFirst();
+            }
+        }
+
+        @Override
+        public void endOperation() {
+            mExecuteSem.release();
+        }
+    }
+
+    private static final class MpscQueue implements IQueue {
+        private final BleMpscQueue<BleOperation> mQueue = new BleMpscQueue<>(BleOperationQueue.DEFAULT_CAPACITY);
+
+        @Override
+        public void enqueue(BleOperation operation) {
+            mQueue.put(operation);
+        }
+
+        @Override
+        public BleOperation take() {
+            BleOperation operation;
+            while ((operation = mQueue.poll()) == null){
+                Thread.yield();
+            }
+            return operation;
+        }
+
+        @Override
+        public void endOperation() {
+        }
+    }
+
+    private static final class OperationQueue implements IQueue {
+        private final BleOperationQueue mQueue = new BleOperationQueue(operation -> {});
+
+        OperationQueue(boolean timestamped) {
+            mQueue.setTimestamped(timestamped);
+        }
+
+        @Override
+        public void enqueue(BleOperation operation) {
+            mQueue.enqueue(operation, eBleLane.Bulk);
+        }
+
+        @Override
+        public BleOperation take() {
+            return mQueue.take();
+        }
+
+        @Override
+        public void endOperation() {
+            mQueue.endOperation();
+        }
+    }
+
+    @Parameterized.Parameters(name = "{0} producers")
+    public static Collection<Object[]> producers() {
+        // 0: the executor thread enqueues its own operations - what the queue costs without thread switches
+        return Arrays.asList(new Object[][]{{0}, {1}, {4}, {16}});
+    }
+
+    private final int mProducers;
+    private final BleOperation [] mOperations;
+
+    public BleOperationQueueBenchmark(int producers) {
+        mProducers = producers;
+        mOperations = new BleOperation[OPS];
+        for (int i = 0; i < OPS; i++){
+            mOperations[i] = new Operation();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        BleBench.assumeEnabled();
+    }
+
+    @Test
+    public void legacyQueue() throws Exception {
+        report("LinkedList + semaphores", measure(LegacyQueue::new));
+    }
+
+    @Test
+    public void mpscQueue() throws Exception {
+        report("BleMpscQueue", measure(MpscQueue::new));
+    }
+
+    @Test
+    public void operationQueue() throws Exception {
+        report("BleOperationQueue", measure(() -> new OperationQueue(false)));
+    }
+
+    // What the latency recorder costs on top
+    @Test
+    public void timestampedOperationQueue() throws Exception {
+        report("BleOperationQueue timestamped", measure(() -> new OperationQueue(true)));
+    }
+
+    private interface IQueueFactory {
+        IQueue create();
+    }
+
+    // Best ops/s of a few rounds, each on a new queue
+    private long measure(IQueueFactory factory) throws Exception {
+        long best = 0;
+        for (int round = 0; round <= ROUNDS; round++){
+            long opsPerSecond = run(factory.create());
+            // Round 0 warms up
+            if(round > 0){
+                best = Math.max(best, opsPerSecond);
+            }
+        }
+        return best;
+    }
+
+    private long run(IQueue queue) throws Exception {
+        if(mProducers == 0){
+            return runSameThread(queue);
+        }
+        CountDownLatch start = new CountDownLatch(1);
+        Thread [] producers = new Thread[mProducers];
+        int share = OPS / mProducers;
+        for (int p = 0; p < mProducers; p++){
+            int from = p * share;
+            producers[p] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = from; i < from + share; i++){
+                    queue.enqueue(mOperations[i]);
+                }
+            });
+            producers[p].start();
+        }
+
+        int total = share * mProducers;
+        long begin = System.nanoTime();
+        start.countDown();
+        for (int i = 0; i < total; i++){
+            BleOperation operation = queue.take();
+            assertEquals(Operation.class, operation.getClass());
+            queue.endOperation();
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        for (Thread producer : producers){
+            producer.join();
+        }
+        return total * 1_000_000_000L / Math.max(1, elapsed);
+    }
+
+    private long runSameThread(IQueue queue) throws Exception {
+        long begin = System.nanoTime();
+        for (int i = 0; i < OPS; i++){
+            queue.enqueue(mOperations[i]);
+            BleOperation operation = queue.take();
+            assertEquals(Operation.class, operation.getClass());
+            queue.endOperation();
+        }
+        long elapsed = System.nanoTime() - begin;
+        return OPS * 1_000_000_000L / Math.max(1, elapsed);
+    }
+
+    private void report(String name, long opsPerSecond) {
+        BleBench.report(name + " x" + mProducers, opsPerSecond / 1000 + "K ops/s");
+    }
+}
@@ -0,0 +1,115 @@
+package com.lironk.blelib.queue;
+
+import com.lironk.blelib.enums.eBleBackpressure;
+import com.lironk.blelib.enums.eBleLane;
+import com.lironk.blelib.main.BleOperation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static com.lironk.blelib.main.BleProfile.R_BANDWIDTH;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BleOperationQueueTest {
+
+    private static final class Operation extends BleOperation {
+    }
+
+    private final List<BleOperation> mRecycled = Collections.synchronizedList(new ArrayList<>());
+    private final BleOperationQueue mQueue = new BleOperationQueue(mRecycled::add);
+
+    @Test
+    public void newerValueReplacesTheWaitingOne() {
+        mQueue.setConflated(R_BANDWIDTH, true);
+        Operation older = new Operation();
+        Operation newer = new Operation();
+
+        mQueue.enqueue(older, eBleLane.Bulk, R_BANDWIDTH, true);
+        mQueue.enqueue(newer, eBleLane.Bulk, R_BANDWIDTH, true);
+
+        assertSame(newer, take());
+        assertEquals(1, mQueue.getConflatedCount());
+        assertEquals(Collections.singletonList(older), mRecycled);
+    }
+
+    // A value queued after a longer message of the same characteristic must reach the peer after it
+    @Test
+    public void valueDoesntOvertakeAFragmentedMessage() {
+        mQueue.setConflated(R_BANDWIDTH, true);
+        Operation before = new Operation();
+        Operation fragment = new Operation();
+        Operation after = new Operation();
+
+        mQueue.enqueue(before, eBleLane.Bulk, R_BANDWIDTH, true);
+        mQueue.enqueue(fragment, eBleLane.Bulk, R_BANDWIDTH, false);
+        mQueue.enqueue(after, eBleLane.Bulk, R_BANDWIDTH, true);
+
+        assertSame(before, take());
+        assertSame(fragment, take());
+        assertSame(after, take());
+        assertEquals(0, mQueue.getConflatedCount());
+    }
+
+    @Test
+    public void valueQueuedAfterResetIsKept() {
+        mQueue.setConflated(R_BANDWIDTH, true);
+        Operation dropped = new Operation();
+        Operation kept = new Operation();
+
+        mQueue.enqueue(dropped, eBleLane.Bulk, R_BANDWIDTH, true);
+        mQueue.reset();
+        mQueue.enqueue(kept, eBleLane.Bulk, R_BANDWIDTH, true);
+
+        assertSame(kept, take());
+        assertEquals(Collections.singletonList(dropped), mRecycled);
+    }
+
+    @Test
+    public void otherKeysAreNotConflated() {
+        mQueue.setConflated(R_BANDWIDTH, true);
+        UUID other = UUID.randomUUID();
+        Operation first = new Operation();
+        Operation second = new Operation();
+
+        mQueue.enqueue(first, eBleLane.Bulk, other, true);
+        mQueue.enqueue(second, eBleLane.Bulk, other, true);
+
+        assertSame(first, take());
+        assertSame(second, take());
+    }
+
+    // A message counts for all of its fragments, not just the first
+    @Test
+    public void messageThatWouldPassTheHighWatermarkIsRejected() {
+        mQueue.setBackpressure(eBleBackpressure.FailFast);
+        mQueue.setWatermarks(2, 8);
+        for (int i = 0; i < 4; i++){
+            mQueue.enqueue(new Operation(), eBleLane.Bulk);
+        }
+
+        assertTrue(mQueue.admit(eBleLane.Bulk, 4));
+        assertFalse(mQueue.admit(eBleLane.Bulk, 5));
+        assertFalse(mQueue.isWritable());
+        // Control goes anyway
+        assertTrue(mQueue.admit(eBleLane.Control, 5));
+
+        take();
+        take();
+        assertTrue(mQueue.isWritable());
+        // At the low watermark, even a message longer than the gap to the high one is queued
+        assertTrue(mQueue.admit(eBleLane.Bulk, 20));
+    }
+
+    private BleOperation take() {
+        BleOperation operation = mQueue.take();
+        mQueue.endOperation();
+        return operation;
+    }
+}
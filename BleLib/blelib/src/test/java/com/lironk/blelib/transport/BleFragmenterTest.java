@@ -0,0 +1,87 @@
+package com.lironk.blelib.transport;
+
+import com.lironk.blelib.enums.eBleCompression;
+import com.lironk.blelib.enums.eBleFraming;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static com.lironk.blelib.main.BleProfile.R_BANDWIDTH;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Once warmed up, sending a packet must not allocate - every fragment buffer comes back from the pool
+public class BleFragmenterTest {
+
+    private static final int MAX_PAYLOAD_SIZE = 244;
+    private static final int WARM_UP = 100;
+    private static final int MESSAGES = 10_000;
+
+    // Recycles each fragment as the GATT write completion would
+    private static final class RecyclingSink implements IBleFragmentSink<Void> {
+        private final BleFragmenter mFragmenter;
+        private long mFragments;
+
+        RecyclingSink(BleFragmenter fragmenter) {
+            mFragmenter = fragmenter;
+        }
+
+        @Override
+        public void onFragment(UUID uuid, byte[] fragment, Void target) {
+            mFragments++;
+            mFragmenter.recycle(fragment);
+        }
+    }
+
+    @Test
+    public void legacyFragmentsDontAllocateAfterWarmUp() {
+        assertFlatAllocations(eBleFraming.Legacy);
+    }
+
+    @Test
+    public void extendedFragmentsDontAllocateAfterWarmUp() {
+        assertFlatAllocations(eBleFraming.Extended);
+    }
+
+    @Test
+    public void fragmentsInFlightAreAllocatedOnce() {
+        BleBufferPool pool = new BleBufferPool();
+        BleFragmenter fragmenter = new BleFragmenter(pool);
+        byte [][] inFlight = new byte[4][];
+        int [] count = new int[1];
+        IBleFragmentSink<Void> sink = (uuid, fragment, target) -> inFlight[count[0]++] = fragment;
+
+        byte [] data = new byte[MAX_PAYLOAD_SIZE * 3];
+        for (int i = 0; i < MESSAGES; i++){
+            count[0] = 0;
+            fragmenter.fragment(R_BANDWIDTH, data, eBleFraming.Extended, eBleCompression.None, MAX_PAYLOAD_SIZE, null, sink);
+            for (int j = 0; j < count[0]; j++){
+                fragmenter.recycle(inFlight[j]);
+            }
+        }
+        // One buffer per fragment of a message, whatever the number of messages
+        assertTrue(pool.getAllocationCount() <= inFlight.length);
+    }
+
+    private void assertFlatAllocations(eBleFraming framing) {
+        BleBufferPool pool = new BleBufferPool();
+        BleFragmenter fragmenter = new BleFragmenter(pool);
+        RecyclingSink sink = new RecyclingSink(fragmenter);
+        // Single fragment, multi fragment and a short last fragment
+        byte [][] messages = {new byte[20], new byte[MAX_PAYLOAD_SIZE * 2], new byte[MAX_PAYLOAD_SIZE + 17]};
+
+        for (int i = 0; i < WARM_UP; i++){
+            fragmenter.fragment(R_BANDWIDTH, messages[i % messages.length], framing, eBleCompression.None, MAX_PAYLOAD_SIZE, null, sink);
+        }
+        long allocations = pool.getAllocationCount();
+        long fragments = sink.mFragments;
+
+        for (int i = 0; i < MESSAGES; i++){
+            fragmenter.fragment(R_BANDWIDTH, messages[i % messages.length], framing, eBleCompression.None, MAX_PAYLOAD_SIZE, null, sink);
+        }
+
+        assertTrue(sink.mFragments - fragments >= MESSAGES);
+        assertEquals(allocations, pool.getAllocationCount());
+    }
+}
@@ -0,0 +1,104 @@
+package com.lironk.blelib.transport;
+
+import com.lironk.blelib.enums.eBleCompression;
+import com.lironk.blelib.enums.eBleFraming;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.lironk.blelib.main.BleProfile.MAX_MESSAGE_SIZE;
+import static com.lironk.blelib.main.BleProfile.R_BANDWIDTH;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BleReassemblerTest {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final int MAX_PAYLOAD_SIZE = 244;
+
+    // Remembers the largest buffer handed out
+    private static final class SizeRecordingPool extends BleBufferPool {
+        private int mLargest;
+
+        @Override
+        public synchronized byte [] acquire(int size) {
+            mLargest = Math.max(mLargest, size);
+            return super.acquire(size);
+        }
+    }
+
+    @Test
+    public void extendedMessageIsReassembled() {
+        byte [] data = getData(MAX_PAYLOAD_SIZE * 2);
+        BleReassembler reassembler = new BleReassembler(new BleBufferPool());
+
+        ByteBuffer message = feed(reassembler, getFragments(data));
+
+        assertNotNull(message);
+        byte [] received = new byte[message.remaining()];
+        message.get(received);
+        assertArrayEquals(data, received);
+    }
+
+    // A peer announcing a huge message gets a buffer that grows with what it actually sends
+    @Test
+    public void announcedLengthIsNotPreallocated() {
+        byte [] data = getData(MAX_MESSAGE_SIZE / 4);
+        SizeRecordingPool pool = new SizeRecordingPool();
+        BleReassembler reassembler = new BleReassembler(pool);
+        List<byte []> fragments = getFragments(data);
+
+        assertNull(reassembler.onFragment(ADDRESS, R_BANDWIDTH, fragments.get(0)));
+        assertTrue(pool.mLargest < data.length / 8);
+
+        ByteBuffer message = feed(reassembler, fragments.subList(1, fragments.size()));
+        assertNotNull(message);
+        assertEquals(data.length, message.remaining());
+    }
+
+    // Compressed bytes must never be delivered as if they were plain payload
+    @Test
+    public void unknownCompressionDropsMessage() {
+        byte [] data = getData(MAX_PAYLOAD_SIZE * 2);
+        BleReassembler reassembler = new BleReassembler(new BleBufferPool());
+        List<byte []> fragments = getFragments(data);
+        byte [] first = fragments.get(0);
+        first[1] = (byte) ((7 << 4) | (first[1] & 0x0F));
+
+        assertNull(feed(reassembler, fragments));
+
+        // The next message on the same characteristic is not affected
+        assertNotNull(feed(reassembler, getFragments(data)));
+    }
+
+    // Returns what the last fragment produced
+    private ByteBuffer feed(BleReassembler reassembler, List<byte []> fragments) {
+        ByteBuffer message = null;
+        for (byte [] fragment : fragments){
+            message = reassembler.onFragment(ADDRESS, R_BANDWIDTH, fragment);
+        }
+        return message;
+    }
+
+    private List<byte []> getFragments(byte [] data) {
+        BleFragmenter fragmenter = new BleFragmenter(new BleBufferPool());
+        List<byte []> fragments = new ArrayList<>();
+        fragmenter.fragment(R_BANDWIDTH, data, eBleFraming.Extended, eBleCompression.None, MAX_PAYLOAD_SIZE, null,
+                (uuid, fragment, target) -> fragments.add(fragment.clone()));
+        return fragments;
+    }
+
+    private byte [] getData(int length) {
+        byte [] data = new byte[length];
+        for (int i = 0; i < length; i++){
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+}
@@ -0,0 +1,45 @@
+package com.lironk.blelib.watchdog;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class BleRetryPolicyTest {
+
+    @Test
+    public void backoffDoublesUpToTheCap() {
+        BleRetryPolicy policy = new BleRetryPolicy(100, 8, 20, 1000);
+
+        long [] expected = {20, 40, 80, 160, 320, 640, 1000, 1000};
+        for (int retry = 0; retry < expected.length; retry++){
+            assertEquals(expected[retry], policy.getBackoffMs(retry));
+        }
+    }
+
+    // The shift would overflow long long before the retries run out
+    @Test
+    public void largeRetryStaysAtTheCap() {
+        BleRetryPolicy policy = new BleRetryPolicy(100, Integer.MAX_VALUE, 20, 1000);
+
+        assertEquals(1000, policy.getBackoffMs(58));
+        assertEquals(1000, policy.getBackoffMs(63));
+        assertEquals(1000, policy.getBackoffMs(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void zeroBackoffRetriesAtOnce() {
+        BleRetryPolicy policy = new BleRetryPolicy(100, 3, 0, 0);
+
+        assertEquals(0, policy.getBackoffMs(0));
+        assertEquals(0, policy.getBackoffMs(10));
+    }
+
+    @Test
+    public void argumentsAreClamped() {
+        BleRetryPolicy policy = new BleRetryPolicy(0, -1, -5, 0);
+
+        assertEquals(1, policy.getTimeoutMs());
+        assertEquals(0, policy.getMaxRetries());
+        assertEquals(0, policy.getBackoffMs(0));
+    }
+}
@@ -0,0 +1,96 @@
+package com.lironk.blelib.watchdog;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// A scheduled timeout either runs or is cancelled, never both - the watchdog's disarm() and expiry rely on it
+public class BleTimeoutTest {
+
+    private static final int RACES = 500;
+
+    private final BleTimerWheel mWheel = new BleTimerWheel(1, 8);
+
+    @After
+    public void tearDown() {
+        mWheel.stop();
+    }
+
+    @Test
+    public void cancelledTimeoutNeverRuns() throws Exception {
+        CountDownLatch ran = new CountDownLatch(1);
+        BleTimeout timeout = new BleTimeout(mWheel, ran::countDown).schedule(10);
+
+        assertTrue(timeout.cancel());
+        assertTrue(timeout.isCancelled());
+        assertFalse(ran.await(50, TimeUnit.MILLISECONDS));
+        // Only once
+        assertFalse(timeout.cancel());
+    }
+
+    @Test
+    public void expiredTimeoutCantBeCancelled() throws Exception {
+        CountDownLatch ran = new CountDownLatch(1);
+        BleTimeout timeout = new BleTimeout(mWheel, ran::countDown).schedule(0);
+
+        assertTrue(ran.await(1, TimeUnit.SECONDS));
+        assertTrue(timeout.isExpired());
+        assertFalse(timeout.cancel());
+    }
+
+    @Test
+    public void idleTimeoutCantBeCancelled() {
+        assertFalse(new BleTimeout(mWheel, () -> {}).cancel());
+    }
+
+    // The earlier deadline belongs to an older generation, the wheel must not run it
+    @Test
+    public void schedulingAgainDropsTheEarlierDeadline() throws Exception {
+        CountDownLatch ran = new CountDownLatch(1);
+        BleTimeout timeout = new BleTimeout(mWheel, ran::countDown).schedule(5);
+        timeout.schedule(10_000);
+
+        assertFalse(ran.await(50, TimeUnit.MILLISECONDS));
+        assertTrue(timeout.cancel());
+    }
+
+    // Cancelling around the deadline, again and again on the same timeout as the watchdog does
+    @Test
+    public void cancelAndExpiryHaveOneWinner() throws Exception {
+        AtomicInteger runs = new AtomicInteger(0);
+        BleTimeout timeout = new BleTimeout(mWheel, runs::incrementAndGet);
+
+        int cancels = 0;
+        for (int i = 0; i < RACES; i++){
+            int before = runs.get();
+            timeout.schedule(1);
+            LockSupport.parkNanos((i % 20) * 100_000L);
+            if(timeout.cancel()){
+                cancels++;
+            }
+            else {
+                awaitRuns(runs, before + 1);
+            }
+        }
+
+        // Give a cancelled one the time to run if it was going to
+        Thread.sleep(20);
+        assertEquals(RACES, cancels + runs.get());
+    }
+
+    private static void awaitRuns(AtomicInteger runs, int expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (runs.get() < expected && System.nanoTime() < deadline){
+            Thread.sleep(1);
+        }
+        assertEquals(expected, runs.get());
+    }
+}
@@ -0,0 +1,84 @@
+package com.lironk.blelib.watchdog;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BleTimerWheelTest {
+
+    private static final long TICK_MS = 1;
+    // Small enough that most deadlines below go round the wheel more than once
+    private static final int WHEEL_SIZE = 8;
+
+    private final BleTimerWheel mWheel = new BleTimerWheel(TICK_MS, WHEEL_SIZE);
+
+    @After
+    public void tearDown() {
+        mWheel.stop();
+    }
+
+    @Test
+    public void tasksRunInDeadlineOrder() throws Exception {
+        long [] delays = {30, 5, 20, 12};
+        List<Long> order = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(delays.length);
+        for (long delay : delays){
+            mWheel.schedule(() -> {
+                // Wheel thread only, the latch publishes it
+                order.add(delay);
+                done.countDown();
+            }, delay);
+        }
+
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(5L, 12L, 20L, 30L), order);
+    }
+
+    // Deadlines are rounded up, never down
+    @Test
+    public void taskNeverRunsEarly() throws Exception {
+        for (long delay : new long[]{0, 1, 7, 9, 25}){
+            long [] ranAt = new long[1];
+            CountDownLatch done = new CountDownLatch(1);
+            long scheduledAt = System.nanoTime();
+            mWheel.schedule(() -> {
+                ranAt[0] = System.nanoTime();
+                done.countDown();
+            }, delay);
+
+            assertTrue(done.await(1, TimeUnit.SECONDS));
+            assertTrue("delay " + delay, ranAt[0] - scheduledAt >= TimeUnit.MILLISECONDS.toNanos(delay));
+        }
+    }
+
+    @Test
+    public void tasksRunOnTheWheelThread() throws Exception {
+        String [] name = new String[1];
+        CountDownLatch done = new CountDownLatch(1);
+        mWheel.schedule(() -> {
+            name[0] = Thread.currentThread().getName();
+            done.countDown();
+        }, 0);
+
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertEquals("BleTimerWheel", name[0]);
+    }
+
+    @Test
+    public void stopDropsPendingTasks() throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        mWheel.schedule(done::countDown, 20);
+        mWheel.stop();
+
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+    }
+}
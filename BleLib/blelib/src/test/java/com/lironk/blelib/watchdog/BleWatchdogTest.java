@@ -0,0 +1,196 @@
+package com.lironk.blelib.watchdog;
+
+import com.lironk.blelib.enums.eBleOperationError;
+import com.lironk.blelib.main.BleOperation;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BleWatchdogTest {
+
+    private static final long TIMEOUT_MS = 5;
+    private static final int MAX_RETRIES = 2;
+    private static final long BACKOFF_MS = 1;
+    private static final long MAX_BACKOFF_MS = 4;
+
+    private static final String EXPIRED = "expired";
+    private static final String RETRY = "retry";
+
+    private static class Operation extends BleOperation {
+    }
+
+    // A fragment in the middle of a message
+    private static final class Fragment extends Operation {
+        @Override
+        public boolean isResendable() {
+            return false;
+        }
+    }
+
+    // Records what the watchdog asked for. A retried operation is armed again, as the executors do
+    private final class Handler implements IBleWatchdogHandler {
+        private final BlockingQueue<Object> mEvents = new LinkedBlockingQueue<>();
+        private volatile boolean mRearm = true;
+
+        @Override
+        public void onExpired(BleOperation operation) {
+            mEvents.add(EXPIRED);
+        }
+
+        @Override
+        public void onRetry(BleOperation operation) {
+            if(mRearm){
+                mWatchdog.arm(operation);
+            }
+            mEvents.add(RETRY);
+        }
+
+        @Override
+        public void onFailed(BleOperation operation, eBleOperationError error) {
+            mEvents.add(error);
+        }
+
+        Object next() throws InterruptedException {
+            return mEvents.poll(1, TimeUnit.SECONDS);
+        }
+
+        Object none() throws InterruptedException {
+            return mEvents.poll(50, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private final BleTimerWheel mWheel = new BleTimerWheel(1, 8);
+    private final Handler mHandler = new Handler();
+    private final BleWatchdog mWatchdog = new BleWatchdog(mWheel, mHandler);
+
+    public BleWatchdogTest() {
+        mWatchdog.setRetryPolicy(new BleRetryPolicy(TIMEOUT_MS, MAX_RETRIES, BACKOFF_MS, MAX_BACKOFF_MS));
+    }
+
+    @After
+    public void tearDown() {
+        mWatchdog.stop();
+    }
+
+    @Test
+    public void completionInTimeDisarms() throws Exception {
+        Operation operation = new Operation();
+        mWatchdog.arm(operation);
+
+        assertTrue(mWatchdog.disarm(operation));
+        assertNull(mHandler.none());
+        assertEquals(0, mWatchdog.getStallCount());
+    }
+
+    @Test
+    public void missedDeadlinesAreRetriedThenFailed() throws Exception {
+        Operation operation = new Operation();
+        mWatchdog.arm(operation);
+
+        for (int retry = 0; retry < MAX_RETRIES; retry++){
+            assertEquals(EXPIRED, mHandler.next());
+            assertEquals(RETRY, mHandler.next());
+        }
+        assertEquals(EXPIRED, mHandler.next());
+        assertEquals(eBleOperationError.Timeout, mHandler.next());
+        assertNull(mHandler.none());
+
+        assertEquals(MAX_RETRIES + 1, mWatchdog.getStallCount());
+        assertEquals(MAX_RETRIES, mWatchdog.getRetryCount());
+        assertEquals(1, mWatchdog.getFailureCount());
+        assertEquals(MAX_RETRIES, operation.getAttempts());
+    }
+
+    // The watchdog owns an expired operation, its completion must not return the credit a second time
+    @Test
+    public void lateCompletionIsIgnored() throws Exception {
+        mHandler.mRearm = false;
+        Operation operation = new Operation();
+        mWatchdog.arm(operation);
+
+        assertEquals(EXPIRED, mHandler.next());
+        assertFalse(mWatchdog.disarm(operation));
+    }
+
+    @Test
+    public void completionOnRetryIsARecovery() throws Exception {
+        Operation operation = new Operation();
+        mWatchdog.arm(operation);
+
+        assertEquals(EXPIRED, mHandler.next());
+        assertEquals(RETRY, mHandler.next());
+        assertTrue(mWatchdog.disarm(operation));
+
+        assertEquals(1, mWatchdog.getRecoveryCount());
+        assertTrue(mWatchdog.getMaxRecoveryNs() > 0);
+        assertEquals(0, operation.getStalledTime());
+    }
+
+    @Test
+    public void fragmentIsNotResent() throws Exception {
+        mWatchdog.arm(new Fragment());
+
+        assertEquals(EXPIRED, mHandler.next());
+        assertEquals(eBleOperationError.Timeout, mHandler.next());
+        assertEquals(0, mWatchdog.getRetryCount());
+    }
+
+    // A retry waiting when the connection goes belongs to the old one
+    @Test
+    public void retryOfAnOlderEpochIsCancelled() throws Exception {
+        mWatchdog.setRetryPolicy(new BleRetryPolicy(TIMEOUT_MS, MAX_RETRIES, 200, 200));
+        mWatchdog.arm(new Operation());
+
+        assertEquals(EXPIRED, mHandler.next());
+        mWatchdog.reset();
+
+        assertEquals(eBleOperationError.Cancelled, mHandler.next());
+        assertEquals(0, mWatchdog.getRetryCount());
+    }
+
+    @Test
+    public void rejectedOperationIsRetried() throws Exception {
+        mHandler.mRearm = false;
+        Operation operation = new Operation();
+        mWatchdog.arm(operation);
+
+        assertTrue(mWatchdog.reject(operation));
+        assertEquals(RETRY, mHandler.next());
+        assertEquals(1, mWatchdog.getRejectionCount());
+        assertEquals(0, mWatchdog.getStallCount());
+    }
+
+    // Disarm and expiry race on the same operation - exactly one of them owns it
+    @Test
+    public void disarmRacingTheDeadlineHasOneOwner() throws Exception {
+        mHandler.mRearm = false;
+        mWatchdog.setRetryPolicy(new BleRetryPolicy(1, 0, 0, 0));
+        Operation operation = new Operation();
+
+        int disarmed = 0;
+        int races = 300;
+        for (int i = 0; i < races; i++){
+            mWatchdog.arm(operation);
+            Thread.sleep(i % 3);
+            if(mWatchdog.disarm(operation)){
+                disarmed++;
+            }
+            else {
+                assertEquals(EXPIRED, mHandler.next());
+                assertEquals(eBleOperationError.Timeout, mHandler.next());
+            }
+        }
+
+        assertNull(mHandler.none());
+        assertEquals(races, disarmed + mWatchdog.getStallCount());
+    }
+}
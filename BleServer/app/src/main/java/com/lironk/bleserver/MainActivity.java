@@ -19,21 +19,27 @@ import com.lironk.blelib.characteristic.readable.BleCharcAuthor;
 import com.lironk.blelib.main.BleCharacteristic;
 import com.lironk.blelib.main.BleOperation;
 import com.lironk.bleserver.server.BleServer;
-import com.lironk.blelib.characteristic.readable.BleCharcBandwidth;
+import com.lironk.bleserver.server.BleStreamEngine;
+import com.lironk.bleserver.server.BleStreamOptions;
+import com.lironk.blelib.bench.BlePayloadGenerator;
+import com.lironk.blelib.bench.BlePayloadVerifier;
+import com.lironk.blelib.bench.BleTestProfile;
+import com.lironk.blelib.bench.BleTestReport;
 import com.lironk.blelib.characteristic.readable.BleCharcStatus;
 import com.lironk.blelib.characteristic.writable.BleCharcCommand;
 import com.lironk.blelib.enums.eBleCommand;
+import com.lironk.blelib.enums.eBleCompression;
+import com.lironk.blelib.enums.eBleDirection;
+import com.lironk.blelib.enums.eBleOperationError;
 import com.lironk.blelib.enums.eBleStatus;
 import com.lironk.blelib.main.BleProfile;
 import com.lironk.blelib.main.IBleEvents;
 
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicBoolean;
 
+import static com.lironk.blelib.main.BleProfile.R_BANDWIDTH;
 import static com.lironk.blelib.main.Utils.bleStateToString;
 
 public class MainActivity extends AppCompatActivity implements IBleEvents {
@@ -41,27 +47,44 @@ public class MainActivity extends AppCompatActivity implements IBleEvents {
     private final String TAG = Class.class.getSimpleName();
 
     private final int ONE_SECOND_MS = 1000;
-    private final int ONE_MIN_MS = ONE_SECOND_MS * 60;
+    private final int LATENCY_DUMP_MS = ONE_SECOND_MS * 10;
     private final int LOCATION_PERMISSION = 66;
 
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
 
     private BleServer mBleServer;
-    private BleCharcBandwidth mBandwidthCharc;
     private ExecutorService mMsgExecutor;
 
-    private final String mBandwidthTimerLock = "TimerLock";
-    private Timer mBandwidthTimer;
-    private AtomicBoolean mStarted;
-
+    // Test being run, a sweep streams one step after the other
+    private BleTestProfile mProfile;
+    private eBleCompression mCompression;
+    // One counter across the steps, the client sees a single run of payloads
+    private BlePayloadGenerator mPayloadGenerator;
+    // Totals of the steps, sent with the Stop status
+    private BleTestReport mReport;
+    private int mStep;
+    private volatile boolean mStopRequested;
+
+    // A test ends once its download stream finished and, for upload and duplex, the client sent Stop
+    private final Object mTestLock = new Object();
+    private boolean mTestRunning;
+    private boolean mStreamDone;
+    private boolean mAwaitingUpload;
+    private long mRawStartBytes;
+
+    // Upload side, W_BULK messages from the client. Checked on the receive thread, read when the test ends
+    private final BlePayloadVerifier mUploadVerifier = new BlePayloadVerifier();
+    private long mUploadMessages;
+    private long mUploadBytes;
+    private long mUploadFirstNs;
+    private long mUploadLastNs;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
-        mStarted = new AtomicBoolean(false);
         mMsgExecutor = Executors.newSingleThreadExecutor();
 
         mBluetoothManager = (BluetoothManager) getSystemService(BLUETOOTH_SERVICE);
@@ -152,13 +175,11 @@ public class MainActivity extends AppCompatActivity implements IBleEvents {
         String stateStr = bleStateToString(state);
         Log.d(TAG, "bleConnectionStateChanged. state=" + stateStr);
 
+        // A running stream is cancelled by the server, the test ends unreported
         if(state == BluetoothAdapter.STATE_DISCONNECTED){
-            mStarted.set(false);
-            synchronized (mBandwidthTimerLock){
-                if(mBandwidthTimer != null){
-                    mBandwidthTimer.cancel();
-                    mBandwidthTimer = null;
-                }
+            mBleServer.getLatencyRecorder().stopDump();
+            synchronized (mTestLock){
+                mTestRunning = false;
             }
         }
 
@@ -170,9 +191,12 @@ public class MainActivity extends AppCompatActivity implements IBleEvents {
 
     @Override
     public void bleDataSent(BleOperation operation) {
-        if(mStarted.get()){
-            send(mBandwidthCharc);
-        }
+
+    }
+
+    @Override
+    public void bleOperationFailed(BleOperation operation, eBleOperationError error) {
+        Log.w(TAG, "bleOperationFailed. Error = " + error);
     }
 
     @Override
@@ -183,7 +207,8 @@ public class MainActivity extends AppCompatActivity implements IBleEvents {
             switch (commandCharacteristic.getCommand()) {
                 case eCuBleCommand_Start:
                     Log.d(TAG, "Thread: " + tId + ". bleDataReceived. Start");
-                    start();
+                    start(commandCharacteristic.getBandwidthCompression(), commandCharacteristic.getWindow(),
+                            commandCharacteristic.getProfile());
                     break;
                 case eCuBleCommand_Stop:
                     Log.d(TAG, "Thread: " + tId + ". bleDataReceived. Stop");
@@ -198,69 +223,163 @@ public class MainActivity extends AppCompatActivity implements IBleEvents {
                     break;
             }
         }
+        else if (BleProfile.W_BULK.equals(uuid)){
+            onUploadMessage(data);
+        }
+    }
+
+    private void onUploadMessage(byte [] data){
+        long now = System.nanoTime();
+        synchronized (mUploadVerifier){
+            if(mUploadMessages == 0){
+                mUploadFirstNs = now;
+            }
+            mUploadLastNs = now;
+            mUploadMessages++;
+            mUploadBytes += data.length;
+            mUploadVerifier.verify(data, 0, data.length, now);
+        }
     }
 
     private void sendUser(){
         send(new BleCharcAuthor(1, "Liron Komfort", "SW Engineer"));
     }
 
-    private void start(){
+    private void start(eBleCompression compression, int window, BleTestProfile profile){
         long tId = Thread.currentThread().getId();
-        if (mBandwidthTimer == null){
-            Log.d(TAG, "Thread: " + tId + ". start");
-            mBandwidthCharc = new BleCharcBandwidth(mBleServer.getMtu());
+        synchronized (mTestLock){
+            if(mTestRunning){
+                Log.w(TAG, "Thread: " + tId + ". start. A test is running");
+                sendStartError();
+                return;
+            }
+            mTestRunning = true;
+            eBleDirection direction = profile.getDirection();
+            mStreamDone = direction == eBleDirection.Upload;
+            mAwaitingUpload = direction != eBleDirection.Download;
+        }
+
+        Log.d(TAG, "Thread: " + tId + ". start. Compression = " + compression + ". Window = " + (window > 0 ? window : "auto")
+                + ". Profile: " + profile);
+        mProfile = profile;
+        mCompression = compression;
+        mStep = 0;
+        mStopRequested = false;
+        mReport = new BleTestReport();
+        mPayloadGenerator = new BlePayloadGenerator(profile.getPattern(), profile.getPayloadSize(0, mBleServer.getMtu()));
+        synchronized (mUploadVerifier){
+            mUploadVerifier.reset();
+            mUploadMessages = 0;
+            mUploadBytes = 0;
+        }
+        mRawStartBytes = mBleServer.getBulkReceivedBytes();
+        mBleServer.setWindow(window);
+        mBleServer.getLatencyRecorder().reset();
+        mBleServer.getReceiveRing().resetStats();
+        mBleServer.getLatencyRecorder().startDump(LATENCY_DUMP_MS);
+        // The status still goes out ahead of the queued stream, on the control lane
+        if(profile.getDirection() == eBleDirection.Upload || startStep()){
             send(new BleCharcStatus(eBleCommand.eCuBleCommand_Start, eBleStatus.eBleStatus_Ok.getStatus()));
-            mStarted.set(true);
-            send(mBandwidthCharc);
-            startBandwidthTimer();
+            return;
         }
-        else{
-            byte errMask =  (byte)(eBleStatus.eBleStatus_Error.getStatus() | eBleStatus.eBleStatus_WrongState.getStatus());
-            send(new BleCharcStatus(eBleCommand.eCuBleCommand_Start, errMask));
+
+        mBleServer.getLatencyRecorder().stopDump();
+        synchronized (mTestLock){
+            mTestRunning = false;
         }
+        sendStartError();
+    }
+
+    private void sendStartError(){
+        byte errMask =  (byte)(eBleStatus.eBleStatus_Error.getStatus() | eBleStatus.eBleStatus_WrongState.getStatus());
+        send(new BleCharcStatus(eBleCommand.eCuBleCommand_Start, errMask));
+    }
+
+    // The server queues every packet of the step from the completion of an earlier one, for the step duration
+    private boolean startStep(){
+        int size = mProfile.getPayloadSize(mStep, mBleServer.getMtu());
+        mPayloadGenerator.setSize(size);
+        BleStreamOptions options = new BleStreamOptions()
+                .setCompression(mCompression)
+                .setDuration(mProfile.getDurationMs())
+                .setRate(mProfile.getRate(), mProfile.getBurst())
+                .setIndicate(mProfile.isIndicate());
+        Log.d(TAG, "startStep. Step " + (mStep + 1) + "/" + mProfile.getStepCount() + ". Payload size = " + size);
+        // The stream copies each payload into its fragments before asking for the next one
+        return mBleServer.startStream(R_BANDWIDTH, mPayloadGenerator::next, options, this::onStreamFinished);
     }
 
     private void stop(){
         long tId = Thread.currentThread().getId();
         Log.d(TAG, "Thread: " + tId + ". stop");
-        cancelBandwidthTimer();
+        mStopRequested = true;
+        mBleServer.stopStream();
+        // The client is done uploading
+        synchronized (mTestLock){
+            mAwaitingUpload = false;
+        }
+        finishTest();
     }
 
-    private void startBandwidthTimer(){
-        synchronized (mBandwidthTimerLock){
-            long tId = Thread.currentThread().getId();
-            Log.d(TAG, "Thread: " + tId + ". startBandwidthTimer");
-            mBandwidthTimer = new Timer();
-            mBandwidthTimer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    long tId = Thread.currentThread().getId();
-                    Log.d(TAG, "Thread: " + tId + ". BandwidthTimer expired");
-                    cancelBandwidthTimer();
+    private void onStreamFinished(BleStreamEngine stream){
+        long tId = Thread.currentThread().getId();
+        Log.d(TAG, "Thread: " + tId + ". onStreamFinished. Step " + (mStep + 1) + ". Payload size = " + mPayloadGenerator.getSize()
+                + ". Sent = " + stream.getSentPackets() + " packets, "
+                + stream.getSentBytes() + " bytes in " + stream.getDurationNs() / 1_000_000 + " ms. "
+                + stream.getBytesPerSecond() / 1000 + " KB/s");
+        mReport.add(stream.getSentPackets(), stream.getSentBytes(), stream.getDurationNs() / 1_000_000);
+
+        // Next sweep step, reported on its own
+        if(!mStopRequested && mStep + 1 < mProfile.getStepCount()){
+            mStep++;
+            if(startStep()){
+                // A Stop that came in between the steps found no stream to stop
+                if(mStopRequested){
+                    mBleServer.stopStream();
                 }
-            }, ONE_MIN_MS);
+                return;
+            }
         }
+
+        Log.d(TAG, "Thread: " + tId + ". onStreamFinished. Window = " + mBleServer.getWindow()
+                + ". Completion latency (us) = " + mBleServer.getCompletionLatencyNs() / 1000
+                + ". Stalls = " + mBleServer.getWatchdog().getStallCount()
+                + ". Recovery avg/max (ms) = " + mBleServer.getWatchdog().getAverageRecoveryNs() / 1_000_000
+                + "/" + mBleServer.getWatchdog().getMaxRecoveryNs() / 1_000_000);
+        synchronized (mTestLock){
+            mStreamDone = true;
+        }
+        finishTest();
     }
 
-    private void cancelBandwidthTimer(){
-        synchronized (mBandwidthTimerLock){
-            long tId = Thread.currentThread().getId();
-            Log.d(TAG, "Thread: " + tId + ". cancelBandwidthTimer");
-            if(mBandwidthTimer != null){
-                mStarted.set(false);
-                mBandwidthTimer.cancel();
-                mBandwidthTimer = null;
-                send(new BleCharcStatus(eBleCommand.eCuBleCommand_Stop, eBleStatus.eBleStatus_Ok.getStatus()));
+    // Reports the test once both directions are done, exactly once
+    private void finishTest(){
+        long tId = Thread.currentThread().getId();
+        synchronized (mTestLock){
+            if(!mTestRunning || !mStreamDone || mAwaitingUpload){
+                return;
             }
+            mTestRunning = false;
         }
-    }
 
-    private void term(){
-        if(mBandwidthTimer != null){
-            mBandwidthTimer.cancel();
-            mBandwidthTimer = null;
+        mBleServer.getLatencyRecorder().stopDump();
+        Log.d(TAG, "Thread: " + tId + ". finishTest. Latency (us):\n" + mBleServer.getLatencyRecorder().dump());
+        Log.d(TAG, "Thread: " + tId + ". finishTest. Receive (us):\n" + mBleServer.getReceiveRing().dump());
+        mReport.setMessages(mPayloadGenerator.getCounter());
+        synchronized (mUploadVerifier){
+            if(mUploadMessages > 0){
+                mReport.setReceived(mUploadMessages, mUploadBytes, mBleServer.getBulkReceivedBytes() - mRawStartBytes,
+                                (mUploadLastNs - mUploadFirstNs) / 1_000_000)
+                        .setReceiveErrors(mUploadVerifier.getTracker().getLost(), mUploadVerifier.getErrors());
+                Log.d(TAG, "Thread: " + tId + ". finishTest. Upload: " + mUploadVerifier + ". "
+                        + mUploadVerifier.getTracker() + ". " + mReport.getReceiveBytesPerSecond() / 1000 + " KB/s");
+            }
         }
+        Log.d(TAG, "Thread: " + tId + ". finishTest. Report: " + mReport);
+        send(new BleCharcStatus(eBleCommand.eCuBleCommand_Stop, eBleStatus.eBleStatus_Ok.getStatus(), mReport));
+    }
 
+    private void term(){
         if(mMsgExecutor != null){
             mMsgExecutor.shutdown();
             mMsgExecutor = null;
@@ -20,53 +20,117 @@ import android.content.IntentFilter;
 import android.os.ParcelUuid;
 import android.util.Log;
 
+import com.lironk.blelib.async.BleCompletion;
+import com.lironk.blelib.async.BleOperationException;
+import com.lironk.blelib.characteristic.BleCharcCapabilities;
+import com.lironk.blelib.characteristic.readable.BleCharcCredit;
+import com.lironk.blelib.codec.BleCodecRegistry;
+import com.lironk.blelib.compression.BleCompressors;
+import com.lironk.blelib.enums.eBleBackpressure;
 import com.lironk.blelib.enums.eBleCommand;
+import com.lironk.blelib.enums.eBleCompression;
+import com.lironk.blelib.enums.eBleFraming;
+import com.lironk.blelib.enums.eBleLane;
+import com.lironk.blelib.enums.eBleOperationError;
+import com.lironk.blelib.enums.eBleScheduling;
+import com.lironk.blelib.enums.eBleSendResult;
 import com.lironk.blelib.main.BleCharacteristic;
+import com.lironk.blelib.main.BleListenerRegistry;
 import com.lironk.blelib.main.BleOperation;
 import com.lironk.blelib.main.IBleEvents;
+import com.lironk.blelib.metrics.BleLatencyRecorder;
+import com.lironk.blelib.queue.BleOperationQueue;
+import com.lironk.blelib.queue.BleWindowTuner;
+import com.lironk.blelib.transport.BleBufferPool;
+import com.lironk.blelib.transport.BleFragmenter;
+import com.lironk.blelib.transport.BleMessageDropper;
+import com.lironk.blelib.transport.BleReassembler;
+import com.lironk.blelib.transport.BleReceiveRing;
+import com.lironk.blelib.transport.IBleFragmentSink;
+import com.lironk.blelib.watchdog.BleRetryPolicy;
+import com.lironk.blelib.watchdog.BleTimerWheel;
+import com.lironk.blelib.watchdog.BleWatchdog;
+import com.lironk.blelib.watchdog.IBleWatchdogHandler;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import static android.bluetooth.BluetoothGatt.GATT_FAILURE;
+import static android.bluetooth.BluetoothGatt.GATT_INVALID_OFFSET;
 import static android.bluetooth.BluetoothGatt.GATT_SUCCESS;
 import static android.bluetooth.BluetoothProfile.STATE_CONNECTED;
 import static android.content.Context.BLUETOOTH_SERVICE;
+import static com.lironk.blelib.characteristic.BleCharcCapabilities.FEATURE_BINARY_CODEC;
+import static com.lironk.blelib.characteristic.BleCharcCapabilities.SUPPORTED_FEATURES;
+import static com.lironk.blelib.compression.BleCompressors.SUPPORTED_MASK;
+import static com.lironk.blelib.main.BleProfile.BULK_ACK_INTERVAL;
 import static com.lironk.blelib.main.BleProfile.CLIENT_CONFIG;
 import static com.lironk.blelib.main.BleProfile.DEFAULT_MTU;
+import static com.lironk.blelib.main.BleProfile.FRAMING;
 import static com.lironk.blelib.main.BleProfile.GATT_HEADER_SIZE;
-import static com.lironk.blelib.main.BleProfile.HEADER_SIZE;
+import static com.lironk.blelib.main.BleProfile.getLane;
+import static com.lironk.blelib.main.BleProfile.R_BULK_CREDIT;
+import static com.lironk.blelib.main.BleProfile.R_CAPABILITIES;
+import static com.lironk.blelib.main.BleProfile.R_PONG;
 import static com.lironk.blelib.main.BleProfile.R_STATUS;
 import static com.lironk.blelib.main.BleProfile.SERVER_NAME;
 import static com.lironk.blelib.main.BleProfile.SERVER_UUID;
 import static com.lironk.blelib.main.BleProfile.READABLE_CHARC_ARR;
 import static com.lironk.blelib.main.BleProfile.WRITABLE_CHARC_ARR;
+import static com.lironk.blelib.main.BleProfile.WRITABLE_NO_RESPONSE_CHARC_ARR;
+import static com.lironk.blelib.main.BleProfile.W_BULK;
+import static com.lironk.blelib.main.BleProfile.W_CAPABILITIES;
+import static com.lironk.blelib.main.BleProfile.W_PING;
+import static com.lironk.blelib.main.Utils.getFragmentCommand;
 
 public class BleServer {
 
     private static final String TAG = "BleServer";
+    private static final long BUSY_BACKOFF_NS = 5_000_000;
 
     private Context mContext;
     private int mMaxPayloadSize = DEFAULT_MTU;
-
-    private ByteBuffer mIncomingByteBuff;
+    private volatile eBleFraming mFraming = eBleFraming.Legacy;
+    private volatile int mCompressionMask = 0;
+    private volatile int mFeatures = 0;
+
+    private BleFragmenter mFragmenter;
+    private BleReassembler mReassembler;
+    // Last whole message sent with sendMessage() per characteristic, served to read requests.
+    // Encoded as negotiated with the client, so it doesn't outlive the connection
+    private ConcurrentHashMap<UUID, byte []> mLastMessages;
+    // Rest of a message a fragment of which failed
+    private BleMessageDropper mMessageDropper;
 
     private ExecutorService mExecutorOut;
-    private Semaphore mExecuteSem;
 
-    private LinkedList<BleOperation> mOperationList;
-    private BleOperation mPendingOperation;
-    private Semaphore mQueueSem;
+    private BleOperationQueue mOperationQueue;
+    // Notifications handed to the stack, completed in order by onNotificationSent. LateNotify for an expired one
+    private ArrayDeque<BleServerOpNotify> mInFlightOperations;
+    private BleWindowTuner mWindowTuner;
+    private volatile boolean mAutoWindow;
+    private volatile boolean mLatencyRecording;
+    private BleTimerWheel mTimerWheel;
+    private BleWatchdog mWatchdog;
+    private BleLatencyRecorder mLatencyRecorder;
+    private BleStreamEngine mStreamEngine;
+
+    private AtomicInteger mBulkReceivedPackets;
+    private AtomicLong mBulkReceivedBytes;
 
-    private ArrayList<IBleEvents> mBleMessageListeners;
-    private ReentrantLock mMsgListenersLock;
+    private BleListenerRegistry mBleMessageListeners;
+    // Written fragments, from the GATT callback to the receive thread
+    private BleReceiveRing<BluetoothDevice> mReceiveRing;
 
     private BluetoothDevice mRegisteredDevice;
 
@@ -78,16 +142,33 @@ public class BleServer {
     public BleServer(Context context){
         mContext = context;
 
-        mExecutorOut = Executors.newSingleThreadExecutor();
-        mExecuteSem = new Semaphore(1);
+        mFragmenter = new BleFragmenter(new BleBufferPool());
+        mReassembler = new BleReassembler(new BleBufferPool());
+        mLastMessages = new ConcurrentHashMap<>();
+        mMessageDropper = new BleMessageDropper();
 
-        mOperationList = new LinkedList<>();
-        mPendingOperation = null;
-        mQueueSem = new Semaphore(Integer.MAX_VALUE);
-        mQueueSem.drainPermits();
+        mExecutorOut = Executors.newSingleThreadExecutor();
 
-        mBleMessageListeners = new ArrayList<>();
-        mMsgListenersLock = new ReentrantLock();
+        mOperationQueue = new BleOperationQueue(this::recycleOperation);
+        mInFlightOperations = new ArrayDeque<>();
+        mWindowTuner = new BleWindowTuner();
+        mAutoWindow = true;
+        // Credits are cumulative, an older one is worthless once a newer one is queued
+        mOperationQueue.setConflated(R_BULK_CREDIT, true);
+        mOperationQueue.setWritabilityListener(this::notifyWritabilityChanged);
+        mTimerWheel = new BleTimerWheel();
+        mWatchdog = new BleWatchdog(mTimerWheel, mWatchdogHandler);
+        mLatencyRecorder = new BleLatencyRecorder(TAG, mTimerWheel);
+        mLatencyRecording = true;
+        updateTimestamps();
+        mStreamEngine = new BleStreamEngine(this, mTimerWheel);
+
+        mBulkReceivedPackets = new AtomicInteger(0);
+        mBulkReceivedBytes = new AtomicLong(0);
+
+        mBleMessageListeners = new BleListenerRegistry();
+        mReceiveRing = new BleReceiveRing<>(TAG + "Rx", this::onFragment);
+        mReceiveRing.start();
 
         mRegisteredDevice = null;
     }
@@ -128,105 +209,269 @@ public class BleServer {
         }
     };
 
+    // Notifications kept in flight. 0 or less lets the server tune it from completion latency
+    public void setWindow(int window){
+        mAutoWindow = window <= 0;
+        updateTimestamps();
+        mWindowTuner.reset();
+        mOperationQueue.setWindow(mAutoWindow ? mWindowTuner.getWindow() : Math.min(window, mWindowTuner.getMaxWindow()));
+        Log.d(TAG, "setWindow. Auto = " + mAutoWindow + ". Window = " + mOperationQueue.getWindow());
+    }
+
+    public int getWindow(){
+        return mOperationQueue.getWindow();
+    }
+
+    public int getMaxWindow(){
+        return mWindowTuner.getMaxWindow();
+    }
+
+    // Smoothed time from handing a notification to the stack until onNotificationSent
+    public long getCompletionLatencyNs(){
+        return mWindowTuner.getSmoothedLatencyNs();
+    }
+
+    // Notification deadline and retries
+    public void setRetryPolicy(BleRetryPolicy policy){
+        mWatchdog.setRetryPolicy(policy);
+    }
+
+    // Stall, retry and recovery counters
+    public BleWatchdog getWatchdog(){
+        return mWatchdog;
+    }
+
+    // Binder thread residence and receive thread hand-off stats
+    public BleReceiveRing<BluetoothDevice> getReceiveRing(){
+        return mReceiveRing;
+    }
+
+    // Queue wait and service latency per operation type
+    public BleLatencyRecorder getLatencyRecorder(){
+        return mLatencyRecorder;
+    }
+
+    // On by default. Off saves two clock reads per notification unless the window is tuned automatically
+    public void setLatencyRecording(boolean enabled){
+        mLatencyRecording = enabled;
+        updateTimestamps();
+    }
+
+    // The window tuner needs the dispatch time too
+    private void updateTimestamps(){
+        mOperationQueue.setTimestamped(mLatencyRecording || mAutoWindow);
+    }
+
     public int getMtu(){
-        return mMaxPayloadSize - HEADER_SIZE;
+        return BleFragmenter.getMaxSinglePartSize(mFraming, mMaxPayloadSize);
     }
 
     public void addBleMessageListener(IBleEvents listener) {
-        mMsgListenersLock.lock();
         mBleMessageListeners.add(listener);
-        mMsgListenersLock.unlock();
+    }
+
+    // Called on executor instead of the GATT callback thread, see BleListenerRegistry
+    public void addBleMessageListener(IBleEvents listener, Executor executor) {
+        mBleMessageListeners.add(listener, executor);
     }
 
     public void removeBleMessageListener(IBleEvents listener) {
-        mMsgListenersLock.lock();
         mBleMessageListeners.remove(listener);
-        mMsgListenersLock.unlock();
     }
 
     public void clearListenersList() {
-        mMsgListenersLock.lock();
         mBleMessageListeners.clear();
-        mMsgListenersLock.unlock();
     }
 
     private void notifyConnectionState(int state){
-        mMsgListenersLock.lock();
-        for (IBleEvents listener : mBleMessageListeners) {
-            listener.bleConnectionStateChanged(state);
+        mBleMessageListeners.connectionStateChanged(state);
+    }
+
+    private void notifyMessageRcv(UUID uuid, ByteBuffer data){
+        mBleMessageListeners.messageReceived(uuid, data);
+    }
+
+    private void notifyMessageSent(BleOperation operation){
+        mBleMessageListeners.messageSent(operation);
+    }
+
+    private void notifyOperationFailed(BleOperation operation, eBleOperationError error){
+        mBleMessageListeners.operationFailed(operation, error);
+    }
+
+    private void notifyWritabilityChanged(boolean writable){
+        mBleMessageListeners.writabilityChanged(writable);
+    }
+
+    // What happens to a data message while the queue is above its high watermark
+    public void setBackpressure(eBleBackpressure backpressure){
+        mOperationQueue.setBackpressure(backpressure);
+    }
+
+    // Queued fragments on the data lanes
+    public void setWatermarks(int low, int high){
+        mOperationQueue.setWatermarks(low, high);
+    }
+
+    public boolean isWritable(){
+        return mOperationQueue.isWritable();
+    }
+
+    // timeoutMs 0 waits for ever. False on timeout
+    public boolean awaitWritable(long timeoutMs){
+        return mOperationQueue.awaitWritable(timeoutMs);
+    }
+
+    // Batch delivery for IBleBatchEvents listeners, see BleListenerRegistry.setBatching()
+    public void setBatching(int maxMessages, int maxBytes, long maxLatencyMs){
+        mBleMessageListeners.setBatching(mTimerWheel, maxMessages, maxBytes, maxLatencyMs);
+    }
+
+    // With Block backpressure a data message waits for room - don't send it from a GATT callback
+    public eBleSendResult sendMessage(BleCharacteristic characteristic) {
+        return sendMessage(characteristic, null);
+    }
+
+    // Completes once every fragment of the message was sent. Fails with a BleOperationException if the message
+    // is rejected or a fragment fails, cancelling drops the fragments not sent yet
+    public CompletableFuture<Void> sendMessageAsync(BleCharacteristic characteristic) {
+        return sendMessageAsync(characteristic, 0);
+    }
+
+    // timeoutMs 0 or less never times out
+    public CompletableFuture<Void> sendMessageAsync(BleCharacteristic characteristic, long timeoutMs) {
+        BleCompletion<Void> completion = new BleCompletion<Void>().setTimeout(mTimerWheel, timeoutMs);
+        if(sendMessage(characteristic, completion) == eBleSendResult.Rejected){
+            completion.onFailed(new BleOperationException(eBleOperationError.Rejected));
         }
-        mMsgListenersLock.unlock();
+        else {
+            completion.seal();
+        }
+        return completion.getFuture();
     }
 
-    private void notifyMessageRcv(UUID uuid, byte [] data){
-        mMsgListenersLock.lock();
-        for (IBleEvents listener : mBleMessageListeners){
-            listener.bleDataReceived(uuid, data);
+    private eBleSendResult sendMessage(BleCharacteristic characteristic, BleCompletion<Void> completion) {
+        eBleLane lane = getLane(characteristic.getUUID());
+        eBleFraming framing = mFraming;
+        eBleCompression compression = getCompression(characteristic, framing);
+        byte [] message = BleCodecRegistry.serialize(characteristic, (mFeatures & FEATURE_BINARY_CODEC) != 0);
+
+        byte [] data = BleCompressors.compress(compression, message);
+        if(data == null){
+            data = message;
+            compression = eBleCompression.None;
         }
-        mMsgListenersLock.unlock();
+
+        if(!mOperationQueue.admit(lane, BleFragmenter.getFragmentCount(framing, data.length, mMaxPayloadSize))){
+            return eBleSendResult.Rejected;
+        }
+        mLastMessages.put(characteristic.getUUID(), message);
+        if(!sendCharacteristic(characteristic.getUUID(), data, mRegisteredDevice, framing, compression, completion)){
+            return eBleSendResult.Rejected;
+        }
+        return mOperationQueue.getSendResult(lane);
     }
 
-    private void notifyMessageSent(BleOperation operation){
-        mMsgListenersLock.lock();
-        for (IBleEvents listener : mBleMessageListeners){
-            listener.bleDataSent(operation);
+    // Codec the characteristic opted in to, if the client negotiated it
+    private eBleCompression getCompression(BleCharacteristic characteristic, eBleFraming framing){
+        eBleCompression compression = characteristic.getCompression();
+        if(framing != eBleFraming.Extended || !compression.isIn(mCompressionMask)){
+            return eBleCompression.None;
         }
-        mMsgListenersLock.unlock();
+        return compression;
     }
 
-    public void sendMessage(BleCharacteristic characteristic) {
-       sendCharacteristic(characteristic.getUUID(), characteristic.serialize(), mRegisteredDevice);
+    // False if the message is too long for the framing
+    private boolean sendCharacteristic(UUID uuid, byte [] data, BluetoothDevice device, eBleFraming framing, eBleCompression compression){
+        return sendCharacteristic(uuid, data, device, framing, compression, null);
     }
 
-    private void sendCharacteristic(UUID uuid, byte [] data, BluetoothDevice device){
+    private boolean sendCharacteristic(UUID uuid, byte [] data, BluetoothDevice device, eBleFraming framing,
+                                       eBleCompression compression, BleCompletion<Void> completion){
         long tId = Thread.currentThread().getId();
 
         if(uuid.toString().equals(R_STATUS.toString())){
             if(data[0] == eBleCommand.eCuBleCommand_Start.getCommand()){
-                Log.d(TAG, "Thread: " + tId + ". sendCharacteristic. COMMAND START. Q size = " + mOperationList.size()
-                        + ". Sem = " + mQueueSem.availablePermits());
+                Log.d(TAG, "Thread: " + tId + ". sendCharacteristic. COMMAND START. Q size = " + mOperationQueue.size());
             }
             else if(data[0] == eBleCommand.eCuBleCommand_Stop.getCommand()){
-                Log.d(TAG, "Thread: " + tId + ". sendCharacteristic. COMMAND STOP. Q size = " + mOperationList.size()
-                        + ". Sem = " + mQueueSem.availablePermits());
+                Log.d(TAG, "Thread: " + tId + ". sendCharacteristic. COMMAND STOP. Q size = " + mOperationQueue.size());
             }
             else if(data[0] == eBleCommand.eCuBleCommand_Get.getCommand()){
-                Log.d(TAG, "Thread: " + tId + ". sendCharacteristic. COMMAND GET. Q size = " + mOperationList.size()
-                        + ". Sem = " + mQueueSem.availablePermits());
+                Log.d(TAG, "Thread: " + tId + ". sendCharacteristic. COMMAND GET. Q size = " + mOperationQueue.size());
             }
         }
 
-        int currentPacketCount = 1;
-        int partsCount = 1;
-        int buffIdx = 0;
+        IBleFragmentSink<BluetoothDevice> sink = mFragmentSink;
+        if(completion != null){
+            sink = (fragmentUuid, fragment, target) -> {
+                BleServerOpNotify operation = BleServerOpNotify.obtain(fragmentUuid, fragment, target);
+                completion.addOperation();
+                operation.setCompletion(completion);
+                enqueueOperation(operation);
+            };
+        }
 
-        if(data.length != mMaxPayloadSize - HEADER_SIZE){
-            partsCount = ((data.length/(mMaxPayloadSize - HEADER_SIZE)) + 1);
+        if(mFragmenter.fragment(uuid, data, framing, compression, mMaxPayloadSize, device, sink) < 0){
+            Log.e(TAG, "Thread: " + tId + ". sendCharacteristic. Message too long for " + framing + " framing. Size = " + data.length);
+            return false;
         }
+        return true;
+    }
+
+    private final IBleFragmentSink<BluetoothDevice> mFragmentSink = (uuid, fragment, device) -> {
+        enqueueOperation(BleServerOpNotify.obtain(uuid, fragment, device));
+    };
 
-        if(partsCount > 1){
-            for(currentPacketCount = 1; currentPacketCount <= partsCount; currentPacketCount++){
-                int bufSize = Math.min((mMaxPayloadSize - HEADER_SIZE), (data.length - buffIdx));
-                byte[] payload = new byte[bufSize + HEADER_SIZE];
-                payload[0] = (byte) currentPacketCount;
-                payload[1] = (byte) partsCount;
-                System.arraycopy(data, buffIdx, payload, HEADER_SIZE, bufSize);
+    // Streams source's messages on uuid, see BleStreamEngine and BleStreamOptions.
+    // An indicated stream keeps a single fragment in flight, the client confirms them one by one.
+    // False if a stream is already running
+    public boolean startStream(UUID uuid, IBleStreamSource source, BleStreamOptions options, IBleStreamListener listener){
+        int depth = options.isIndicate() ? 1 : options.getDepth() > 0 ? options.getDepth() : getMaxWindow();
+        return mStreamEngine.start(uuid, source, options, depth, listener);
+    }
 
-                enqueueOperation(new BleServerOpNotify(uuid, payload, device));
-                mQueueSem.release();
-                buffIdx += bufSize;
-            }
+    public void stopStream(){
+        mStreamEngine.stop();
+    }
+
+    public boolean isStreaming(){
+        return mStreamEngine.isRunning();
+    }
+
+    // Counters and timestamps of the current or last stream
+    public BleStreamEngine getStream(){
+        return mStreamEngine;
+    }
+
+    // BleStreamEngine, with the stream locked. Skips the codec and backpressure, the stream paces itself.
+    // Returns the number of fragments queued, -1 if payload can't be sent
+    int sendStreamMessage(UUID uuid, byte [] payload, eBleCompression compression){
+        BluetoothDevice device = mRegisteredDevice;
+        if(device == null){
+            return -1;
         }
-        else {
-            byte[] payload = new byte[data.length + HEADER_SIZE];
-            payload[0] = (byte) currentPacketCount;
-            payload[1] = (byte) partsCount;
-            System.arraycopy(data, buffIdx, payload, HEADER_SIZE, data.length);
-            enqueueOperation(new BleServerOpNotify(uuid, payload, device));
-            mQueueSem.release();
+
+        eBleFraming framing = mFraming;
+        if(framing != eBleFraming.Extended || !compression.isIn(mCompressionMask)){
+            compression = eBleCompression.None;
+        }
+
+        byte [] data = BleCompressors.compress(compression, payload);
+        if(data == null){
+            data = payload;
+            compression = eBleCompression.None;
         }
+        return mFragmenter.fragment(uuid, data, framing, compression, mMaxPayloadSize, device, mStreamSink);
     }
 
+    private final IBleFragmentSink<BluetoothDevice> mStreamSink = (uuid, fragment, device) -> {
+        BleServerOpNotify operation = BleServerOpNotify.obtain(uuid, fragment, device);
+        operation.setStreamId(mStreamEngine.getId());
+        operation.setIndicate(mStreamEngine.isIndicate());
+        enqueueOperation(operation);
+    };
+
     // Begin advertising over Bluetooth that this device is connectable and supports our Service
     private void startAdvertising() {
         BluetoothAdapter bluetoothAdapter = mBluetoothManager.getAdapter();
@@ -274,7 +519,8 @@ public class BleServer {
             BluetoothGattCharacteristic dataR = new BluetoothGattCharacteristic(
                     uuid,
                     BluetoothGattCharacteristic.PROPERTY_READ |
-                            BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                            BluetoothGattCharacteristic.PROPERTY_NOTIFY |
+                            BluetoothGattCharacteristic.PROPERTY_INDICATE,
                     BluetoothGattCharacteristic.PERMISSION_READ);
 
             BluetoothGattDescriptor configDescriptor = new BluetoothGattDescriptor(CLIENT_CONFIG,
@@ -295,6 +541,15 @@ public class BleServer {
             service.addCharacteristic(dataW);
         }
 
+        for (UUID uuid : WRITABLE_NO_RESPONSE_CHARC_ARR) {
+            // Bulk upload characteristic
+            BluetoothGattCharacteristic dataW = new BluetoothGattCharacteristic(
+                    uuid,
+                    BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE,
+                    BluetoothGattCharacteristic.PERMISSION_WRITE);
+            service.addCharacteristic(dataW);
+        }
+
         return service;
     }
 
@@ -331,28 +586,38 @@ public class BleServer {
 
     public void term(){
         stopService();
-        stopService();
 
         if(mExecutorOut != null){
-            mExecutorOut.shutdown();
+            // Interrupts take()
+            mExecutorOut.shutdownNow();
             mExecutorOut = null;
         }
+        mStreamEngine.cancel();
+        mWatchdog.stop();
+        mLatencyRecorder.stopDump();
+        mReceiveRing.stop();
     }
 
-    private void enqueueOperation(BleOperation operation) {
-        synchronized (mOperationList){
-            long tId = Thread.currentThread().getId();
-            //Log.d(TAG, "Thread: " + tId + ". enqueueOperation");
-            BleServerOpNotify op = (BleServerOpNotify) operation;
-            if(op.getCharcUUID().toString().equals(R_STATUS.toString()) &&
-                    op.getByteArrValue()[2] == eBleCommand.eCuBleCommand_Stop.getCommand()){
-                Log.d(TAG, "Thread " + tId + ". enqueueOperation. STOP. Add first");
-                mOperationList.addFirst(operation);
-            }
-            else{
-                mOperationList.addLast(operation);
-           }
-        }
+    // Status and capabilities go ahead of queued stream fragments, see BleProfile.getLane.
+    // A single fragment message of a conflated characteristic replaces the one still queued
+    private void enqueueOperation(BleServerOpNotify operation) {
+        //long tId = Thread.currentThread().getId();
+        //Log.d(TAG, "Thread: " + tId + ". enqueueOperation");
+        UUID uuid = operation.getCharcUUID();
+        mOperationQueue.enqueue(operation, getLane(uuid), uuid, BleFragmenter.isWholeMessage(operation.getByteArrValue()));
+    }
+
+    // Only the newest queued value of this characteristic is sent
+    public void setConflation(UUID uuid, boolean conflated){
+        mOperationQueue.setConflated(uuid, conflated);
+    }
+
+    public long getConflatedCount(){
+        return mOperationQueue.getConflatedCount();
+    }
+
+    public void setScheduling(eBleScheduling scheduling){
+        mOperationQueue.setScheduling(scheduling);
     }
 
     private void executeOperation() {
@@ -360,56 +625,121 @@ public class BleServer {
             long tId = Thread.currentThread().getId();
 
             //Log.d(TAG, "executeOperation");
-            try {
-                mQueueSem.acquire();
-            } catch (InterruptedException e) {
-                continue;
+            BleOperation operation = mOperationQueue.take();
+            //Log.d(TAG, "Thread " + tId + ". executeOperation 2");
+            if (operation == null) {
+                return;
             }
-            //Log.d(TAG, "executeOperation 2");
 
-            try {
-                mExecuteSem.acquire();
-            } catch (InterruptedException e) {
+            // Its request was given up on - the rest of the message isn't worth sending
+            if (operation.isAborted() || isDropped(operation)) {
+                endOperation();
+                recycleOperation(operation);
                 continue;
             }
-            //Log.d(TAG, "Thread " + tId + ". executeOperation 3");
-
-            synchronized (mOperationList) {
-                if(mOperationList.size() > 0){
-                    BleOperation operation = mOperationList.removeFirst();
-
-                    mPendingOperation = operation;
-
-                    if (operation instanceof BleServerOpNotify) {
-                        //Log.d(TAG, "executeOperation. BleServerOpNotify");
-                        BleServerOpNotify op = (BleServerOpNotify) operation;
-
-                        if (op.getByteArrValue() != null) {
-                            if(op.getCharcUUID().toString().equals(R_STATUS.toString()) && op.getByteArrValue()[2] == eBleCommand.eCuBleCommand_Stop.getCommand()){
-                                Log.d(TAG, "Thread: " + tId + ". executeOperation. notifyRegisteredDevices. COMMAND STOP. Clear list");
-                                mOperationList.clear();
-                                mQueueSem.drainPermits();
-                            }
-                            notifyRegisteredDevices(op.getCharcUUID(), op.getByteArrValue(), op.getDevice());
-                        }
+
+            if (operation instanceof BleServerOpNotify) {
+                //Log.d(TAG, "executeOperation. BleServerOpNotify");
+                BleServerOpNotify op = (BleServerOpNotify) operation;
+
+                if (op.getByteArrValue() != null) {
+                    if(op.getCharcUUID().toString().equals(R_STATUS.toString()) && getFragmentCommand(op.getByteArrValue()) == eBleCommand.eCuBleCommand_Stop){
+                        Log.d(TAG, "Thread: " + tId + ". executeOperation. notifyRegisteredDevices. COMMAND STOP. Clear bulk lane");
+                        mOperationQueue.clear(eBleLane.Bulk);
+                    }
+
+                    // Nobody to send it to, no completion will come
+                    if(op.getDevice() == null){
+                        endOperation();
+                        recycleOperation(op);
+                        continue;
+                    }
+
+                    // Queued before the call - the completion may arrive before it returns
+                    synchronized (mInFlightOperations){
+                        mInFlightOperations.addLast(op);
+                    }
+                    mWatchdog.arm(op);
+
+                    if(!notifyRegisteredDevices(op.getCharcUUID(), op.getByteArrValue(), op.getDevice(), op.isIndicate())){
+                        retryOperation(op);
                     }
                 }
             }
         }
     }
 
+    // The stack refused the notification (its buffers are full): shrink the window and send it again
+    // once a credit comes back, or after a short pause if nothing else is in flight
+    private void retryOperation(BleServerOpNotify op){
+        boolean removed;
+        synchronized (mInFlightOperations){
+            removed = mInFlightOperations.removeLastOccurrence(op);
+        }
+        // Expired meanwhile - the watchdog has it, its place in the order gives the credit back
+        if(!removed){
+            return;
+        }
+        if(!mWatchdog.disarm(op)){
+            endOperation();
+            return;
+        }
+        if(mAutoWindow){
+            mOperationQueue.setWindow(mWindowTuner.onBusy());
+        }
+        mOperationQueue.retry(op);
+        endOperation();
+        if(mOperationQueue.getInFlight() == 0){
+            LockSupport.parkNanos(BUSY_BACKOFF_NS);
+        }
+    }
+
     private void endOperation() {
-        mExecuteSem.release();
+        mOperationQueue.endOperation();
+    }
+
+    // A fragment of a message that already lost one
+    private boolean isDropped(BleOperation operation){
+        if (!(operation instanceof BleServerOpNotify)) {
+            return false;
+        }
+        BleServerOpNotify op = (BleServerOpNotify) operation;
+        return mMessageDropper.shouldDrop(op.getCharcUUID(), op.getByteArrValue());
+    }
+
+    private void recycleOperation(BleOperation operation){
+        // Dropped before it completed
+        operation.fail(eBleOperationError.Cancelled);
+        if (operation instanceof BleServerOpNotify) {
+            BleServerOpNotify op = (BleServerOpNotify) operation;
+            int streamId = op.getStreamId();
+            mFragmenter.recycle(op.getByteArrValue());
+            op.recycle();
+            // Its stream queues the next message in its place
+            if(streamId != 0){
+                mStreamEngine.onPacketDone(streamId);
+            }
+        }
     }
 
     private void resetOperations(){
-        synchronized (mOperationList){
-            Log.d(TAG, "resetOperations");
-            mOperationList.clear();
+        Log.d(TAG, "resetOperations");
+        mWatchdog.reset();
+        mMessageDropper.reset();
+        synchronized (mInFlightOperations){
+            for (BleServerOpNotify operation : mInFlightOperations){
+                // An expired one belongs to the watchdog
+                if(!(operation instanceof LateNotify) && mWatchdog.disarm(operation)){
+                    recycleOperation(operation);
+                }
+            }
+            mInFlightOperations.clear();
+        }
+        mOperationQueue.reset();
+        if(mAutoWindow){
+            mWindowTuner.reset();
+            mOperationQueue.setWindow(mWindowTuner.getWindow());
         }
-        mPendingOperation = null;
-        endOperation();
-        mQueueSem.drainPermits();
     }
 
     // Callback to receive information about the advertisement process
@@ -434,6 +764,13 @@ public class BleServer {
                 case BluetoothProfile.STATE_DISCONNECTED:
                     Log.d(TAG, "onConnectionStateChange. STATE_DISCONNECTED");
                     mRegisteredDevice = null;
+                    mFraming = eBleFraming.Legacy;
+                    mCompressionMask = 0;
+                    mFeatures = 0;
+                    mBulkReceivedPackets.set(0);
+                    mReassembler.reset(device.getAddress());
+                    mLastMessages.clear();
+                    mStreamEngine.cancel();
                     resetOperations();
                     break;
                 case BluetoothProfile.STATE_CONNECTING:
@@ -454,42 +791,27 @@ public class BleServer {
         @Override
         public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset,
                                                 BluetoothGattCharacteristic characteristic) {
-            Log.d(TAG, "onCharacteristicReadRequest");
+            Log.d(TAG, "onCharacteristicReadRequest. UUID=" + characteristic.getUuid());
+            // The last whole message, unframed. The characteristic's own value is the last fragment notified,
+            // framing header included. Stream messages aren't kept
+            byte [] value = mLastMessages.get(characteristic.getUuid());
+            if(value == null){
+                value = new byte[0];
+            }
+            if(offset > value.length){
+                mBluetoothGattServer.sendResponse(device, requestId, GATT_INVALID_OFFSET, offset, null);
+                return;
+            }
+            mBluetoothGattServer.sendResponse(device, requestId, GATT_SUCCESS, offset, Arrays.copyOfRange(value, offset, value.length));
         }
 
         @Override
         public void onCharacteristicWriteRequest(BluetoothDevice device, int requestId, BluetoothGattCharacteristic characteristic, boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
-            long tId = Thread.currentThread().getId();
-
-            Log.d(TAG, "Thread: " + tId + ". onCharacteristicWriteRequest. UUID=" + characteristic.getUuid());
+            // Only answers and hands the fragment over, see onFragment
+            long receiveTime = System.nanoTime();
 
             if(value != null && value.length >0){
-                if(value.length > mMaxPayloadSize){
-                    Log.e(TAG, "Thread: " + tId + ". onCharacteristicWriteRequest. PAYLOAD SIZE=" + value.length
-                            + ". WRONG PAYLOAD SIZE ON CHRC=" + characteristic.getUuid());
-                }
-
-                // Only one part - remove header & send CB
-                if(value[1] == 1){
-                    mIncomingByteBuff.clear();
-                    mIncomingByteBuff.put(value, HEADER_SIZE, value.length - HEADER_SIZE);
-                    notifyMessageRcv(characteristic.getUuid(), mIncomingByteBuff.array());
-                }
-
-                // First part - init byte array & copy data (without header)
-                else if(value[0] == 1){
-                    mIncomingByteBuff.clear();
-                    mIncomingByteBuff.put(value, HEADER_SIZE, value.length - HEADER_SIZE);
-                }
-                // Last part - copy to byte array (without header) & send CB
-                else if(value[0] == value[1]){
-                    mIncomingByteBuff.put(value, HEADER_SIZE, value.length - HEADER_SIZE);
-                    notifyMessageRcv(characteristic.getUuid(), mIncomingByteBuff.array());
-                }
-                // Accumulate parts to byte array (without header)
-                else {
-                    mIncomingByteBuff.put(value, HEADER_SIZE, value.length - HEADER_SIZE);
-                }
+                mReceiveRing.publish(device, characteristic.getUuid(), value, receiveTime);
 
                 if(responseNeeded) {
                     mBluetoothGattServer.sendResponse(device, requestId, GATT_SUCCESS, offset, value);
@@ -498,8 +820,7 @@ public class BleServer {
             else{
                 Log.w(TAG, "onCharacteristicWriteRequest. Recv with 0 data");
             }
-
-
+            mReceiveRing.onCallbackDone(receiveTime);
         }
 
         @Override
@@ -554,41 +875,211 @@ public class BleServer {
             long tId = Thread.currentThread().getId();
             Log.d(TAG, "Thread: " + tId + ". onMtuChanged, mtu = " + mtu);
             mMaxPayloadSize = mtu - GATT_HEADER_SIZE;
-            mIncomingByteBuff = ByteBuffer.allocate(mMaxPayloadSize);
         }
 
         @Override
         public void onNotificationSent(BluetoothDevice device, int status) {
             long tId = Thread.currentThread().getId();
             //Log.d(TAG, "Thread: " + tId + ". onNotificationSent");
-            if (mPendingOperation instanceof BleServerOpNotify) {
-                String uuid = ((BleServerOpNotify)mPendingOperation).getCharcUUID().toString();
+            BleServerOpNotify operation;
+            synchronized (mInFlightOperations){
+                operation = mInFlightOperations.pollFirst();
+            }
+
+            // The late completion of an expired one - not the next one's, which is still on its way
+            if (operation instanceof LateNotify) {
+                endOperation();
+                return;
+            }
+
+            // Expired at the same time - the credit comes back, the watchdog has the operation
+            if (operation != null && !mWatchdog.disarm(operation)) {
+                endOperation();
+                return;
+            }
+
+            if (operation != null) {
+                String uuid = operation.getCharcUUID().toString();
                 if(uuid.equals(R_STATUS.toString())){
                     Log.d(TAG, "Thread: " + tId + ". onNotificationSent. START/STOP");
                 }
 
+                long now = System.nanoTime();
+                mLatencyRecorder.onCompleted(operation, now);
+                // Not stamped if it was taken before auto window was turned on
+                if(mAutoWindow && operation.getDispatchTime() != 0){
+                    mOperationQueue.setWindow(mWindowTuner.onCompletion(now - operation.getDispatchTime()));
+                }
                 endOperation();
-                notifyMessageSent(mPendingOperation);
+                if(status == GATT_SUCCESS){
+                    operation.complete(null);
+                    if(operation.getStreamId() != 0){
+                        mStreamEngine.onPacketSent(operation.getStreamId(), operation.getByteArrValue().length);
+                    }
+                }
+                else {
+                    operation.fail(eBleOperationError.Gatt, status);
+                }
+                notifyMessageSent(operation);
+                recycleOperation(operation);
             }
         }
     };
 
-    private void notifyRegisteredDevices(UUID characUUID, byte[] val, BluetoothDevice device) {
+    // onNotificationSent doesn't say which notification completed, the oldest one in flight is assumed.
+    // An expired one leaves a LateNotify in its place, so its completion, if it still comes, isn't credited to
+    // the one behind it. The credit comes back with that completion, or once it is given up on
+    private final IBleWatchdogHandler mWatchdogHandler = new IBleWatchdogHandler() {
+        @Override
+        public void onExpired(BleOperation operation) {
+            Log.w(TAG, "onExpired. No onNotificationSent. In flight = " + mOperationQueue.getInFlight());
+            LateNotify late = new LateNotify();
+            boolean replaced;
+            synchronized (mInFlightOperations){
+                replaced = replaceInFlight(operation, late);
+            }
+            // Otherwise a completion or a reset already gave its credit back
+            if(replaced){
+                if(mAutoWindow){
+                    mOperationQueue.setWindow(mWindowTuner.onBusy());
+                }
+                mTimerWheel.schedule(() -> onLateTimeout(late), mWatchdog.getRetryPolicy().getTimeoutMs());
+            }
+        }
+
+        @Override
+        public void onRetry(BleOperation operation) {
+            mOperationQueue.retry(operation);
+        }
+
+        @Override
+        public void onFailed(BleOperation operation, eBleOperationError error) {
+            if (operation instanceof BleServerOpNotify) {
+                BleServerOpNotify op = (BleServerOpNotify) operation;
+                mMessageDropper.onFailed(op.getCharcUUID(), op.getByteArrValue());
+            }
+            operation.fail(error);
+            notifyOperationFailed(operation, error);
+            recycleOperation(operation);
+        }
+    };
+
+    // Holds the place of an expired notification among the ones in flight
+    private static final class LateNotify extends BleServerOpNotify {
+        LateNotify() {
+            super(null, null, null);
+        }
+    }
+
+    // Keeps the order, there are no more than the window in flight
+    private boolean replaceInFlight(BleOperation operation, BleServerOpNotify replacement){
+        boolean replaced = false;
+        for (int i = mInFlightOperations.size(); i > 0; i--){
+            BleServerOpNotify inFlight = mInFlightOperations.pollFirst();
+            if(inFlight == operation && !replaced){
+                inFlight = replacement;
+                replaced = true;
+            }
+            mInFlightOperations.addLast(inFlight);
+        }
+        return replaced;
+    }
+
+    // Timer wheel thread. The completion of an expired notification never came, its credit comes back
+    private void onLateTimeout(LateNotify late){
+        boolean removed;
+        synchronized (mInFlightOperations){
+            removed = mInFlightOperations.removeFirstOccurrence(late);
+        }
+        if(removed){
+            endOperation();
+        }
+    }
+
+    // Receive ring thread. Reassembly and dispatch of a written fragment
+    private void onFragment(BluetoothDevice device, UUID uuid, byte [] value){
+        long tId = Thread.currentThread().getId();
+
+        boolean bulk = W_BULK.equals(uuid);
+        boolean ping = W_PING.equals(uuid);
+        if(!bulk && !ping){
+            Log.d(TAG, "Thread: " + tId + ". onFragment. UUID=" + uuid);
+        }
+
+        if(value.length > mMaxPayloadSize){
+            Log.e(TAG, "Thread: " + tId + ". onFragment. PAYLOAD SIZE=" + value.length
+                    + ". WRONG PAYLOAD SIZE ON CHRC=" + uuid);
+        }
+
+        ByteBuffer message = mReassembler.onFragment(device.getAddress(), uuid, value);
+        if(message != null){
+            if(W_CAPABILITIES.equals(uuid)){
+                handleCapabilities(device, message);
+            }
+            else if(ping){
+                echoPing(device, message);
+            }
+            else {
+                notifyMessageRcv(uuid, message);
+            }
+        }
+
+        if(bulk){
+            onBulkPacket(device, value.length);
+        }
+    }
+
+    // The packet was consumed (delivered or buffered for reassembly) - return credit every few packets
+    private void onBulkPacket(BluetoothDevice device, int length){
+        mBulkReceivedBytes.addAndGet(length);
+        int received = mBulkReceivedPackets.incrementAndGet();
+        if(received % BULK_ACK_INTERVAL == 0){
+            BleCharcCredit credit = new BleCharcCredit(received);
+            sendCharacteristic(R_BULK_CREDIT, credit.serialize(), device, mFraming, eBleCompression.None);
+        }
+    }
+
+    // Sent back as is, right from the receive thread, on the control lane - ahead of any queued bulk data
+    private void echoPing(BluetoothDevice device, ByteBuffer data){
+        byte [] pong = new byte[data.remaining()];
+        data.duplicate().get(pong);
+        sendCharacteristic(R_PONG, pong, device, mFraming, eBleCompression.None);
+    }
+
+    // Bulk upload bytes received so far, framing headers included
+    public long getBulkReceivedBytes(){
+        return mBulkReceivedBytes.get();
+    }
+
+    // Client announced what it supports. Answer with our own capabilities (always legacy framed)
+    private void handleCapabilities(BluetoothDevice device, ByteBuffer data){
+        BleCharcCapabilities peerCapabilities = new BleCharcCapabilities(W_CAPABILITIES, data);
+        mFraming = FRAMING.min(peerCapabilities.getFraming());
+        mCompressionMask = SUPPORTED_MASK & peerCapabilities.getCompressionMask();
+        mFeatures = SUPPORTED_FEATURES & peerCapabilities.getFeatures();
+        Log.d(TAG, "handleCapabilities. Peer framing = " + peerCapabilities.getFraming() + ". Using " + mFraming
+                + ". Compression mask = " + mCompressionMask + ". Features = " + mFeatures);
+
+        BleCharcCapabilities capabilities = new BleCharcCapabilities(R_CAPABILITIES, FRAMING, SUPPORTED_MASK, SUPPORTED_FEATURES);
+        sendCharacteristic(R_CAPABILITIES, capabilities.serialize(), device, eBleFraming.Legacy, eBleCompression.None);
+    }
+
+    // False if the stack didn't accept the notification (or indication)
+    private boolean notifyRegisteredDevices(UUID characUUID, byte[] val, BluetoothDevice device, boolean indicate) {
         long tId = Thread.currentThread().getId();
 
         if(characUUID.toString().equals(R_STATUS.toString())){
-            if(val[2] == eBleCommand.eCuBleCommand_Start.getCommand()){
+            eBleCommand command = getFragmentCommand(val);
+            if(command == eBleCommand.eCuBleCommand_Start){
                 Log.d(TAG, "Thread: " + tId + ". notifyRegisteredDevices. COMMAND START");
             }
-            else if(val[2] == eBleCommand.eCuBleCommand_Stop.getCommand()){
+            else if(command == eBleCommand.eCuBleCommand_Stop){
                 Log.d(TAG, "Thread: " + tId + ". notifyRegisteredDevices. COMMAND STOP");
             }
         }
 
         BluetoothGattCharacteristic characteristic = mBluetoothGattServer.getService(SERVER_UUID).getCharacteristic(characUUID);
-        if (device != null) {
-            characteristic.setValue(val);
-            mBluetoothGattServer.notifyCharacteristicChanged(device, characteristic, false);
-        }
+        characteristic.setValue(val);
+        return mBluetoothGattServer.notifyCharacteristicChanged(device, characteristic, indicate);
     }
 }
@@ -2,16 +2,30 @@ package com.lironk.bleserver.server;
 
 import android.bluetooth.BluetoothDevice;
 
+import com.lironk.blelib.enums.eBleOperationError;
 import com.lironk.blelib.main.BleOperation;
+import com.lironk.blelib.main.BleOperationSnapshot;
+import com.lironk.blelib.transport.BleFragmenter;
 
 import java.util.UUID;
 
 
 public class BleServerOpNotify extends BleOperation {
 
+    private static final int MAX_POOL_SIZE = 64;
+    private static final Object sPoolSync = new Object();
+    private static BleServerOpNotify sPool;
+    private static int sPoolSize = 0;
+
     private UUID mCharacteristic;
     private byte[] mByteArrValue;
     private BluetoothDevice mDevice;
+    // Id of the BleStreamEngine stream that queued it, 0 if none
+    private int mStreamId;
+    // Sent as an indication, confirmed by the client
+    private boolean mIndicate;
+
+    private BleServerOpNotify mNext;
 
     public BleServerOpNotify(UUID characteristic, byte[] value, BluetoothDevice device) {
         mCharacteristic = characteristic;
@@ -19,6 +33,53 @@ public class BleServerOpNotify extends BleOperation {
         mDevice = device;
     }
 
+    // Reuses a recycled operation when available instead of allocating a new one
+    public static BleServerOpNotify obtain(UUID characteristic, byte[] value, BluetoothDevice device) {
+        synchronized (sPoolSync) {
+            if (sPool != null) {
+                BleServerOpNotify op = sPool;
+                sPool = op.mNext;
+                op.mNext = null;
+                sPoolSize--;
+                op.mCharacteristic = characteristic;
+                op.mByteArrValue = value;
+                op.mDevice = device;
+                return op;
+            }
+        }
+        return new BleServerOpNotify(characteristic, value, device);
+    }
+
+    // A lost callback doesn't mean it wasn't sent, see BleWatchdog
+    @Override
+    public boolean isResendable() {
+        return mByteArrValue == null || BleFragmenter.isWholeMessage(mByteArrValue);
+    }
+
+    @Override
+    public BleOperation snapshot(eBleOperationError error) {
+        return new BleOperationSnapshot(mCharacteristic, BleFragmenter.getMessageId(mByteArrValue),
+                mByteArrValue != null ? mByteArrValue.length : 0, error);
+    }
+
+    // Must not be used after this call
+    public void recycle() {
+        mCharacteristic = null;
+        mByteArrValue = null;
+        mDevice = null;
+        mStreamId = 0;
+        mIndicate = false;
+        clearState();
+
+        synchronized (sPoolSync) {
+            if (sPoolSize < MAX_POOL_SIZE) {
+                mNext = sPool;
+                sPool = this;
+                sPoolSize++;
+            }
+        }
+    }
+
     public UUID getCharcUUID() {
         return mCharacteristic;
     }
@@ -30,4 +91,20 @@ public class BleServerOpNotify extends BleOperation {
     public BluetoothDevice getDevice(){
         return mDevice;
     }
-}
\ No newline at end of file
+
+    public int getStreamId(){
+        return mStreamId;
+    }
+
+    public void setStreamId(int streamId){
+        mStreamId = streamId;
+    }
+
+    public boolean isIndicate(){
+        return mIndicate;
+    }
+
+    public void setIndicate(boolean indicate){
+        mIndicate = indicate;
+    }
+}
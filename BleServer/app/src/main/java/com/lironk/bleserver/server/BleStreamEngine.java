@@ -0,0 +1,315 @@
+package com.lironk.bleserver.server;
+
+import android.util.Log;
+
+import com.lironk.blelib.enums.eBleCompression;
+import com.lironk.blelib.queue.BleTokenBucket;
+import com.lironk.blelib.watchdog.BleTimeout;
+import com.lironk.blelib.watchdog.BleTimerWheel;
+
+import java.util.UUID;
+
+// Self-clocked notification stream. Keeps up to depth fragments queued or in flight and queues the next message
+// from the completion of each one, on whichever thread ended it (usually the onNotificationSent Binder thread),
+// so the stream never waits on another executor between notifications.
+// A stream runs until its duration passed, its byte budget or its source ran out, or it is stopped.
+// With a rate, a message the token bucket can't pay for yet is held and queued from the timer wheel once it can.
+// Every fragment is stamped with the stream id - completions of an earlier stream don't clock the current one
+public class BleStreamEngine {
+
+    private static final String TAG = "BleStreamEngine";
+
+    private final BleServer mServer;
+    private final BleTimerWheel mTimerWheel;
+
+    private UUID mUuid;
+    private IBleStreamSource mSource;
+    private eBleCompression mCompression;
+    private IBleStreamListener mListener;
+    private int mDepth;
+    private long mByteBudget;
+    private boolean mIndicate;
+    private long mDeadline;
+    private BleTimeout mDeadlineTimeout;
+    // Null without a rate
+    private BleTokenBucket mBucket;
+    // Message waiting for tokens
+    private byte [] mPending;
+    private BleTimeout mRateTimeout;
+
+    private int mId;
+    private boolean mRunning;
+    // No more messages are queued, the stream finishes once the last one completed
+    private boolean mDraining;
+    private int mOutstanding;
+
+    private long mQueuedMessages;
+    private long mQueuedBytes;
+    private long mSentPackets;
+    private long mSentBytes;
+    private long mStartTime;
+    private long mStopTime;
+    private long mWallStartTime;
+
+    BleStreamEngine(BleServer server, BleTimerWheel timerWheel) {
+        mServer = server;
+        mTimerWheel = timerWheel;
+        mId = 0;
+        mRunning = false;
+    }
+
+    // depth replaces the options' one. False if a stream is already running
+    boolean start(UUID uuid, IBleStreamSource source, BleStreamOptions options, int depth, IBleStreamListener listener){
+        IBleStreamListener finished = null;
+        synchronized (this){
+            if(mRunning){
+                return false;
+            }
+            startLocked(uuid, source, options, depth, listener);
+            // The source had nothing to send
+            if(mDraining && mOutstanding <= 0){
+                finished = finishLocked();
+            }
+        }
+        report(finished);
+        return true;
+    }
+
+    private void startLocked(UUID uuid, IBleStreamSource source, BleStreamOptions options, int depth, IBleStreamListener listener){
+        long durationMs = options.getDurationMs();
+        mUuid = uuid;
+        mSource = source;
+        mCompression = options.getCompression();
+        mListener = listener;
+        mDepth = Math.max(1, depth);
+        mByteBudget = options.getByteBudget();
+        mIndicate = options.isIndicate();
+
+        // Never 0, that is how fragments outside a stream are marked
+        mId = mId == Integer.MAX_VALUE ? 1 : mId + 1;
+        mRunning = true;
+        mDraining = false;
+        mOutstanding = 0;
+        mQueuedMessages = 0;
+        mQueuedBytes = 0;
+        mSentPackets = 0;
+        mSentBytes = 0;
+        mStopTime = 0;
+        mDeadlineTimeout = null;
+        mPending = null;
+        mRateTimeout = null;
+        mWallStartTime = System.currentTimeMillis();
+        mStartTime = System.nanoTime();
+        mBucket = options.getRate() > 0 ? new BleTokenBucket(options.getRate(), options.getBurst(), mStartTime) : null;
+
+        mDeadline = durationMs > 0 ? mStartTime + durationMs * 1_000_000 : Long.MAX_VALUE;
+        if(durationMs > 0){
+            int id = mId;
+            mDeadlineTimeout = mTimerWheel.schedule(() -> onDeadline(id), durationMs);
+        }
+
+        Log.d(TAG, "start. Stream " + mId + ". Depth = " + mDepth + ". Duration (ms) = " + durationMs
+                + ". Budget = " + mByteBudget + ". Rate = " + options.getRate() + ". Indicate = " + mIndicate);
+        refillLocked();
+    }
+
+    // Stops queuing messages, the ones already queued are still sent. Reports the stream finished right away
+    public void stop(){
+        IBleStreamListener listener;
+        synchronized (this){
+            listener = finishLocked();
+        }
+        report(listener);
+    }
+
+    // Like stop() without reporting it, the client is gone
+    void cancel(){
+        synchronized (this){
+            finishLocked();
+        }
+    }
+
+    // A fragment of stream id was sent. Fragments still draining after a stop are not counted
+    synchronized void onPacketSent(int id, int length){
+        if(id != mId || !mRunning){
+            return;
+        }
+        mSentPackets++;
+        mSentBytes += length;
+    }
+
+    // A fragment of stream id ended, sent or not - room for the next message
+    void onPacketDone(int id){
+        IBleStreamListener listener = null;
+        synchronized (this){
+            if(id != mId || !mRunning){
+                return;
+            }
+            mOutstanding--;
+            refillLocked();
+            if(mDraining && mOutstanding <= 0){
+                listener = finishLocked();
+            }
+        }
+        report(listener);
+    }
+
+    public synchronized boolean isRunning(){
+        return mRunning;
+    }
+
+    // Stamped on the fragments of the current stream
+    synchronized int getId(){
+        return mId;
+    }
+
+    synchronized boolean isIndicate(){
+        return mIndicate;
+    }
+
+    public synchronized long getQueuedMessages(){
+        return mQueuedMessages;
+    }
+
+    // Payload bytes handed to the fragmenter
+    public synchronized long getQueuedBytes(){
+        return mQueuedBytes;
+    }
+
+    // Fragments the stack reported sent
+    public synchronized long getSentPackets(){
+        return mSentPackets;
+    }
+
+    // Bytes of those fragments, framing headers included
+    public synchronized long getSentBytes(){
+        return mSentBytes;
+    }
+
+    // System.currentTimeMillis() when the stream started
+    public synchronized long getWallStartTime(){
+        return mWallStartTime;
+    }
+
+    // nanoTime of the start and of the stop. The stop time is 0 while running
+    public synchronized long getStartTimeNs(){
+        return mStartTime;
+    }
+
+    public synchronized long getStopTimeNs(){
+        return mStopTime;
+    }
+
+    public synchronized long getDurationNs(){
+        return (mStopTime != 0 ? mStopTime : System.nanoTime()) - mStartTime;
+    }
+
+    // Sent bytes per second so far
+    public synchronized long getBytesPerSecond(){
+        long duration = (mStopTime != 0 ? mStopTime : System.nanoTime()) - mStartTime;
+        return duration > 0 ? mSentBytes * 1_000_000_000 / duration : 0;
+    }
+
+    private void onDeadline(int id){
+        IBleStreamListener listener = null;
+        synchronized (this){
+            if(id == mId){
+                listener = finishLocked();
+            }
+        }
+        report(listener);
+    }
+
+    private void onRateTimeout(int id){
+        IBleStreamListener listener = null;
+        synchronized (this){
+            if(id != mId || !mRunning){
+                return;
+            }
+            mRateTimeout = null;
+            refillLocked();
+            if(mDraining && mOutstanding <= 0){
+                listener = finishLocked();
+            }
+        }
+        report(listener);
+    }
+
+    private void refillLocked(){
+        while (mRunning && !mDraining && mOutstanding < mDepth){
+            if(System.nanoTime() >= mDeadline || (mByteBudget > 0 && mQueuedBytes >= mByteBudget)){
+                mDraining = true;
+                break;
+            }
+
+            byte [] payload = mPending;
+            mPending = null;
+            if(payload == null){
+                payload = mSource.next();
+            }
+            if(payload == null){
+                mDraining = true;
+                break;
+            }
+
+            if(mBucket != null){
+                long now = System.nanoTime();
+                if(!mBucket.tryAcquire(payload.length, now)){
+                    // next() isn't called again before it is queued, so the source can't have reused it
+                    mPending = payload;
+                    scheduleRefill(mBucket.getWaitNs(payload.length, now));
+                    break;
+                }
+            }
+
+            int fragments = mServer.sendStreamMessage(mUuid, payload, mCompression);
+            if(fragments < 0){
+                Log.e(TAG, "refill. Stream " + mId + " message rejected. Size = " + payload.length);
+                mDraining = true;
+                break;
+            }
+            mOutstanding += fragments;
+            mQueuedMessages++;
+            mQueuedBytes += payload.length;
+        }
+    }
+
+    private void scheduleRefill(long delayNs){
+        if(mRateTimeout != null){
+            return;
+        }
+        int id = mId;
+        mRateTimeout = mTimerWheel.schedule(() -> onRateTimeout(id), Math.max(1, (delayNs + 999_999) / 1_000_000));
+    }
+
+    // Returns the listener to report to outside the lock, null if the stream had already finished
+    private IBleStreamListener finishLocked(){
+        if(!mRunning){
+            return null;
+        }
+        mRunning = false;
+        mStopTime = System.nanoTime();
+        if(mDeadlineTimeout != null){
+            mDeadlineTimeout.cancel();
+            mDeadlineTimeout = null;
+        }
+        if(mRateTimeout != null){
+            mRateTimeout.cancel();
+            mRateTimeout = null;
+        }
+        mPending = null;
+        Log.d(TAG, "finish. Stream " + mId + ". Sent = " + mSentPackets + " packets, " + mSentBytes
+                + " bytes in " + (mStopTime - mStartTime) / 1_000_000 + " ms");
+
+        IBleStreamListener listener = mListener;
+        mListener = null;
+        mSource = null;
+        return listener;
+    }
+
+    private void report(IBleStreamListener listener){
+        if(listener != null){
+            listener.onStreamFinished(this);
+        }
+    }
+}
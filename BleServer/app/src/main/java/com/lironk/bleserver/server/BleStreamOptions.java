@@ -0,0 +1,91 @@
+package com.lironk.bleserver.server;
+
+import com.lironk.blelib.enums.eBleCompression;
+
+// How BleStreamEngine runs a stream. The defaults stream uncompressed notifications as fast as the window allows
+// until stopped
+public class BleStreamOptions {
+
+    private eBleCompression mCompression;
+    private int mDepth;
+    private long mDurationMs;
+    private long mByteBudget;
+    private long mRate;
+    private long mBurst;
+    private boolean mIndicate;
+
+    public BleStreamOptions() {
+        mCompression = eBleCompression.None;
+        mDepth = 0;
+        mDurationMs = 0;
+        mByteBudget = 0;
+        mRate = 0;
+        mBurst = 0;
+        mIndicate = false;
+    }
+
+    // Used if the client negotiated it
+    public BleStreamOptions setCompression(eBleCompression compression){
+        mCompression = compression;
+        return this;
+    }
+
+    // Fragments kept queued or in flight, 0 or less fills the largest window
+    public BleStreamOptions setDepth(int depth){
+        mDepth = depth;
+        return this;
+    }
+
+    // 0 or less doesn't limit the stream
+    public BleStreamOptions setDuration(long durationMs){
+        mDurationMs = durationMs;
+        return this;
+    }
+
+    // Payload bytes, 0 or less doesn't limit the stream
+    public BleStreamOptions setByteBudget(long byteBudget){
+        mByteBudget = byteBudget;
+        return this;
+    }
+
+    // Payload bytes per second through a token bucket of burst bytes (see BleTokenBucket). 0 or less is unlimited
+    public BleStreamOptions setRate(long bytesPerSecond, long burst){
+        mRate = bytesPerSecond;
+        mBurst = burst;
+        return this;
+    }
+
+    // Indications wait for the client's confirmation - one at a time
+    public BleStreamOptions setIndicate(boolean indicate){
+        mIndicate = indicate;
+        return this;
+    }
+
+    public eBleCompression getCompression(){
+        return mCompression;
+    }
+
+    public int getDepth(){
+        return mDepth;
+    }
+
+    public long getDurationMs(){
+        return mDurationMs;
+    }
+
+    public long getByteBudget(){
+        return mByteBudget;
+    }
+
+    public long getRate(){
+        return mRate;
+    }
+
+    public long getBurst(){
+        return mBurst;
+    }
+
+    public boolean isIndicate(){
+        return mIndicate;
+    }
+}
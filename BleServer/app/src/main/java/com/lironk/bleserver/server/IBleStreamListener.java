@@ -0,0 +1,8 @@
+package com.lironk.bleserver.server;
+
+public interface IBleStreamListener {
+
+    // The stream stopped: its duration passed, its byte budget or source ran out, or stopStream() was called.
+    // Not called when the stream ends because the client disconnected
+    void onStreamFinished(BleStreamEngine stream);
+}
@@ -0,0 +1,8 @@
+package com.lironk.bleserver.server;
+
+public interface IBleStreamSource {
+
+    // Payload of the next stream message, null ends the stream. The array is copied before next() is called
+    // again, so it may be reused. Called with the stream locked, from whichever thread completed a notification
+    byte [] next();
+}